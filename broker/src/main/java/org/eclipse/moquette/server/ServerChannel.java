@@ -17,6 +17,8 @@ package org.eclipse.moquette.server;
 
 import io.netty.util.AttributeKey;
 
+import java.util.List;
+
 /**
  * 
  * @author andrea
@@ -33,6 +35,39 @@ public interface ServerChannel {
 	
 	void write(Object value);
 	
+	/**
+	 * Write the values in order and flush them once, with a single task on the
+	 * event loop of the channel when called from another thread.
+	 */
+	void writeAll(List<?> values);
+	
+	/**
+	 * @return true iff the channel can take more writes without queueing them
+	 *         in memory.
+	 */
+	boolean isWritable();
+	
+	/**
+	 * Run the task once the channel is writable again, replacing any task
+	 * already waiting.
+	 */
+	void runWhenWritable(Runnable task);
+	
+	/**
+	 * Run the task on the event loop of the channel.
+	 */
+	void execute(Runnable task);
+	
+	/**
+	 * Stop or resume reading the channel.
+	 */
+	void setAutoRead(boolean autoRead);
+	
+	/**
+	 * @return false once the channel is closed.
+	 */
+	boolean isActive();
+	
 	String channelId();
 	
 }
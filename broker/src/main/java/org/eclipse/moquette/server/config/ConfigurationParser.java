@@ -49,7 +49,7 @@ class ConfigurationParser {
 		properties.put(WEB_SOCKET_PORT_PROPERTY_NAME,
 				Integer.toString(WEBSOCKET_PORT));
 		properties.put(PASSWORD_FILE_PROPERTY_NAME, "");
-		properties.put(PERSISTENT_STORE_PROPERTY_NAME, DEFAULT_PERSISTENT_PATH);
+		properties.put(PERSISTENT_STORE_PROPERTY_NAME, DEFAULT_JOURNAL_PATH);
 		properties.put(ALLOW_ANONYMOUS_PROPERTY_NAME, true);
 		properties.put(AUTHENTICATOR_CLASS_NAME, "");
 		properties.put(AUTHORIZATOR_CLASS_NAME, "");
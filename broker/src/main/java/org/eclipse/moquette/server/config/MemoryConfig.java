@@ -34,7 +34,7 @@ public class MemoryConfig implements IConfig {
 	public MemoryConfig(Properties properties) {
 		createDefaults();
 		for (Map.Entry<Object, Object> entrySet : properties.entrySet()) {
-			properties.put(entrySet.getKey(), entrySet.getValue());
+			this.properties.put(entrySet.getKey(), entrySet.getValue());
 		}
 	}
 	
@@ -44,7 +44,7 @@ public class MemoryConfig implements IConfig {
 		properties.put(WEB_SOCKET_PORT_PROPERTY_NAME,
 				Integer.toString(WEBSOCKET_PORT));
 		properties.put(PASSWORD_FILE_PROPERTY_NAME, "");
-		properties.put(PERSISTENT_STORE_PROPERTY_NAME, DEFAULT_PERSISTENT_PATH);
+		properties.put(PERSISTENT_STORE_PROPERTY_NAME, DEFAULT_JOURNAL_PATH);
 		properties.put(ALLOW_ANONYMOUS_PROPERTY_NAME, true);
 		properties.put(AUTHENTICATOR_CLASS_NAME, "");
 		properties.put(AUTHORIZATOR_CLASS_NAME, "");
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.server.netty;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the flushes of a channel, so the many writes and flushes of a
+ * fan-out or of the acks of the messages read together go to the socket with
+ * a single flush.
+ * 
+ * The flushes requested while reading are done once the read completes, the
+ * others at the end of the current event loop tick, or after maxDelayMicros
+ * if greater than 0. A flush is done at once when maxPendingFlushes are
+ * waiting, or the channel becomes not writable, closes or fails.
+ * 
+ * Not sharable, a handler per channel.
+ */
+public class BatchedFlushHandler extends ChannelDuplexHandler {
+	
+	private final int				maxPendingFlushes;
+	private final long				maxDelayMicros;
+	private final Runnable			flushTask;
+	private ChannelHandlerContext	ctx;
+	private int						pendingFlushes;
+	private boolean					readInProgress;
+	private boolean					flushScheduled;
+	
+	/**
+	 * @param maxPendingFlushes flushes coalesced before flushing at once.
+	 * @param maxDelayMicros the time the flushes are held, 0 for the end of
+	 *            the event loop tick.
+	 */
+	public BatchedFlushHandler(int maxPendingFlushes, long maxDelayMicros) {
+		if (maxPendingFlushes <= 0) {
+			throw new IllegalArgumentException(
+					"maxPendingFlushes must be greater than 0, found "
+							+ maxPendingFlushes);
+		}
+		this.maxPendingFlushes = maxPendingFlushes;
+		this.maxDelayMicros = maxDelayMicros;
+		this.flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flushScheduled = false;
+				if (!readInProgress) {
+					flushNow();
+				}
+			}
+		};
+	}
+	
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+	
+	@Override
+	public void flush(ChannelHandlerContext ctx) throws Exception {
+		if (++pendingFlushes >= maxPendingFlushes) {
+			flushNow();
+		} else if (!readInProgress) {
+			scheduleFlush();
+		}
+	}
+	
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg)
+			throws Exception {
+		readInProgress = true;
+		ctx.fireChannelRead(msg);
+	}
+	
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx)
+			throws Exception {
+		readInProgress = false;
+		flushNow();
+		ctx.fireChannelReadComplete();
+	}
+	
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx)
+			throws Exception {
+		if (!ctx.channel().isWritable()) {
+			// let the outbound buffer drain
+			flushNow();
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+	
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+			throws Exception {
+		flushNow();
+		ctx.fireExceptionCaught(cause);
+	}
+	
+	@Override
+	public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise)
+			throws Exception {
+		flushNow();
+		ctx.disconnect(promise);
+	}
+	
+	@Override
+	public void close(ChannelHandlerContext ctx, ChannelPromise promise)
+			throws Exception {
+		flushNow();
+		ctx.close(promise);
+	}
+	
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		flushNow();
+	}
+	
+	private void scheduleFlush() {
+		if (flushScheduled) {
+			return;
+		}
+		flushScheduled = true;
+		if (maxDelayMicros > 0) {
+			ctx.executor().schedule(flushTask, maxDelayMicros,
+					TimeUnit.MICROSECONDS);
+		} else {
+			// after the tasks already queued, the writes of the same tick
+			ctx.executor().execute(flushTask);
+		}
+	}
+	
+	private void flushNow() {
+		if (pendingFlushes > 0) {
+			pendingFlushes = 0;
+			ctx.flush();
+		}
+	}
+}
@@ -115,6 +115,42 @@ public class NettyAcceptor implements ServerAcceptor {
 		abstract void init(ChannelPipeline pipeline) throws Exception;
 	}
 	
+	/**
+	 * The flush consolidation of a transport, the flush_max_pending and
+	 * flush_max_delay_us properties, overridden by the ones prefixed with the
+	 * name of the transport.
+	 */
+	static class FlushSettings {
+		
+		private final int	maxPendingFlushes;
+		private final long	maxDelayMicros;
+		
+		FlushSettings(IConfig props, String transport) {
+			this.maxPendingFlushes = Integer.parseInt(property(props,
+					transport, Constants.FLUSH_MAX_PENDING_PROPERTY_NAME,
+					"256"));
+			this.maxDelayMicros = Long.parseLong(property(props, transport,
+					Constants.FLUSH_MAX_DELAY_PROPERTY_NAME, "0"));
+		}
+		
+		private static String property(IConfig props, String transport,
+				String name, String defaultValue) {
+			return props.getProperty(transport + "_" + name,
+					props.getProperty(name, defaultValue));
+		}
+		
+		/**
+		 * Add the handler coalescing the flushes, if enabled, between the
+		 * encoder and the transport handlers.
+		 */
+		void addTo(ChannelPipeline pipeline) {
+			if (maxPendingFlushes > 0) {
+				pipeline.addLast("flusher", new BatchedFlushHandler(
+						maxPendingFlushes, maxDelayMicros));
+			}
+		}
+	}
+	
 	private static final Logger		LOG						= LoggerFactory
 																	.getLogger(NettyAcceptor.class);
 	
@@ -194,6 +230,7 @@ public class NettyAcceptor implements ServerAcceptor {
 		String host = props.getProperty(Constants.HOST_PROPERTY_NAME);
 		int port = Integer.parseInt(props
 				.getProperty(Constants.PORT_PROPERTY_NAME));
+		final FlushSettings flushSettings = new FlushSettings(props, "tcp");
 		initFactory(host, port, new PipelineInitializer() {
 			@Override
 			void init(ChannelPipeline pipeline) {
@@ -212,6 +249,7 @@ public class NettyAcceptor implements ServerAcceptor {
 				
 				pipeline.addFirst("bytemetrics", new BytesMetricsHandler(
 						bytesMetricsCollector));
+				flushSettings.addTo(pipeline);
 				pipeline.addLast("decoder", new MQTTDecoder());
 				pipeline.addLast("encoder", new MQTTEncoder());
 				pipeline.addLast("metrics", new MessageMetricsHandler(
@@ -239,6 +277,8 @@ public class NettyAcceptor implements ServerAcceptor {
 				null);
 		
 		String host = props.getProperty(Constants.HOST_PROPERTY_NAME);
+		final FlushSettings flushSettings = new FlushSettings(props,
+				"websocket");
 		initFactory(host, port, new PipelineInitializer() {
 			@Override
 			void init(ChannelPipeline pipeline) {
@@ -258,6 +298,7 @@ public class NettyAcceptor implements ServerAcceptor {
 						timeoutHandler);
 				pipeline.addFirst("bytemetrics", new BytesMetricsHandler(
 						bytesMetricsCollector));
+				flushSettings.addTo(pipeline);
 				pipeline.addLast("decoder", new MQTTDecoder());
 				pipeline.addLast("encoder", new MQTTEncoder());
 				pipeline.addLast("metrics", new MessageMetricsHandler(
@@ -284,6 +325,7 @@ public class NettyAcceptor implements ServerAcceptor {
 		final MoquetteIdleTimoutHandler timeoutHandler = new MoquetteIdleTimoutHandler(
 				null);
 		String host = props.getProperty(Constants.HOST_PROPERTY_NAME);
+		final FlushSettings flushSettings = new FlushSettings(props, "ssl");
 		initFactory(host, sslPort, new PipelineInitializer() {
 			@Override
 			void init(ChannelPipeline pipeline) throws Exception {
@@ -296,6 +338,7 @@ public class NettyAcceptor implements ServerAcceptor {
 				// LogLevel.ERROR));
 				pipeline.addFirst("bytemetrics", new BytesMetricsHandler(
 						bytesMetricsCollector));
+				flushSettings.addTo(pipeline);
 				pipeline.addLast("decoder", new MQTTDecoder());
 				pipeline.addLast("encoder", new MQTTEncoder());
 				pipeline.addLast("metrics", new MessageMetricsHandler(
@@ -319,6 +362,8 @@ public class NettyAcceptor implements ServerAcceptor {
 		final MoquetteIdleTimoutHandler timeoutHandler = new MoquetteIdleTimoutHandler(
 				null);
 		String host = props.getProperty(Constants.HOST_PROPERTY_NAME);
+		final FlushSettings flushSettings = new FlushSettings(props,
+				"secure_websocket");
 		initFactory(host, sslPort, new PipelineInitializer() {
 			@Override
 			void init(ChannelPipeline pipeline) throws Exception {
@@ -339,6 +384,7 @@ public class NettyAcceptor implements ServerAcceptor {
 						timeoutHandler);
 				pipeline.addFirst("bytemetrics", new BytesMetricsHandler(
 						bytesMetricsCollector));
+				flushSettings.addTo(pipeline);
 				pipeline.addLast("decoder", new MQTTDecoder());
 				pipeline.addLast("encoder", new MQTTEncoder());
 				pipeline.addLast("metrics", new MessageMetricsHandler(
@@ -20,6 +20,8 @@ import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
 
+import java.util.List;
+
 import org.eclipse.moquette.server.Constants;
 import org.eclipse.moquette.server.ServerChannel;
 
@@ -33,6 +35,8 @@ public class NettyChannel implements ServerChannel {
 	
 	public static final String					ATTR_USERNAME			= "username";
 	public static final String					ATTR_SESSION_STOLEN		= "sessionStolen";
+	public static final String					ATTR_ACKS				= "acks";
+	public static final String					ATTR_WAITING			= "waitingPublishes";
 	
 	public static final AttributeKey<Object>	ATTR_KEY_KEEPALIVE		= AttributeKey
 																				.valueOf(Constants.KEEP_ALIVE);
@@ -44,6 +48,14 @@ public class NettyChannel implements ServerChannel {
 																				.valueOf(ATTR_USERNAME);
 	public static final AttributeKey<Object>	ATTR_KEY_SESSION_STOLEN	= AttributeKey
 																				.valueOf(ATTR_SESSION_STOLEN);
+	public static final AttributeKey<Object>	ATTR_KEY_ACKS			= AttributeKey
+																				.valueOf(ATTR_ACKS);
+	// the publishes of the channel waiting for room in the publish lanes
+	public static final AttributeKey<Object>	ATTR_KEY_WAITING		= AttributeKey
+																				.valueOf(ATTR_WAITING);
+	// task waiting for the channel to become writable
+	static final AttributeKey<Runnable>			ATTR_KEY_WRITABLE_TASK	= AttributeKey
+																				.valueOf("writableTask");
 	
 	NettyChannel(ChannelHandlerContext ctx) {
 		this.ctx = ctx;
@@ -80,6 +92,60 @@ public class NettyChannel implements ServerChannel {
 		ctx.writeAndFlush(value);
 	}
 	
+	@Override
+	public void writeAll(final List<?> values) {
+		if (ctx.executor().inEventLoop()) {
+			writeNow(values);
+			return;
+		}
+		ctx.executor().execute(new Runnable() {
+			@Override
+			public void run() {
+				writeNow(values);
+			}
+		});
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		ctx.executor().execute(task);
+	}
+	
+	@Override
+	public void setAutoRead(boolean autoRead) {
+		ctx.channel().config().setAutoRead(autoRead);
+	}
+	
+	private void writeNow(List<?> values) {
+		for (Object value : values) {
+			ctx.write(value);
+		}
+		ctx.flush();
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return ctx.channel().isWritable();
+	}
+	
+	@Override
+	public void runWhenWritable(Runnable task) {
+		Attribute<Runnable> attr = ctx.attr(ATTR_KEY_WRITABLE_TASK);
+		attr.set(task);
+		// the channel could have been drained in the meantime
+		if (ctx.channel().isWritable()) {
+			Runnable pending = attr.getAndSet(null);
+			if (pending != null) {
+				ctx.executor().execute(pending);
+			}
+		}
+	}
+	
+	@Override
+	public boolean isActive() {
+		return ctx.channel().isActive();
+	}
+	
 	@Override
 	public String channelId() {
 		return this.ctx.channel().id().asLongText();
@@ -121,6 +121,20 @@ public class NettyMQTTHandler extends ChannelInboundHandlerAdapter {
 		}
 	}
 	
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx)
+			throws Exception {
+		if (ctx.channel().isWritable()) {
+			// resume the writes paused when the outbound buffer was full
+			Runnable task = ctx.attr(NettyChannel.ATTR_KEY_WRITABLE_TASK)
+					.getAndSet(null);
+			if (task != null) {
+				task.run();
+			}
+		}
+		super.channelWritabilityChanged(ctx);
+	}
+	
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 		String clientID = (String) NettyUtils.getAttribute(ctx,
@@ -140,6 +154,12 @@ public class NettyMQTTHandler extends ChannelInboundHandlerAdapter {
 			processor.processConnectionLost(new LostConnectionEvent(clientID,
 					stolen, channelId));
 		}
+		// let the paused writes find out the client is gone and clean up
+		Runnable task = ctx.attr(NettyChannel.ATTR_KEY_WRITABLE_TASK)
+				.getAndSet(null);
+		if (task != null) {
+			task.run();
+		}
 		ctx.close(/* false */);
 	}
 	
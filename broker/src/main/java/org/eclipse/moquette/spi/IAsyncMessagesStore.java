@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi;
+
+import io.netty.util.concurrent.Future;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.spi.IMessagesStore.PublishKey;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+
+/**
+ * Non blocking variant of the IMessagesStore changes that an ack waits for.
+ * The change is visible to the reads of the store on return, the future
+ * completes once it's durable; the PUBACK, PUBREC and PUBCOMP are sent on its
+ * completion, so a slow store never stalls the Netty event loops.
+ * 
+ * The listeners may run on a thread of the store, they must not block.
+ */
+public interface IAsyncMessagesStore {
+	
+	/**
+	 * @see IMessagesStore#storeRetained(String, ByteBuffer,
+	 *      AbstractMessage.QOSType)
+	 */
+	Future<Void> storeRetainedAsync(String topic, ByteBuffer message,
+			AbstractMessage.QOSType qos);
+	
+	Future<Void> cleanRetainedAsync(String topic);
+	
+	Future<Void> storePublishForFutureAsync(PublishEvent evt);
+	
+	Future<Void> removeMessageInSessionAsync(String clientID, long storedID);
+	
+	Future<Void> dropMessagesInSessionAsync(String clientID);
+	
+	Future<Void> persistQoS2MessageAsync(PublishKey publishKey,
+			PublishEvent evt);
+	
+	Future<Void> removeQoS2MessageAsync(PublishKey publishKey);
+}
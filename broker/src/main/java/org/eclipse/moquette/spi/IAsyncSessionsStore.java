@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi;
+
+import io.netty.util.concurrent.Future;
+
+import java.util.Set;
+
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+
+/**
+ * Non blocking variant of the ISessionsStore changes, with the same
+ * completion rules of IAsyncMessagesStore: the CONNACK, SUBACK and UNSUBACK
+ * wait for them.
+ */
+public interface IAsyncSessionsStore {
+	
+	Future<Void> addNewSubscriptionAsync(Subscription newSubscription);
+	
+	Future<Void> removeSubscriptionAsync(String topic, String clientID);
+	
+	Future<Void> wipeSubscriptionsAsync(String clientID);
+	
+	Future<Void> updateSubscriptionsAsync(String clientID,
+			Set<Subscription> subscriptions);
+	
+	Future<Void> createNewSessionAsync(String clientID);
+}
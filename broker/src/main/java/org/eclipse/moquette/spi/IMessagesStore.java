@@ -15,12 +15,17 @@
  */
 package org.eclipse.moquette.spi;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
+
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import org.eclipse.moquette.spi.impl.events.PublishEvent;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -36,12 +41,26 @@ public interface IMessagesStore {
 		private static final long		serialVersionUID	= 1L;
 		final AbstractMessage.QOSType	qos;
 		final byte[]					payload;
+		// reference counted payload, not serialized (see writeReplace)
+		final transient ByteBuf			buffer;
 		final String					topic;
 		
 		public StoredMessage(byte[] message, AbstractMessage.QOSType qos,
 				String topic) {
 			this.qos = qos;
 			this.payload = message;
+			this.buffer = null;
+			this.topic = topic;
+		}
+		
+		/**
+		 * Create a message that owns the buffer, released by release().
+		 * */
+		public StoredMessage(ByteBuf message, AbstractMessage.QOSType qos,
+				String topic) {
+			this.qos = qos;
+			this.payload = null;
+			this.buffer = message;
 			this.topic = topic;
 		}
 		
@@ -49,14 +68,136 @@ public interface IMessagesStore {
 			return qos;
 		}
 		
+		/**
+		 * Read the payload while a reference to it is held, the copy returned
+		 * is valid also once the message is released. Use retainedPayload()
+		 * to send it without copies.
+		 * 
+		 * @return a read only copy of the payload.
+		 * */
 		public ByteBuffer getPayload() {
-			return (ByteBuffer) ByteBuffer.allocate(payload.length)
-					.put(payload).flip();
+			if (buffer != null) {
+				byte[] raw = new byte[buffer.readableBytes()];
+				buffer.getBytes(buffer.readerIndex(), raw);
+				return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+			}
+			return ByteBuffer.wrap(payload).asReadOnlyBuffer();
 		}
 		
 		public String getTopic() {
 			return topic;
 		}
+		
+		/**
+		 * @return a buffer of the payload holding a reference of its own,
+		 *         released by the caller. The message is retained meanwhile.
+		 * */
+		public ByteBuf retainedPayload() {
+			if (buffer != null) {
+				return buffer.retainedDuplicate();
+			}
+			return Unpooled.wrappedBuffer(payload);
+		}
+		
+		/**
+		 * Take a reference to the payload, so that it's not released while in
+		 * use by who searched the message.
+		 * 
+		 * @return false if the payload was already released by the store.
+		 * */
+		public boolean retain() {
+			if (buffer == null) {
+				return true;
+			}
+			try {
+				buffer.retain();
+				return true;
+			} catch (IllegalReferenceCountException ex) {
+				return false;
+			}
+		}
+		
+		/**
+		 * Drop a reference to the payload, freeing it on the last one.
+		 * */
+		public void release() {
+			if (buffer != null) {
+				buffer.release();
+			}
+		}
+		
+		private Object writeReplace() {
+			if (buffer == null) {
+				return this;
+			}
+			byte[] raw = new byte[buffer.readableBytes()];
+			buffer.getBytes(buffer.readerIndex(), raw);
+			return new StoredMessage(raw, qos, topic);
+		}
+	}
+	
+	/**
+	 * The retained messages matching a topic filter, looked up lazily.
+	 * */
+	public interface RetainedCursor extends Iterator<StoredMessage> {
+		
+		/**
+		 * Release the messages looked up and not yet returned, once the caller
+		 * stops iterating before the end.
+		 * */
+		void close();
+	}
+	
+	/**
+	 * Key of a QoS 2 message received and not yet released, the clientID of
+	 * the publisher and the packet identifier, unsigned 16 bits, held as a
+	 * short. Unlike the concatenation of the two it never clashes ("a1" and 23
+	 * vs "a12" and 3) and costs no formatting on the publish path.
+	 * */
+	public static final class PublishKey {
+		
+		private final String	clientID;
+		private final short		packetID;
+		
+		public PublishKey(String clientID, int packetID) {
+			if (clientID == null) {
+				throw new NullPointerException("clientID");
+			}
+			this.clientID = clientID;
+			this.packetID = (short) packetID;
+		}
+		
+		public String getClientID() {
+			return clientID;
+		}
+		
+		public int getPacketID() {
+			return packetID & 0xFFFF;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof PublishKey)) {
+				return false;
+			}
+			PublishKey other = (PublishKey) obj;
+			return packetID == other.packetID
+					&& clientID.equals(other.clientID);
+		}
+		
+		@Override
+		public int hashCode() {
+			// String caches its hash, so this is allocation and loop free
+			return clientID.hashCode() * 31 + packetID;
+		}
+		
+		@Override
+		public String toString() {
+			return clientID + "#" + getPacketID();
+		}
 	}
 	
 	/**
@@ -76,6 +217,20 @@ public interface IMessagesStore {
 	 */
 	Collection<StoredMessage> searchMatching(IMatchingCondition condition);
 	
+	/**
+	 * Return the retained messages whose topic matches the topic filter. The
+	 * messages are shared with the store, retain() them to read the payloads
+	 * while the store could replace them.
+	 */
+	Collection<StoredMessage> searchRetained(String topicFilter);
+	
+	/**
+	 * Iterate lazily the retained messages whose topic matches the topic
+	 * filter, looked up a few at a time while iterating. Each message is
+	 * returned with a reference taken, the caller releases it.
+	 */
+	RetainedCursor retainedCursor(String topicFilter);
+	
 	void storePublishForFuture(PublishEvent evt);
 	
 	/**
@@ -85,7 +240,19 @@ public interface IMessagesStore {
 	 */
 	List<PublishEvent> listMessagesInSession(String clientID);
 	
-	void removeMessageInSession(String clientID, Integer packetID);
+	/**
+	 * Return the oldest max persisted publishes for the given clientID stored
+	 * after the one with the given stored ID, -1 for the first ones, in the
+	 * order they were stored, without removing them.
+	 */
+	List<PublishEvent> listMessagesInSession(String clientID,
+			long afterStoredID, int max);
+	
+	/**
+	 * Remove the persisted publish of the given clientID with the stored ID
+	 * it got when stored, the publishers' messageIDs aren't unique.
+	 * */
+	void removeMessageInSession(String clientID, long storedID);
 	
 	void dropMessagesInSession(String clientID);
 	
@@ -94,17 +261,25 @@ public interface IMessagesStore {
 	void storeTemporaryPublish(PublishEvent evt, String clientID, int packetID);
 	
 	/**
-	 * Return the next valid packetIdentifer for the given client session.
+	 * Return the next valid packetIdentifer for the given client session, it
+	 * stays in flight until released. Return 0 if all the packet identifiers
+	 * of the session are in flight, the caller has to wait for a release.
 	 * */
 	int nextPacketID(String clientID);
 	
+	/**
+	 * Make the packetIdentifier of the client session available again, once
+	 * its delivery is completed.
+	 * */
+	void releasePacketID(String clientID, int packetID);
+	
 	void close();
 	
-	void persistQoS2Message(String publishKey, PublishEvent evt);
+	void persistQoS2Message(PublishKey publishKey, PublishEvent evt);
 	
-	void removeQoS2Message(String publishKey);
+	void removeQoS2Message(PublishKey publishKey);
 	
-	PublishEvent retrieveQoS2Message(String publishKey);
+	PublishEvent retrieveQoS2Message(PublishKey publishKey);
 	
 	void cleanRetained(String topic);
 }
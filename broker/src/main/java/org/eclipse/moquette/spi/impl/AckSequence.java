@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.server.ServerChannel;
+
+/**
+ * The PUBACK, PUBREC and PUBCOMP of a connection, written in the order their
+ * packets were received even when the stores they wait for complete out of
+ * order, as MQTT 3.1.1 section 4.6 requires. An ack takes its place when its
+ * packet is received and is written once it and all the ones before it are
+ * ready.
+ * 
+ * The places may be taken and made ready on any thread, the acks are written
+ * by a task on the event loop of the channel so the writes don't cross.
+ */
+final class AckSequence implements Runnable {
+	
+	/**
+	 * The place of an ack in the sequence.
+	 */
+	final class Ack {
+		// null when the packet is not acked
+		private AbstractMessage	message;
+		private boolean			ready;
+		
+		/**
+		 * Write the ack once the ones before it are written. Only the first
+		 * call counts.
+		 * 
+		 * @param message the ack, null to skip the place when the packet can't
+		 *            be acked.
+		 * */
+		void ready(AbstractMessage message) {
+			synchronized (AckSequence.this) {
+				if (ready) {
+					return;
+				}
+				this.message = message;
+				this.ready = true;
+				if (writeScheduled || acks.peek() != this) {
+					return;
+				}
+				writeScheduled = true;
+			}
+			session.execute(AckSequence.this);
+		}
+	}
+	
+	private final ServerChannel	session;
+	private final Queue<Ack>	acks	= new ArrayDeque<>();
+	private boolean				writeScheduled;
+	
+	AckSequence(ServerChannel session) {
+		this.session = session;
+	}
+	
+	/**
+	 * Take the place of the ack of the packet just received.
+	 * */
+	synchronized Ack next() {
+		Ack ack = new Ack();
+		acks.add(ack);
+		return ack;
+	}
+	
+	/**
+	 * Write the acks ready at the head of the sequence.
+	 * */
+	@Override
+	public void run() {
+		List<AbstractMessage> ready = new ArrayList<>();
+		synchronized (this) {
+			writeScheduled = false;
+			while (!acks.isEmpty() && acks.peek().ready) {
+				AbstractMessage message = acks.poll().message;
+				if (message != null) {
+					ready.add(message);
+				}
+			}
+		}
+		if (!ready.isEmpty()) {
+			session.writeAll(ready);
+		}
+	}
+}
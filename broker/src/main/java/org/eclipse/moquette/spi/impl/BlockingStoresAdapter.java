@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.spi.IAsyncMessagesStore;
+import org.eclipse.moquette.spi.IAsyncSessionsStore;
+import org.eclipse.moquette.spi.IMessagesStore;
+import org.eclipse.moquette.spi.IMessagesStore.PublishKey;
+import org.eclipse.moquette.spi.ISessionsStore;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+
+/**
+ * Async view of stores implementing only the blocking SPI: the changes run
+ * on the calling thread and the returned future is already completed, or
+ * failed with what the store threw.
+ */
+public class BlockingStoresAdapter implements IAsyncMessagesStore,
+		IAsyncSessionsStore {
+	
+	private final IMessagesStore	messagesStore;
+	private final ISessionsStore	sessionsStore;
+	
+	public BlockingStoresAdapter(IMessagesStore messagesStore,
+			ISessionsStore sessionsStore) {
+		this.messagesStore = messagesStore;
+		this.sessionsStore = sessionsStore;
+	}
+	
+	private static Future<Void> done() {
+		return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+	}
+	
+	private static Future<Void> failed(RuntimeException ex) {
+		return ImmediateEventExecutor.INSTANCE.newFailedFuture(ex);
+	}
+	
+	@Override
+	public Future<Void> storeRetainedAsync(String topic, ByteBuffer message,
+			AbstractMessage.QOSType qos) {
+		try {
+			messagesStore.storeRetained(topic, message, qos);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> cleanRetainedAsync(String topic) {
+		try {
+			messagesStore.cleanRetained(topic);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> storePublishForFutureAsync(PublishEvent evt) {
+		try {
+			messagesStore.storePublishForFuture(evt);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> removeMessageInSessionAsync(String clientID,
+			long storedID) {
+		try {
+			messagesStore.removeMessageInSession(clientID, storedID);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> dropMessagesInSessionAsync(String clientID) {
+		try {
+			messagesStore.dropMessagesInSession(clientID);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> persistQoS2MessageAsync(PublishKey publishKey,
+			PublishEvent evt) {
+		try {
+			messagesStore.persistQoS2Message(publishKey, evt);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> removeQoS2MessageAsync(PublishKey publishKey) {
+		try {
+			messagesStore.removeQoS2Message(publishKey);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> addNewSubscriptionAsync(Subscription newSubscription) {
+		try {
+			sessionsStore.addNewSubscription(newSubscription);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> removeSubscriptionAsync(String topic, String clientID) {
+		try {
+			sessionsStore.removeSubscription(topic, clientID);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> wipeSubscriptionsAsync(String clientID) {
+		try {
+			sessionsStore.wipeSubscriptions(clientID);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> updateSubscriptionsAsync(String clientID,
+			Set<Subscription> subscriptions) {
+		try {
+			sessionsStore.updateSubscriptions(clientID, subscriptions);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+	
+	@Override
+	public Future<Void> createNewSessionAsync(String clientID) {
+		try {
+			sessionsStore.createNewSession(clientID);
+			return done();
+		} catch (RuntimeException ex) {
+			return failed(ex);
+		}
+	}
+}
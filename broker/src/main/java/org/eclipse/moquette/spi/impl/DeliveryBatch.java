@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.moquette.server.ServerChannel;
+
+/**
+ * The messages written to the subscribers while a fan-out, or a run of
+ * fan-outs of a publish lane, is in progress in the current thread. They are
+ * grouped by channel and written once the outermost batch is closed, so each
+ * subscriber gets them in order with a single task on its own event loop
+ * instead of a task per message.
+ * 
+ * Bound to a thread, not thread safe.
+ */
+final class DeliveryBatch {
+	
+	private static final ThreadLocal<DeliveryBatch>	CURRENT	= new ThreadLocal<>();
+	
+	// channel -> its messages, in write order
+	private final Map<ServerChannel, List<Object>>	messages	= new IdentityHashMap<>();
+	private int										depth;
+	
+	private DeliveryBatch() {
+	}
+	
+	private static DeliveryBatch current() {
+		DeliveryBatch batch = CURRENT.get();
+		if (batch == null) {
+			batch = new DeliveryBatch();
+			CURRENT.set(batch);
+		}
+		return batch;
+	}
+	
+	/**
+	 * Open a batch in the current thread, or nest in the one already open.
+	 */
+	static void open() {
+		current().depth++;
+	}
+	
+	/**
+	 * Close the batch opened by the current thread, writing its messages if
+	 * it's the outermost one.
+	 */
+	static void close() {
+		DeliveryBatch batch = current();
+		if (--batch.depth == 0) {
+			batch.writeAll();
+		}
+	}
+	
+	/**
+	 * Write the message to the session, in the batch of the current thread if
+	 * one is open.
+	 */
+	static void write(ServerChannel session, Object message) {
+		DeliveryBatch batch = current();
+		if (batch.depth == 0) {
+			session.write(message);
+			return;
+		}
+		List<Object> queued = batch.messages.get(session);
+		if (queued == null) {
+			queued = new ArrayList<>(2);
+			batch.messages.put(session, queued);
+		}
+		queued.add(message);
+	}
+	
+	private void writeAll() {
+		try {
+			for (Map.Entry<ServerChannel, List<Object>> entry : messages
+					.entrySet()) {
+				entry.getKey().writeAll(entry.getValue());
+			}
+		} finally {
+			messages.clear();
+		}
+	}
+}
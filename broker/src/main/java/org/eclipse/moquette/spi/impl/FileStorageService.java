@@ -0,0 +1,685 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import io.netty.util.concurrent.Future;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.spi.IMatchingCondition;
+import org.eclipse.moquette.spi.IMessagesStore.PublishKey;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.storage.Journal;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable store, keeps the state in memory like MemoryStorageService and
+ * appends every change to a Journal in the given directory. A change is
+ * applied and appended under a single lock, so the journal order is the
+ * order of the changes, then the caller waits for the group commit that
+ * syncs it. When a journal segment is full the whole state is written as a
+ * snapshot by the journal writer thread, and on start the state is rebuilt replaying the last snapshot and
+ * the segments following it. The async variants of the changes don't wait
+ * for the sync, their future completes with the group commit.
+ * 
+ * The packet identifiers and the QoS 2 publishes in flight are not
+ * persisted, the connections that used them don't survive a restart.
+ */
+public class FileStorageService extends MemoryStorageService {
+	
+	private static final Logger		LOG						= LoggerFactory
+																	.getLogger(FileStorageService.class);
+	
+	private static final Charset	UTF8					= Charset
+																	.forName("UTF-8");
+	
+	// journal record types
+	private static final byte		CREATE_SESSION			= 1;
+	private static final byte		ADD_SUBSCRIPTION		= 2;
+	private static final byte		REMOVE_SUBSCRIPTION		= 3;
+	private static final byte		WIPE_SUBSCRIPTIONS		= 4;
+	private static final byte		UPDATE_SUBSCRIPTIONS	= 5;
+	private static final byte		STORE_RETAINED			= 6;
+	private static final byte		CLEAN_RETAINED			= 7;
+	private static final byte		STORE_PUBLISH			= 8;
+	private static final byte		REMOVE_PUBLISH			= 9;
+	private static final byte		DROP_PUBLISHES			= 10;
+	private static final byte		PERSIST_QOS2			= 11;
+	private static final byte		REMOVE_QOS2				= 12;
+	
+	public static final long		DEFAULT_SEGMENT_SIZE	= 64 * 1024 * 1024;
+	
+	private final File				directory;
+	private long					segmentSize				= DEFAULT_SEGMENT_SIZE;
+	private Journal					journal;
+	// orders the changes of the state as their records in the journal
+	private final Object			journalLock				= new Object();
+	
+	public FileStorageService(File directory) {
+		this.directory = directory;
+	}
+	
+	/**
+	 * Set the bytes of journal written after that a snapshot of the state is
+	 * taken and the older journal is deleted.
+	 * */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+	
+	@Override
+	public void initStore() {
+		super.initStore();
+		journal = new Journal(directory, segmentSize);
+		try {
+			journal.open(new Journal.RecordHandler() {
+				@Override
+				public void replay(byte[] record) throws IOException {
+					apply(record);
+				}
+			});
+		} catch (IOException ex) {
+			LOG.error(null, ex);
+			throw new RuntimeException("Can't open the store in " + directory,
+					ex);
+		}
+		LOG.info("Recovered the store in {}", directory);
+	}
+	
+	@Override
+	public void close() {
+		if (journal != null) {
+			journal.close();
+		}
+		super.close();
+	}
+	
+	@Override
+	public void storeRetained(String topic, ByteBuffer message,
+			AbstractMessage.QOSType qos) {
+		journal.sync(logStoreRetained(topic, message, qos));
+	}
+	
+	@Override
+	public Future<Void> storeRetainedAsync(String topic, ByteBuffer message,
+			AbstractMessage.QOSType qos) {
+		return journal.synced(logStoreRetained(topic, message, qos));
+	}
+	
+	private long logStoreRetained(String topic, ByteBuffer message,
+			AbstractMessage.QOSType qos) {
+		byte[] record = new Record(STORE_RETAINED).string(topic).qos(qos)
+				.payload(message).toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.storeRetained(topic, message, qos);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void cleanRetained(String topic) {
+		journal.sync(logCleanRetained(topic));
+	}
+	
+	@Override
+	public Future<Void> cleanRetainedAsync(String topic) {
+		return journal.synced(logCleanRetained(topic));
+	}
+	
+	private long logCleanRetained(String topic) {
+		byte[] record = new Record(CLEAN_RETAINED).string(topic).toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.cleanRetained(topic);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void storePublishForFuture(PublishEvent evt) {
+		journal.sync(logStorePublishForFuture(evt));
+	}
+	
+	@Override
+	public Future<Void> storePublishForFutureAsync(PublishEvent evt) {
+		return journal.synced(logStorePublishForFuture(evt));
+	}
+	
+	private long logStorePublishForFuture(PublishEvent evt) {
+		Record record = new Record(STORE_PUBLISH).publish(evt);
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.storePublishForFuture(evt);
+			// the replay restores the stored ID the removals refer to
+			return journal.append(record.storedID(evt.getStoredID())
+					.toByteArray());
+		}
+	}
+	
+	@Override
+	public void removeMessageInSession(String clientID, long storedID) {
+		journal.sync(logRemoveMessageInSession(clientID, storedID));
+	}
+	
+	@Override
+	public Future<Void> removeMessageInSessionAsync(String clientID,
+			long storedID) {
+		return journal.synced(logRemoveMessageInSession(clientID, storedID));
+	}
+	
+	private long logRemoveMessageInSession(String clientID, long storedID) {
+		byte[] record = new Record(REMOVE_PUBLISH).string(clientID)
+				.storedID(storedID).toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.removeMessageInSession(clientID, storedID);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void dropMessagesInSession(String clientID) {
+		journal.sync(logDropMessagesInSession(clientID));
+	}
+	
+	@Override
+	public Future<Void> dropMessagesInSessionAsync(String clientID) {
+		return journal.synced(logDropMessagesInSession(clientID));
+	}
+	
+	private long logDropMessagesInSession(String clientID) {
+		byte[] record = new Record(DROP_PUBLISHES).string(clientID)
+				.toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.dropMessagesInSession(clientID);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void persistQoS2Message(PublishKey publishKey, PublishEvent evt) {
+		journal.sync(logPersistQoS2Message(publishKey, evt));
+	}
+	
+	@Override
+	public Future<Void> persistQoS2MessageAsync(PublishKey publishKey, PublishEvent evt) {
+		return journal.synced(logPersistQoS2Message(publishKey, evt));
+	}
+	
+	private long logPersistQoS2Message(PublishKey publishKey, PublishEvent evt) {
+		byte[] record = new Record(PERSIST_QOS2).key(publishKey).publish(evt)
+				.toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.persistQoS2Message(publishKey, evt);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void removeQoS2Message(PublishKey publishKey) {
+		journal.sync(logRemoveQoS2Message(publishKey));
+	}
+	
+	@Override
+	public Future<Void> removeQoS2MessageAsync(PublishKey publishKey) {
+		return journal.synced(logRemoveQoS2Message(publishKey));
+	}
+	
+	private long logRemoveQoS2Message(PublishKey publishKey) {
+		byte[] record = new Record(REMOVE_QOS2).key(publishKey).toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.removeQoS2Message(publishKey);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void createNewSession(String clientID) {
+		journal.sync(logCreateNewSession(clientID));
+	}
+	
+	@Override
+	public Future<Void> createNewSessionAsync(String clientID) {
+		return journal.synced(logCreateNewSession(clientID));
+	}
+	
+	private long logCreateNewSession(String clientID) {
+		byte[] record = new Record(CREATE_SESSION).string(clientID)
+				.toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.createNewSession(clientID);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void addNewSubscription(Subscription newSubscription) {
+		journal.sync(logAddNewSubscription(newSubscription));
+	}
+	
+	@Override
+	public Future<Void> addNewSubscriptionAsync(Subscription newSubscription) {
+		return journal.synced(logAddNewSubscription(newSubscription));
+	}
+	
+	private long logAddNewSubscription(Subscription newSubscription) {
+		byte[] record = new Record(ADD_SUBSCRIPTION).subscription(
+				newSubscription).toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.addNewSubscription(newSubscription);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void removeSubscription(String topic, String clientID) {
+		journal.sync(logRemoveSubscription(topic, clientID));
+	}
+	
+	@Override
+	public Future<Void> removeSubscriptionAsync(String topic, String clientID) {
+		return journal.synced(logRemoveSubscription(topic, clientID));
+	}
+	
+	private long logRemoveSubscription(String topic, String clientID) {
+		byte[] record = new Record(REMOVE_SUBSCRIPTION).string(topic)
+				.string(clientID).toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.removeSubscription(topic, clientID);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void wipeSubscriptions(String clientID) {
+		journal.sync(logWipeSubscriptions(clientID));
+	}
+	
+	@Override
+	public Future<Void> wipeSubscriptionsAsync(String clientID) {
+		return journal.synced(logWipeSubscriptions(clientID));
+	}
+	
+	private long logWipeSubscriptions(String clientID) {
+		byte[] record = new Record(WIPE_SUBSCRIPTIONS).string(clientID)
+				.toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.wipeSubscriptions(clientID);
+			return journal.append(record);
+		}
+	}
+	
+	@Override
+	public void updateSubscriptions(String clientID,
+			Set<Subscription> subscriptions) {
+		journal.sync(logUpdateSubscriptions(clientID, subscriptions));
+	}
+	
+	@Override
+	public Future<Void> updateSubscriptionsAsync(String clientID,
+			Set<Subscription> subscriptions) {
+		return journal.synced(logUpdateSubscriptions(clientID, subscriptions));
+	}
+	
+	private long logUpdateSubscriptions(String clientID,
+			Set<Subscription> subscriptions) {
+		Record record = new Record(UPDATE_SUBSCRIPTIONS).string(clientID)
+				.integer(subscriptions.size());
+		for (Subscription subscription : subscriptions) {
+			record.subscription(subscription);
+		}
+		byte[] bytes = record.toByteArray();
+		synchronized (journalLock) {
+			snapshotIfNeeded();
+			super.updateSubscriptions(clientID, subscriptions);
+			return journal.append(bytes);
+		}
+	}
+	
+	/**
+	 * Take a snapshot if the journal segment is full, called holding the
+	 * journal lock before a change.
+	 * */
+	private void snapshotIfNeeded() {
+		if (journal.isSnapshotNeeded()) {
+			journal.snapshot(new StateCopy());
+		}
+	}
+	
+	/**
+	 * Matches the retained messages of all the topics.
+	 */
+	private static final class AllTopics implements IMatchingCondition {
+		@Override
+		public boolean match(String key) {
+			return true;
+		}
+	}
+	
+	/**
+	 * The references to the current state, copied holding the journal lock
+	 * and serialized by the journal writer thread, so the change that fills a
+	 * segment doesn't pay for the whole state. The stored events and the
+	 * subscriptions aren't modified once stored, the retained messages are
+	 * retained until serialized.
+	 */
+	private final class StateCopy implements Journal.SnapshotSource {
+		
+		private final List<String>						clientIDs	= new ArrayList<>();
+		private final Map<String, Set<Subscription>>	sessions	= new HashMap<>();
+		private final Map<String, List<PublishEvent>>	stored		= new HashMap<>();
+		private final List<StoredMessage>				retained	= new ArrayList<>();
+		private final Map<PublishKey, PublishEvent>		qos2;
+		
+		StateCopy() {
+			for (String clientID : clientIDs()) {
+				clientIDs.add(clientID);
+				Set<Subscription> subscriptions = getSubscriptions(clientID);
+				if (subscriptions != null) {
+					sessions.put(clientID, new HashSet<>(subscriptions));
+				}
+				stored.put(clientID, listMessagesInSession(clientID));
+			}
+			for (StoredMessage message : searchMatching(new AllTopics())) {
+				if (message.retain()) {
+					retained.add(message);
+				}
+			}
+			qos2 = new HashMap<>(qos2Messages());
+		}
+		
+		@Override
+		public List<byte[]> records() {
+			List<byte[]> records = new ArrayList<>();
+			try {
+				for (String clientID : clientIDs) {
+					Set<Subscription> subscriptions = sessions.get(clientID);
+					if (subscriptions != null) {
+						records.add(new Record(CREATE_SESSION).string(clientID)
+								.toByteArray());
+						for (Subscription subscription : subscriptions) {
+							records.add(new Record(ADD_SUBSCRIPTION)
+									.subscription(subscription).toByteArray());
+						}
+					}
+					for (PublishEvent evt : stored.get(clientID)) {
+						records.add(new Record(STORE_PUBLISH).publish(evt)
+								.storedID(evt.getStoredID()).toByteArray());
+					}
+				}
+				for (StoredMessage message : retained) {
+					records.add(new Record(STORE_RETAINED)
+							.string(message.getTopic()).qos(message.getQos())
+							.payload(message.getPayload()).toByteArray());
+				}
+			} finally {
+				for (StoredMessage message : retained) {
+					message.release();
+				}
+			}
+			for (Map.Entry<PublishKey, PublishEvent> entry : qos2.entrySet()) {
+				records.add(new Record(PERSIST_QOS2).key(entry.getKey())
+						.publish(entry.getValue()).toByteArray());
+			}
+			return records;
+		}
+	}
+	
+	/**
+	 * Apply a record of the journal to the state in memory.
+	 * */
+	private void apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record));
+		byte type = in.readByte();
+		switch (type) {
+			case CREATE_SESSION:
+				super.createNewSession(readString(in));
+				break;
+			case ADD_SUBSCRIPTION:
+				super.addNewSubscription(readSubscription(in));
+				break;
+			case REMOVE_SUBSCRIPTION:
+				String topic = readString(in);
+				super.removeSubscription(topic, readString(in));
+				break;
+			case WIPE_SUBSCRIPTIONS:
+				super.wipeSubscriptions(readString(in));
+				break;
+			case UPDATE_SUBSCRIPTIONS:
+				String clientID = readString(in);
+				int count = readInteger(in);
+				Set<Subscription> subscriptions = new HashSet<>();
+				for (int i = 0; i < count; i++) {
+					subscriptions.add(readSubscription(in));
+				}
+				super.updateSubscriptions(clientID, subscriptions);
+				break;
+			case STORE_RETAINED:
+				String retainedTopic = readString(in);
+				AbstractMessage.QOSType qos = AbstractMessage.QOSType
+						.valueOf(in.readByte());
+				super.storeRetained(retainedTopic, readPayload(in), qos);
+				break;
+			case CLEAN_RETAINED:
+				super.cleanRetained(readString(in));
+				break;
+			case STORE_PUBLISH:
+				PublishEvent stored = readPublish(in);
+				stored.setStoredID(readLong(in));
+				super.storePublishForFuture(stored);
+				break;
+			case REMOVE_PUBLISH:
+				String publishClientID = readString(in);
+				super.removeMessageInSession(publishClientID, readLong(in));
+				break;
+			case DROP_PUBLISHES:
+				super.dropMessagesInSession(readString(in));
+				break;
+			case PERSIST_QOS2:
+				PublishKey publishKey = readKey(in);
+				super.persistQoS2Message(publishKey, readPublish(in));
+				break;
+			case REMOVE_QOS2:
+				super.removeQoS2Message(readKey(in));
+				break;
+			default:
+				throw new IOException("Unknown journal record type " + type);
+		}
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] raw = new byte[length];
+		in.readFully(raw);
+		return new String(raw, UTF8);
+	}
+	
+	private static Integer readInteger(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readInt() : null;
+	}
+	
+	private static Long readLong(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readLong() : null;
+	}
+	
+	private static PublishKey readKey(DataInputStream in) throws IOException {
+		String clientID = readString(in);
+		return new PublishKey(clientID, in.readUnsignedShort());
+	}
+	
+	private static ByteBuffer readPayload(DataInputStream in)
+			throws IOException {
+		byte[] raw = new byte[in.readInt()];
+		in.readFully(raw);
+		return ByteBuffer.wrap(raw);
+	}
+	
+	private static PublishEvent readPublish(DataInputStream in)
+			throws IOException {
+		String topic = readString(in);
+		AbstractMessage.QOSType qos = AbstractMessage.QOSType.valueOf(in
+				.readByte());
+		ByteBuffer payload = readPayload(in);
+		boolean retain = in.readBoolean();
+		String clientID = readString(in);
+		return new PublishEvent(topic, qos, payload, retain, clientID,
+				readInteger(in));
+	}
+	
+	private static Subscription readSubscription(DataInputStream in)
+			throws IOException {
+		String clientID = readString(in);
+		String topicFilter = readString(in);
+		AbstractMessage.QOSType qos = AbstractMessage.QOSType.valueOf(in
+				.readByte());
+		Subscription subscription = new Subscription(clientID, topicFilter, qos,
+				in.readBoolean());
+		// no client is connected yet when the store is loaded
+		subscription.setActive(false);
+		return subscription;
+	}
+	
+	/**
+	 * Builds a journal record, writing to memory can't fail.
+	 */
+	private static final class Record {
+		
+		private final ByteArrayOutputStream	bytes	= new ByteArrayOutputStream();
+		private final DataOutputStream		out		= new DataOutputStream(
+															bytes);
+		
+		Record(byte type) {
+			bytes.write(type);
+		}
+		
+		Record string(String value) {
+			try {
+				if (value == null) {
+					out.writeInt(-1);
+				} else {
+					byte[] raw = value.getBytes(UTF8);
+					out.writeInt(raw.length);
+					out.write(raw);
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return this;
+		}
+		
+		Record integer(Integer value) {
+			try {
+				out.writeBoolean(value != null);
+				if (value != null) {
+					out.writeInt(value);
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return this;
+		}
+		
+		Record storedID(Long value) {
+			try {
+				out.writeBoolean(value != null);
+				if (value != null) {
+					out.writeLong(value);
+				}
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return this;
+		}
+		
+		Record key(PublishKey key) {
+			string(key.getClientID());
+			try {
+				out.writeShort(key.getPacketID());
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return this;
+		}
+		
+		Record qos(AbstractMessage.QOSType qos) {
+			bytes.write(qos.byteValue());
+			return this;
+		}
+		
+		Record flag(boolean value) {
+			bytes.write(value ? 1 : 0);
+			return this;
+		}
+		
+		Record payload(ByteBuffer payload) {
+			ByteBuffer view = payload.duplicate();
+			byte[] raw = new byte[view.remaining()];
+			view.get(raw);
+			try {
+				out.writeInt(raw.length);
+				out.write(raw);
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return this;
+		}
+		
+		Record publish(PublishEvent evt) {
+			return string(evt.getTopic()).qos(evt.getQos())
+					.payload(evt.getMessage()).flag(evt.isRetain())
+					.string(evt.getClientID()).integer(evt.getMessageID());
+		}
+		
+		Record subscription(Subscription subscription) {
+			return string(subscription.getClientId())
+					.string(subscription.getTopicFilter())
+					.qos(subscription.getRequestedQos())
+					.flag(subscription.isCleanSession());
+		}
+		
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import io.netty.util.Timeout;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.eclipse.moquette.parser.netty.SharedPublish;
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.spi.IMessagesStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The QoS 1 and 2 publishes sent to a client session and not yet acked, at
+ * most maxInflight of them; the following ones queue, in order, until an ack
+ * makes room. Kept across the connections of a not clean session, so the
+ * publishes in flight are sent again on reconnect.
+ * 
+ * Not thread safe, the users synchronize on the window.
+ */
+class InflightWindow {
+	
+	private static final Logger	LOG	= LoggerFactory
+											.getLogger(InflightWindow.class);
+	
+	/**
+	 * A publish to send, or sent and waiting for the ack.
+	 */
+	static final class Publish {
+		
+		// encoded once, shared with the other subscribers of the publish, the
+		// window holds a reference to it till the publish leaves
+		final SharedPublish				shared;
+		final AbstractMessage.QOSType	qos;
+		final boolean					retained;
+		// of the stored message replayed by the publish, removed once acked
+		final Long						storedID;
+		int								packetID;
+		// QoS 2 publish acked by a PUBREC, waits for the PUBCOMP of the PUBREL
+		boolean							released;
+		Timeout							retry;
+		
+		Publish(SharedPublish shared, AbstractMessage.QOSType qos,
+				boolean retained, Long storedID) {
+			this.shared = shared.retain();
+			this.qos = qos;
+			this.retained = retained;
+			this.storedID = storedID;
+		}
+	}
+	
+	private final String				clientID;
+	private final int					maxInflight;
+	private final Map<Integer, Publish>	inflight		= new LinkedHashMap<>();
+	private final Queue<Publish>		pending			= new ArrayDeque<>();
+	// the last stored message replayed, the next replay starts after it
+	private long						lastReplayed	= -1;
+	
+	InflightWindow(String clientID, int maxInflight) {
+		this.clientID = clientID;
+		this.maxInflight = maxInflight;
+	}
+	
+	void queue(Publish publish) {
+		pending.add(publish);
+	}
+	
+	/**
+	 * Move the first queued publish in flight, if there is room for it and a
+	 * free packet ID.
+	 * 
+	 * @return the publish to send, null if it has to wait for an ack.
+	 * */
+	Publish next(IMessagesStore messagesStore) {
+		if (pending.isEmpty() || inflight.size() >= maxInflight) {
+			return null;
+		}
+		int packetID = messagesStore.nextPacketID(clientID);
+		if (packetID == 0) {
+			LOG.warn(
+					"All the PacketIdentifiers of client <{}> are in flight, queueing its publishes",
+					clientID);
+			return null;
+		}
+		Publish publish = pending.poll();
+		publish.packetID = packetID;
+		inflight.put(packetID, publish);
+		return publish;
+	}
+	
+	/**
+	 * Remove the publish acked by PUBACK or PUBCOMP from the window.
+	 * 
+	 * @return the publish, null if it wasn't in flight.
+	 * */
+	Publish acked(int packetID) {
+		Publish publish = inflight.remove(packetID);
+		if (publish != null) {
+			if (publish.retry != null) {
+				publish.retry.cancel();
+			}
+			publish.shared.release();
+		}
+		return publish;
+	}
+	
+	/**
+	 * Mark the QoS 2 publish acked by a PUBREC, from now on it's the PUBREL to
+	 * be sent again.
+	 * */
+	void released(int packetID) {
+		Publish publish = inflight.get(packetID);
+		if (publish != null) {
+			publish.released = true;
+		}
+	}
+	
+	boolean isInflight(Publish publish) {
+		return inflight.get(publish.packetID) == publish;
+	}
+	
+	/**
+	 * @return the publishes in flight, in the order they were sent.
+	 * */
+	List<Publish> inflight() {
+		return new ArrayList<>(inflight.values());
+	}
+	
+	int pendingSize() {
+		return pending.size();
+	}
+	
+	long lastReplayed() {
+		return lastReplayed;
+	}
+	
+	void replayed(long storedID) {
+		lastReplayed = storedID;
+	}
+	
+	/**
+	 * Drop all the publishes, cancelling their retries.
+	 * */
+	void clear() {
+		for (Publish publish : inflight.values()) {
+			if (publish.retry != null) {
+				publish.retry.cancel();
+			}
+			publish.shared.release();
+		}
+		for (Publish publish : pending) {
+			publish.shared.release();
+		}
+		inflight.clear();
+		pending.clear();
+	}
+}
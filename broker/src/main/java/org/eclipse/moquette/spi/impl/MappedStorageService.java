@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.io.File;
+
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.storage.MappedSegments;
+import org.eclipse.moquette.spi.impl.storage.OfflineQueue;
+import org.eclipse.moquette.spi.impl.storage.OfflineQueuesMetrics;
+
+/**
+ * Store that keeps the payloads of the offline queues out of the heap, in the
+ * memory mapped segments of the given directory. The queues hold only the
+ * publish events, whose message is a read only view of the mapped bytes, so
+ * listing and replaying them reads the payloads from the mapped region with
+ * no byte[] copy. A segment file is deleted once all the messages stored in
+ * it are acked or dropped.
+ * 
+ * Like MemoryStorageService nothing survives a restart.
+ */
+public class MappedStorageService extends MemoryStorageService {
+	
+	public static final int			DEFAULT_SEGMENT_SIZE	= 16 * 1024 * 1024;
+	
+	private final MappedSegments	segments;
+	
+	/**
+	 * A stored publish with its payload in a segment.
+	 */
+	private static final class MappedPublishEvent extends PublishEvent {
+		private final MappedSegments.Payload	payload;
+		
+		MappedPublishEvent(PublishEvent evt, MappedSegments.Payload payload) {
+			super(evt.getTopic(), evt.getQos(), payload.buffer(), evt
+					.isRetain(), evt.getClientID(), evt.getMessageID());
+			setStoredID(evt.getStoredID());
+			this.payload = payload;
+		}
+	}
+	
+	public MappedStorageService(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	public MappedStorageService(File directory, int segmentSize) {
+		this.segments = new MappedSegments(directory, segmentSize);
+	}
+	
+	@Override
+	public void storePublishForFuture(PublishEvent evt) {
+		super.storePublishForFuture(new MappedPublishEvent(evt, segments
+				.append(evt.getMessage())));
+	}
+	
+	@Override
+	protected OfflineQueue newOfflineQueue(int maxMessages, long maxBytes,
+			OfflineQueue.OverflowPolicy policy, OfflineQueuesMetrics metrics) {
+		return new OfflineQueue(maxMessages, maxBytes, policy, metrics) {
+			@Override
+			protected void discarded(PublishEvent evt) {
+				segments.release(((MappedPublishEvent) evt).payload);
+			}
+		};
+	}
+	
+	/**
+	 * @return the count of the segment files currently mapped.
+	 * */
+	public int segments() {
+		return segments.segments();
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		segments.close();
+	}
+}
@@ -15,51 +15,207 @@
  */
 package org.eclipse.moquette.spi.impl;
 
-import static org.eclipse.moquette.spi.impl.Utils.defaultGet;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.spi.IAsyncMessagesStore;
+import org.eclipse.moquette.spi.IAsyncSessionsStore;
 import org.eclipse.moquette.spi.IMatchingCondition;
 import org.eclipse.moquette.spi.IMessagesStore;
+import org.eclipse.moquette.spi.IMessagesStore.PublishKey;
 import org.eclipse.moquette.spi.ISessionsStore;
 import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.storage.OfflineQueue;
+import org.eclipse.moquette.spi.impl.storage.OfflineQueuesMetrics;
+import org.eclipse.moquette.spi.impl.storage.PacketIDAllocator;
+import org.eclipse.moquette.spi.impl.storage.RetainedMessagesTree;
 import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * In memory store, safe to be used by all the Netty worker threads. The state
+ * of each client is kept in its own ClientSession, reached through a
+ * concurrent map keyed by clientID, so operations on different clients never
+ * contend on a lock; only the retained messages, shared by all, have a global
+ * read write lock.
+ * 
+ * The async variants of the changes apply them in place and return a future
+ * already completed, its listeners run on the calling thread.
  */
-public class MemoryStorageService implements IMessagesStore, ISessionsStore {
+public class MemoryStorageService implements IMessagesStore, ISessionsStore,
+		IAsyncMessagesStore, IAsyncSessionsStore {
+	
+	/**
+	 * The state of a client, the compound operations synchronize on it.
+	 */
+	private static final class ClientSession {
+		// null if the client has no session
+		volatile Set<Subscription>			subscriptions;
+		final OfflineQueue					storedMessages;
+		// QoS 2 publishes in flight, by packetID in sending order
+		final Map<Integer, PublishEvent>	inflight		= new LinkedHashMap<>();
+		final PacketIDAllocator				packetIDs		= new PacketIDAllocator();
+		
+		ClientSession(OfflineQueue storedMessages) {
+			this.storedMessages = storedMessages;
+		}
+	}
 	
-	private Map<String, Set<Subscription>>	persistentSubscriptions	= new HashMap<>();
-	private Map<String, StoredMessage>		retainedStore			= new HashMap<>();
-	// TODO move in a multimap because only Qos1 and QoS2 are stored here and
-	// they have messageID(key of secondary map)
-	private Map<String, List<PublishEvent>>	persistentMessageStore	= new HashMap<>();
-	private Map<String, PublishEvent>		inflightStore			= new HashMap<>();
-	private Map<String, Set<Integer>>		inflightIDs				= new HashMap<>();
-	private Map<String, PublishEvent>		qos2Store				= new HashMap<>();
+	private final ConcurrentMap<String, ClientSession>		sessions		= new ConcurrentHashMap<>();
+	private RetainedMessagesTree							retainedStore	= new RetainedMessagesTree();
+	private final ReadWriteLock								retainedLock	= new ReentrantReadWriteLock();
+	private boolean											retainedOffHeap;
+	private final ConcurrentMap<PublishKey, PublishEvent>	qos2Store		= new ConcurrentHashMap<>();
+	private int												offlineMaxMessages;
+	private long											offlineMaxBytes;
+	private OfflineQueue.OverflowPolicy						offlinePolicy	= OfflineQueue.OverflowPolicy.DROP_OLDEST;
+	private final OfflineQueuesMetrics						offlineMetrics	= new OfflineQueuesMetrics();
 	
-	private static final Logger				LOG						= LoggerFactory
-																			.getLogger(MemoryStorageService.class);
+	private static final Logger							LOG				= LoggerFactory
+																				.getLogger(MemoryStorageService.class);
+	
+	private static final Future<Void>					DONE			= ImmediateEventExecutor.INSTANCE
+																				.newSucceededFuture(null);
 	
 	@Override
 	public void initStore() {
 		//
 	}
 	
+	/**
+	 * @return the state of the client, created if missing.
+	 * */
+	private ClientSession session(String clientID) {
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			ClientSession newSession = new ClientSession(newOfflineQueue(
+					offlineMaxMessages, offlineMaxBytes, offlinePolicy,
+					offlineMetrics));
+			session = sessions.putIfAbsent(clientID, newSession);
+			if (session == null) {
+				session = newSession;
+			}
+		}
+		return session;
+	}
+	
+	/**
+	 * @return the queue of the messages stored for a client while offline.
+	 * */
+	protected OfflineQueue newOfflineQueue(int maxMessages, long maxBytes,
+			OfflineQueue.OverflowPolicy policy, OfflineQueuesMetrics metrics) {
+		return new OfflineQueue(maxMessages, maxBytes, policy, metrics);
+	}
+	
+	private static Set<Subscription> newSubscriptionsSet() {
+		return Collections
+				.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+	}
+	
+	/**
+	 * Keep the payloads of the retained messages in direct buffers, out of the
+	 * heap.
+	 * */
+	public void setRetainedOffHeap(boolean retainedOffHeap) {
+		this.retainedOffHeap = retainedOffHeap;
+	}
+	
+	/**
+	 * Bound the messages stored for each offline client, the limits apply to
+	 * the clients seen from now on.
+	 * 
+	 * @param maxMessages
+	 *            the messages in each queue, 0 for no limit.
+	 * @param maxBytes
+	 *            the payload bytes in each queue, 0 for no limit.
+	 * @param policy
+	 *            the messages dropped when a queue is full.
+	 * */
+	public void setOfflineQueueLimits(int maxMessages, long maxBytes,
+			OfflineQueue.OverflowPolicy policy) {
+		this.offlineMaxMessages = maxMessages;
+		this.offlineMaxBytes = maxBytes;
+		this.offlinePolicy = policy;
+	}
+	
+	/**
+	 * @return the depth of all the offline queues.
+	 * */
+	public OfflineQueuesMetrics getOfflineQueuesMetrics() {
+		return offlineMetrics;
+	}
+	
+	/**
+	 * @return the messages stored for the client.
+	 * */
+	public int offlineQueueSize(String clientID) {
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return 0;
+		}
+		synchronized (session) {
+			return session.storedMessages.size();
+		}
+	}
+	
+	/**
+	 * @return the payload bytes of the messages stored for the client.
+	 * */
+	public long offlineQueueBytes(String clientID) {
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return 0;
+		}
+		synchronized (session) {
+			return session.storedMessages.bytes();
+		}
+	}
+	
+	/**
+	 * @return the clientIDs of the clients with some state in the store.
+	 * */
+	Set<String> clientIDs() {
+		return sessions.keySet();
+	}
+	
+	/**
+	 * @return the QoS 2 messages received and not yet released, by
+	 *         publishKey.
+	 * */
+	Map<PublishKey, PublishEvent> qos2Messages() {
+		return qos2Store;
+	}
+	
 	@Override
 	public void cleanRetained(String topic) {
-		retainedStore.remove(topic);
+		StoredMessage removed;
+		retainedLock.writeLock().lock();
+		try {
+			removed = retainedStore.remove(topic);
+		} finally {
+			retainedLock.writeLock().unlock();
+		}
+		release(removed);
 	}
 	
 	@Override
@@ -67,95 +223,225 @@ public class MemoryStorageService implements IMessagesStore, ISessionsStore {
 			AbstractMessage.QOSType qos) {
 		if (!message.hasRemaining()) {
 			// clean the message from topic
-			retainedStore.remove(topic);
-		} else {
-			// store the message to the topic
-			byte[] raw = new byte[message.remaining()];
-			message.get(raw);
-			retainedStore.put(topic, new StoredMessage(raw, qos, topic));
+			cleanRetained(topic);
+			return;
+		}
+		// store the message to the topic, the only copy of the payload
+		ByteBuf raw = retainedOffHeap ? Unpooled.directBuffer(message
+				.remaining()) : Unpooled.buffer(message.remaining());
+		raw.writeBytes(message);
+		StoredMessage replaced;
+		retainedLock.writeLock().lock();
+		try {
+			replaced = retainedStore.put(topic, new StoredMessage(raw, qos,
+					topic));
+		} finally {
+			retainedLock.writeLock().unlock();
+		}
+		release(replaced);
+	}
+	
+	private static void release(StoredMessage message) {
+		if (message != null) {
+			message.release();
 		}
 	}
 	
 	@Override
 	public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
-		LOG.debug(
-				"searchMatching scanning all retained messages, presents are {}",
-				retainedStore.size());
-		
 		List<StoredMessage> results = new ArrayList<StoredMessage>();
 		
-		for (Map.Entry<String, StoredMessage> entry : retainedStore.entrySet()) {
-			StoredMessage storedMsg = entry.getValue();
-			if (condition.match(entry.getKey())) {
-				results.add(storedMsg);
+		retainedLock.readLock().lock();
+		try {
+			LOG.debug(
+					"searchMatching scanning all retained messages, presents are {}",
+					retainedStore.size());
+			for (StoredMessage storedMsg : retainedStore.values()) {
+				if (condition.match(storedMsg.getTopic())) {
+					results.add(storedMsg);
+				}
 			}
+		} finally {
+			retainedLock.readLock().unlock();
 		}
 		
 		return results;
 	}
 	
+	@Override
+	public Collection<StoredMessage> searchRetained(String topicFilter) {
+		retainedLock.readLock().lock();
+		try {
+			return retainedStore.match(topicFilter);
+		} finally {
+			retainedLock.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public RetainedCursor retainedCursor(String topicFilter) {
+		return new RetainedSearch(topicFilter);
+	}
+	
+	/**
+	 * Looks up the retained messages a batch at a time, holding the read lock
+	 * only while filling it. The messages are retained under the lock, so the
+	 * ones replaced meanwhile are still valid.
+	 */
+	private final class RetainedSearch implements RetainedCursor {
+		
+		private static final int	BATCH	= 32;
+		
+		private final String				topicFilter;
+		private final Queue<StoredMessage>	batch	= new ArrayDeque<>(BATCH);
+		// the levels of the topic of the last message looked up
+		private String[]					after;
+		private boolean						done;
+		
+		RetainedSearch(String topicFilter) {
+			this.topicFilter = topicFilter;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (batch.isEmpty() && !done) {
+				fill();
+			}
+			return !batch.isEmpty();
+		}
+		
+		private void fill() {
+			List<StoredMessage> found = new ArrayList<>(BATCH);
+			retainedLock.readLock().lock();
+			try {
+				after = retainedStore.match(topicFilter, after, BATCH, found);
+				for (StoredMessage message : found) {
+					// in the tree it holds the reference of the store
+					message.retain();
+					batch.add(message);
+				}
+			} finally {
+				retainedLock.readLock().unlock();
+			}
+			done = after == null;
+		}
+		
+		@Override
+		public StoredMessage next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return batch.poll();
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void close() {
+			StoredMessage message;
+			while ((message = batch.poll()) != null) {
+				message.release();
+			}
+			done = true;
+		}
+	}
+	
 	@Override
 	public void storePublishForFuture(PublishEvent evt) {
 		LOG.debug("storePublishForFuture store evt {}", evt);
-		// List<PublishEvent> storedEvents;
-		String clientID = evt.getClientID();
-		// if (!m_persistentMessageStore.containsKey(clientID)) {
-		// storedEvents = new ArrayList<PublishEvent>();
-		// } else {
-		// storedEvents = m_persistentMessageStore.get(clientID);
-		// }
-		List<PublishEvent> storedEvents = defaultGet(persistentMessageStore,
-				clientID, new ArrayList<PublishEvent>());
-		storedEvents.add(evt);
-		persistentMessageStore.put(clientID, storedEvents);
+		ClientSession session = session(evt.getClientID());
+		synchronized (session) {
+			if (!session.storedMessages.offer(evt)) {
+				LOG.debug("offline queue of client <{}> full, rejected evt {}",
+						evt.getClientID(), evt);
+			}
+		}
 	}
 	
 	@Override
 	public List<PublishEvent> listMessagesInSession(String clientID) {
-		return new ArrayList<>(defaultGet(persistentMessageStore, clientID,
-				Collections.<PublishEvent> emptyList()));
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return new ArrayList<>();
+		}
+		synchronized (session) {
+			return session.storedMessages.list();
+		}
 	}
 	
 	@Override
-	public void removeMessageInSession(String clientID, Integer messageID) {
-		List<PublishEvent> events = persistentMessageStore.get(clientID);
-		if (events == null) {
+	public List<PublishEvent> listMessagesInSession(String clientID,
+			long afterStoredID, int max) {
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return new ArrayList<>();
+		}
+		synchronized (session) {
+			return session.storedMessages.list(afterStoredID, max);
+		}
+	}
+	
+	@Override
+	public void removeMessageInSession(String clientID, long storedID) {
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
 			return;
 		}
-		PublishEvent toRemoveEvt = null;
-		for (PublishEvent evt : events) {
-			if (evt.getMessageID() == null && messageID == null) {
-				// was a qos0 message (no ID)
-				toRemoveEvt = evt;
-			}
-			if (evt.getMessageID() == messageID) {
-				toRemoveEvt = evt;
-			}
+		synchronized (session) {
+			session.storedMessages.remove(storedID);
 		}
-		events.remove(toRemoveEvt);
-		persistentMessageStore.put(clientID, events);
 	}
 	
 	@Override
 	public void dropMessagesInSession(String clientID) {
-		persistentMessageStore.remove(clientID);
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return;
+		}
+		synchronized (session) {
+			session.storedMessages.clear();
+			session.inflight.clear();
+			// the messages in flight are dropped too
+			session.packetIDs.clear();
+			forgetIfUnused(clientID, session);
+		}
+	}
+	
+	/**
+	 * Drop the state of a client once it has no session, no stored messages
+	 * and no packets in flight, as when a clean session ends, so the
+	 * disconnected clients don't keep it. Called holding the session lock.
+	 * */
+	private void forgetIfUnused(String clientID, ClientSession session) {
+		if (session.subscriptions == null
+				&& session.storedMessages.size() == 0
+				&& session.inflight.isEmpty()
+				&& session.packetIDs.inFlight() == 0) {
+			sessions.remove(clientID, session);
+		}
 	}
 	
 	@Override
 	public void cleanTemporaryPublish(String clientID, int packetID) {
-		String publishKey = String.format("%s%d", clientID, packetID);
-		inflightStore.remove(publishKey);
-		Set<Integer> inFlightForClient = inflightIDs.get(clientID);
-		if (inFlightForClient != null) {
-			inFlightForClient.remove(packetID);
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return;
+		}
+		synchronized (session) {
+			session.inflight.remove(packetID);
 		}
 	}
 	
 	@Override
 	public void storeTemporaryPublish(PublishEvent evt, String clientID,
 			int packetID) {
-		String publishKey = String.format("%s%d", clientID, packetID);
-		inflightStore.put(publishKey, evt);
+		ClientSession session = session(clientID);
+		synchronized (session) {
+			session.inflight.put(packetID, evt);
+		}
 	}
 	
 	/**
@@ -163,116 +449,210 @@ public class MemoryStorageService implements IMessagesStore, ISessionsStore {
 	 * */
 	@Override
 	public int nextPacketID(String clientID) {
-		Set<Integer> inFlightForClient = inflightIDs.get(clientID);
-		if (inFlightForClient == null) {
-			int nextPacketId = 1;
-			inFlightForClient = new HashSet<>();
-			inFlightForClient.add(nextPacketId);
-			inflightIDs.put(clientID, inFlightForClient);
-			return nextPacketId;
+		ClientSession session = session(clientID);
+		synchronized (session) {
+			return session.packetIDs.allocate();
+		}
+	}
+	
+	@Override
+	public void releasePacketID(String clientID, int packetID) {
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return;
+		}
+		synchronized (session) {
+			session.packetIDs.free(packetID);
 		}
-		int maxId = Collections.max(inFlightForClient);
-		int nextPacketId = (maxId + 1) % 0xFFFF;
-		inFlightForClient.add(nextPacketId);
-		return nextPacketId;
 	}
 	
 	@Override
 	public void removeSubscription(String topic, String clientID) {
 		LOG.debug("removeSubscription topic filter: {} for clientID: {}",
 				topic, clientID);
-		if (!persistentSubscriptions.containsKey(clientID)) {
+		ClientSession session = sessions.get(clientID);
+		Set<Subscription> clientSubscriptions = session == null ? null
+				: session.subscriptions;
+		if (clientSubscriptions == null) {
 			return;
 		}
-		Set<Subscription> clientSubscriptions = persistentSubscriptions
-				.get(clientID);
 		// search for the subscription to remove
-		Subscription toBeRemoved = null;
 		for (Subscription sub : clientSubscriptions) {
 			if (sub.getTopicFilter().equals(topic)) {
-				toBeRemoved = sub;
+				clientSubscriptions.remove(sub);
 				break;
 			}
 		}
-		
-		if (toBeRemoved != null) {
-			clientSubscriptions.remove(toBeRemoved);
-		}
 	}
 	
 	@Override
 	public void addNewSubscription(Subscription newSubscription) {
-		final String clientID = newSubscription.getClientId();
-		if (!persistentSubscriptions.containsKey(clientID)) {
-			persistentSubscriptions.put(clientID, new HashSet<Subscription>());
-		}
-		
-		Set<Subscription> subs = persistentSubscriptions.get(clientID);
-		if (!subs.contains(newSubscription)) {
-			subs.add(newSubscription);
-			persistentSubscriptions.put(clientID, subs);
+		ClientSession session = session(newSubscription.getClientId());
+		synchronized (session) {
+			if (session.subscriptions == null) {
+				session.subscriptions = newSubscriptionsSet();
+			}
+			session.subscriptions.add(newSubscription);
 		}
 	}
 	
 	@Override
 	public void wipeSubscriptions(String clientID) {
-		persistentSubscriptions.remove(clientID);
+		ClientSession session = sessions.get(clientID);
+		if (session == null) {
+			return;
+		}
+		synchronized (session) {
+			session.subscriptions = null;
+			forgetIfUnused(clientID, session);
+		}
 	}
 	
 	@Override
 	public void updateSubscriptions(String clientID,
 			Set<Subscription> subscriptions) {
-		persistentSubscriptions.put(clientID, subscriptions);
+		Set<Subscription> copy = newSubscriptionsSet();
+		copy.addAll(subscriptions);
+		session(clientID).subscriptions = copy;
 	}
 	
 	@Override
 	public Set<Subscription> getSubscriptions(String clientID) {
-		return persistentSubscriptions.get(clientID);
+		ClientSession session = sessions.get(clientID);
+		return session == null ? null : session.subscriptions;
 	}
 
 	@Override
 	public boolean contains(String clientID) {
-		return persistentSubscriptions.containsKey(clientID);
+		return getSubscriptions(clientID) != null;
 	}
 	
 	@Override
 	public void createNewSession(String clientID) {
-		if (persistentSubscriptions.containsKey(clientID)) {
-			LOG.error("already exists a session for client <{}>", clientID);
-			return;
+		ClientSession session = session(clientID);
+		synchronized (session) {
+			if (session.subscriptions != null) {
+				LOG.error("already exists a session for client <{}>", clientID);
+				return;
+			}
+			session.subscriptions = newSubscriptionsSet();
 		}
-		persistentSubscriptions.put(clientID, new HashSet<Subscription>());
 	}
 	
 	@Override
 	public List<Subscription> listAllSubscriptions() {
 		List<Subscription> allSubscriptions = new ArrayList<Subscription>();
-		for (Map.Entry<String, Set<Subscription>> entry : persistentSubscriptions
-				.entrySet()) {
-			allSubscriptions.addAll(entry.getValue());
+		for (ClientSession session : sessions.values()) {
+			Set<Subscription> subscriptions = session.subscriptions;
+			if (subscriptions != null) {
+				allSubscriptions.addAll(subscriptions);
+			}
 		}
 		return allSubscriptions;
 	}
 	
 	@Override
 	public void close() {
-		// To change body of implemented methods use File | Settings | File
-		// Templates.
+		retainedLock.writeLock().lock();
+		try {
+			for (StoredMessage message : retainedStore.values()) {
+				message.release();
+			}
+			retainedStore = new RetainedMessagesTree();
+		} finally {
+			retainedLock.writeLock().unlock();
+		}
 	}
 	
 	@Override
-	public void persistQoS2Message(String publishKey, PublishEvent evt) {
+	public void persistQoS2Message(PublishKey publishKey, PublishEvent evt) {
 		LOG.debug("persistQoS2Message store pubKey {}, evt {}", publishKey, evt);
 		qos2Store.put(publishKey, evt);
 	}
 	
 	@Override
-	public void removeQoS2Message(String publishKey) {
+	public void removeQoS2Message(PublishKey publishKey) {
 		qos2Store.remove(publishKey);
 	}
 	
 	@Override
-	public PublishEvent retrieveQoS2Message(String publishKey) {
+	public PublishEvent retrieveQoS2Message(PublishKey publishKey) {
 		return qos2Store.get(publishKey);
 	}
+	
+	@Override
+	public Future<Void> storeRetainedAsync(String topic, ByteBuffer message,
+			AbstractMessage.QOSType qos) {
+		storeRetained(topic, message, qos);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> cleanRetainedAsync(String topic) {
+		cleanRetained(topic);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> storePublishForFutureAsync(PublishEvent evt) {
+		storePublishForFuture(evt);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> removeMessageInSessionAsync(String clientID,
+			long storedID) {
+		removeMessageInSession(clientID, storedID);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> dropMessagesInSessionAsync(String clientID) {
+		dropMessagesInSession(clientID);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> persistQoS2MessageAsync(PublishKey publishKey,
+			PublishEvent evt) {
+		persistQoS2Message(publishKey, evt);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> removeQoS2MessageAsync(PublishKey publishKey) {
+		removeQoS2Message(publishKey);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> addNewSubscriptionAsync(Subscription newSubscription) {
+		addNewSubscription(newSubscription);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> removeSubscriptionAsync(String topic, String clientID) {
+		removeSubscription(topic, clientID);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> wipeSubscriptionsAsync(String clientID) {
+		wipeSubscriptions(clientID);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> updateSubscriptionsAsync(String clientID,
+			Set<Subscription> subscriptions) {
+		updateSubscriptions(clientID, subscriptions);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> createNewSessionAsync(String clientID) {
+		createNewSession(clientID);
+		return DONE;
+	}
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The store changes an ack waits for. The futures of the changes are added
+ * as they are issued, then seal() returns the future completed once all of
+ * them are, failed if any of them failed.
+ * 
+ * The futures may complete on any thread.
+ */
+final class PendingStores implements GenericFutureListener<Future<Void>> {
+	
+	private final Promise<Void>	all		= ImmediateEventExecutor.INSTANCE
+												.newPromise();
+	// the futures not yet completed, plus one until sealed
+	private final AtomicInteger	pending	= new AtomicInteger(1);
+	private volatile Throwable	cause;
+	
+	void add(Future<Void> future) {
+		pending.incrementAndGet();
+		future.addListener(this);
+	}
+	
+	Future<Void> seal() {
+		done();
+		return all;
+	}
+	
+	@Override
+	public void operationComplete(Future<Void> future) {
+		if (!future.isSuccess()) {
+			cause = future.cause();
+		}
+		done();
+	}
+	
+	private void done() {
+		if (pending.decrementAndGet() == 0) {
+			if (cause == null) {
+				all.setSuccess(null);
+			} else {
+				all.setFailure(cause);
+			}
+		}
+	}
+}
@@ -17,13 +17,23 @@ package org.eclipse.moquette.spi.impl;
 
 import static org.eclipse.moquette.parser.netty.Utils.VERSION_3_1;
 import static org.eclipse.moquette.parser.netty.Utils.VERSION_3_1_1;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 
 import java.nio.ByteBuffer;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+import org.eclipse.moquette.parser.netty.SharedPublish;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
 import org.eclipse.moquette.proto.messages.ConnAckMessage;
@@ -41,15 +51,17 @@ import org.eclipse.moquette.proto.messages.UnsubscribeMessage;
 import org.eclipse.moquette.server.ConnectionDescriptor;
 import org.eclipse.moquette.server.ServerChannel;
 import org.eclipse.moquette.server.netty.NettyChannel;
-import org.eclipse.moquette.spi.IMatchingCondition;
+import org.eclipse.moquette.spi.IAsyncMessagesStore;
+import org.eclipse.moquette.spi.IAsyncSessionsStore;
 import org.eclipse.moquette.spi.IMessagesStore;
+import org.eclipse.moquette.spi.IMessagesStore.PublishKey;
 import org.eclipse.moquette.spi.ISessionsStore;
 import org.eclipse.moquette.spi.ISubscriptionsStore;
 import org.eclipse.moquette.spi.impl.events.LostConnectionEvent;
-import org.eclipse.moquette.spi.impl.events.PubAckEvent;
 import org.eclipse.moquette.spi.impl.events.PublishEvent;
 import org.eclipse.moquette.spi.impl.security.IAuthenticator;
 import org.eclipse.moquette.spi.impl.security.IAuthorizator;
+import org.eclipse.moquette.spi.impl.subscriptions.SharedSubscriptions;
 import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
 import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionUtils;
 import org.slf4j.Logger;
@@ -107,12 +119,36 @@ public class ProtocolProcessor {
 	private IAuthorizator									authorizator;
 	private IMessagesStore									messagesStore;
 	private ISessionsStore									sessionsStore;
+	// the changes the acks wait for, not blocking the event loop
+	private IAsyncMessagesStore								asyncMessagesStore;
+	private IAsyncSessionsStore								asyncSessionsStore;
 	private IAuthenticator									authenticator;
 	private BrokerInterceptor								interceptor;
+	private SharedSubscriptions								sharedSubscriptions	= new SharedSubscriptions(
+																						SharedSubscriptions.Policy.ROUND_ROBIN);
 	
 	// maps clientID to Will testament, if specified on CONNECT
 	private Map<String, WillMessage>						willStore	= new ConcurrentHashMap<>();
 	
+	// retries the publishes not acked in time and paces the replays of the
+	// stored messages, shared by all the processors
+	private static final Timer								TIMER					= new HashedWheelTimer(
+																							new DefaultThreadFactory(
+																									"moquette-timer", true), 10,
+																							TimeUnit.MILLISECONDS);
+	// QoS 1 and 2 publishes in flight, by clientID
+	private final ConcurrentMap<String, InflightWindow>		inflightWindows			= new ConcurrentHashMap<>();
+	private int												maxInflight				= 20;
+	private int												inflightRetrySeconds	= 20;
+	// stored messages sent to a reconnected client at a time
+	private int												replayBatchSize			= 100;
+	// messages per second replayed to each client, 0 for no limit
+	private int												replayClientRate;
+	// the rate of the replays to all the clients
+	private RateLimiter										replayLimiter			= new RateLimiter(0);
+	// the lanes processing the publishes, null processes them in the caller
+	private volatile PublishDispatcher						publishDispatcher;
+	
 	ProtocolProcessor() {
 	}
 	
@@ -142,10 +178,75 @@ public class ProtocolProcessor {
 		this.authenticator = authenticator;
 		this.messagesStore = storageService;
 		this.sessionsStore = sessionsStore;
+		BlockingStoresAdapter adapter = new BlockingStoresAdapter(
+				storageService, sessionsStore);
+		this.asyncMessagesStore = adapter;
+		if (storageService instanceof IAsyncMessagesStore) {
+			this.asyncMessagesStore = (IAsyncMessagesStore) storageService;
+		}
+		this.asyncSessionsStore = adapter;
+		if (sessionsStore instanceof IAsyncSessionsStore) {
+			this.asyncSessionsStore = (IAsyncSessionsStore) sessionsStore;
+		}
+	}
+
+	/**
+	 * Set how the publishes are balanced on the members of the shared
+	 * subscriptions groups.
+	 */
+	void setSharedSubscriptionsPolicy(SharedSubscriptions.Policy policy) {
+		sharedSubscriptions = new SharedSubscriptions(policy);
+	}
+	
+	/**
+	 * Set how many QoS 1 and 2 publishes can be in flight to a client, and the
+	 * seconds after that a not acked one is sent again, 0 to send it again
+	 * only when the client reconnects.
+	 */
+	void setInflightWindow(int maxInflight, int retrySeconds) {
+		this.maxInflight = maxInflight;
+		this.inflightRetrySeconds = retrySeconds;
+	}
+	
+	/**
+	 * Set how the messages stored for an offline client are sent when it
+	 * reconnects: the messages sent in a batch, and the messages per second
+	 * sent to each client and to all of them, 0 for no limit.
+	 */
+	void setSessionReplay(int batchSize, int clientRate, int globalRate) {
+		this.replayBatchSize = batchSize;
+		this.replayClientRate = clientRate;
+		this.replayLimiter = new RateLimiter(globalRate);
+	}
+	
+	/**
+	 * Process the publishes in lanes of worker threads, partitioned by topic,
+	 * instead of the event loops of the publishers; 0 lanes keeps them on the
+	 * event loops.
+	 * 
+	 * @param ringSize the publishes waiting in each lane, a power of 2.
+	 */
+	void setPublishLanes(int lanes, int ringSize) {
+		if (lanes > 0) {
+			publishDispatcher = new PublishDispatcher(this, lanes, ringSize);
+		}
+	}
+	
+	/**
+	 * Stop the publish lanes, once they have processed the publishes already
+	 * dispatched, the next ones are processed in the caller.
+	 */
+	void stop() {
+		PublishDispatcher dispatcher = publishDispatcher;
+		publishDispatcher = null;
+		if (dispatcher != null) {
+			dispatcher.stop();
+		}
 	}
 	
 	// client connect
-	public void processConnect(ServerChannel session, ConnectMessage msg) {
+	public void processConnect(final ServerChannel session,
+			final ConnectMessage msg) {
 		LOG.debug("CONNECT for client <{}>", msg.getClientID());
 		// bad proto
 		if (msg.getProtocolVersion() != VERSION_3_1
@@ -187,6 +288,8 @@ public class ProtocolProcessor {
 			return;
 		}
 		
+		// the store changes the CONNACK waits for
+		PendingStores stores = new PendingStores();
 		// if an old client with the same ID already exists close its session.
 		if (clientIDs.containsKey(msg.getClientID())) {
 			LOG.info(
@@ -199,7 +302,7 @@ public class ProtocolProcessor {
 					.getAttribute(NettyChannel.ATTR_KEY_CLEANSESSION);
 			if (cleanSession) {
 				// cleanup topic subscriptions
-				cleanSession(msg.getClientID());
+				stores.add(cleanSession(msg.getClientID()));
 			}
 			
 			oldSession.setAttribute(NettyChannel.ATTR_KEY_SESSION_STOLEN, true);
@@ -209,11 +312,6 @@ public class ProtocolProcessor {
 					msg.getClientID());
 		}
 		
-		ConnectionDescriptor connDescr = new ConnectionDescriptor(
-				msg.getClientID(), session, msg.isCleanSession(),
-				session.channelId());
-		clientIDs.put(msg.getClientID(), connDescr);
-		
 		int keepAlive = msg.getKeepAlive();
 		LOG.debug("Connect with keepAlive {} s", keepAlive);
 		session.setAttribute(NettyChannel.ATTR_KEY_KEEPALIVE, keepAlive);
@@ -221,6 +319,7 @@ public class ProtocolProcessor {
 				msg.isCleanSession());
 		// used to track the client in the subscription and publishing phases.
 		session.setAttribute(NettyChannel.ATTR_KEY_CLIENTID, msg.getClientID());
+		session.setAttribute(NettyChannel.ATTR_KEY_ACKS, new AckSequence(session));
 		LOG.debug("Connect create session <{}>", session);
 		
 		session.setIdleTime(Math.round(keepAlive * 1.5f));
@@ -238,35 +337,75 @@ public class ProtocolProcessor {
 			willStore.put(msg.getClientID(), will);
 		}
 		
-		subscriptions.activate(msg.getClientID());
-		
 		// handle clean session flag
 		if (msg.isCleanSession()) {
 			// remove all prev subscriptions
 			// cleanup topic subscriptions
-			cleanSession(msg.getClientID());
+			stores.add(cleanSession(msg.getClientID()));
 		}
 		
+		final boolean isSessionAlreadyStored = sessionsStore.contains(msg
+				.getClientID());
+		if (!isSessionAlreadyStored) {
+			LOG.info("Create persistent session for clientID <{}>",
+					msg.getClientID());
+			stores.add(asyncSessionsStore.createNewSessionAsync(msg
+					.getClientID()));
+		}
+		stores.seal().addListener(new GenericFutureListener<Future<Void>>() {
+			@Override
+			public void operationComplete(Future<Void> future) {
+				if (future.isSuccess()) {
+					connected(session, msg, isSessionAlreadyStored);
+				} else {
+					LOG.error("Can't store the session of client <{}>",
+							msg.getClientID(), future.cause());
+					ConnAckMessage unavailable = new ConnAckMessage();
+					unavailable
+							.setReturnCode(ConnAckMessage.SERVER_UNAVAILABLE);
+					session.write(unavailable);
+					session.close(false);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Register the connection and acknowledge the CONNECT, once the session is
+	 * stored, so the client gets publishes only after a CONNACK telling it the
+	 * session it has.
+	 * */
+	private void connected(ServerChannel session, ConnectMessage msg,
+			boolean isSessionAlreadyStored) {
+		ConnectionDescriptor connDescr = new ConnectionDescriptor(
+				msg.getClientID(), session, msg.isCleanSession(),
+				session.channelId());
+		clientIDs.put(msg.getClientID(), connDescr);
+		if (!session.isActive()) {
+			// closed while the session was stored, its connection lost could
+			// have run before the put
+			if (clientIDs.get(msg.getClientID()) == connDescr) {
+				clientIDs.remove(msg.getClientID());
+			}
+			return;
+		}
+		subscriptions.activate(msg.getClientID());
+		
 		ConnAckMessage okResp = new ConnAckMessage();
 		okResp.setReturnCode(ConnAckMessage.CONNECTION_ACCEPTED);
-		boolean isSessionAlreadyStored = sessionsStore.contains(msg
-				.getClientID());
 		if (!msg.isCleanSession() && isSessionAlreadyStored) {
 			okResp.setSessionPresent(true);
 		}
 		session.write(okResp);
 		interceptor.notifyClientConnected(msg);
 		
-		if (!isSessionAlreadyStored) {
-			LOG.info("Create persistent session for clientID <{}>",
-					msg.getClientID());
-			sessionsStore.createNewSession(msg.getClientID());
-		}
 		LOG.info("Connected client ID <{}> with clean session {}",
 				msg.getClientID(), msg.isCleanSession());
 		if (!msg.isCleanSession()) {
+			// the publishes left in flight by the previous connection first
+			resendInflight(msg.getClientID());
 			// force the republish of stored QoS1 and QoS2
-			republishStoredInSession(msg.getClientID());
+			republishStoredInSession(session, msg.getClientID());
 		}
 	}
 	
@@ -281,43 +420,68 @@ public class ProtocolProcessor {
 	 * Republish QoS1 and QoS2 messages stored into the session for the
 	 * clientID.
 	 * */
-	private void republishStoredInSession(String clientID) {
+	private void republishStoredInSession(ServerChannel session,
+			String clientID) {
 		LOG.trace("republishStoredInSession for client <{}>", clientID);
-		List<PublishEvent> publishedEvents = messagesStore
-				.listMessagesInSession(clientID);
-		if (publishedEvents.isEmpty()) {
-			LOG.info("No stored messages for client <{}>", clientID);
-			return;
-		}
-		
-		LOG.info("republishing stored messages to client <{}>", clientID);
-		for (PublishEvent pubEvt : publishedEvents) {
-			sendPublish(pubEvt.getClientID(), pubEvt.getTopic(),
-					pubEvt.getQos(), pubEvt.getMessage(), false,
-					pubEvt.getMessageID());
-			messagesStore.removeMessageInSession(clientID,
-					pubEvt.getMessageID());
-		}
+		new SessionReplay(session, clientID).run();
 	}
 	
 	public void processPubAck(ServerChannel session, PubAckMessage msg) {
 		String clientID = (String) session
 				.getAttribute(NettyChannel.ATTR_KEY_CLIENTID);
 		int messageID = msg.getMessageID();
-		// Remove the message from message store
-		messagesStore.removeMessageInSession(clientID, messageID);
+		// the packet ID is the one of the in flight window, not the messageID
+		// of a stored message
+		releasePacketID(clientID, messageID);
+		sharedSubscriptions.inflightRemoved(clientID);
 	}
 	
-	private void cleanSession(String clientID) {
+	/**
+	 * @return the future of the removal of the subscriptions and the stored
+	 *         messages.
+	 * */
+	private Future<Void> cleanSession(String clientID) {
 		LOG.info("cleaning old saved subscriptions for client <{}>", clientID);
+		PendingStores stores = new PendingStores();
 		// remove from log all subscriptions
-		subscriptions.removeForClient(clientID);
+		stores.add(subscriptions.removeForClient(clientID));
 		
 		// remove also the messages stored of type QoS1/2
-		messagesStore.dropMessagesInSession(clientID);
+		stores.add(asyncMessagesStore.dropMessagesInSessionAsync(clientID));
+		InflightWindow window = inflightWindows.remove(clientID);
+		if (window != null) {
+			synchronized (window) {
+				window.clear();
+			}
+		}
+		return stores.seal();
 	}
 	
 	public void processPublish(ServerChannel session, PublishMessage msg) {
+		// the place of the ack is taken here, on the event loop, so the acks
+		// keep the order of the publishes even when the lanes of their topics
+		// process them out of order
+		AckSequence.Ack ack = null;
+		if (msg.getQos() != AbstractMessage.QOSType.MOST_ONE) {
+			ack = nextAck(session);
+		}
+		PublishDispatcher dispatcher = publishDispatcher;
+		if (dispatcher != null) {
+			dispatcher.dispatch(session, msg, ack);
+		} else {
+			doProcessPublish(session, msg, ack);
+		}
+	}
+	
+	/**
+	 * Process the publish in the calling thread, the event loop of the
+	 * publisher or the lane of its topic.
+	 * 
+	 * @param ack the place of the ack of the publish, null when it's not
+	 *            acked.
+	 */
+	void doProcessPublish(ServerChannel session, PublishMessage msg,
+			AckSequence.Ack ack) {
 		LOG.trace("PUB --PUBLISH--> SRV executePublish invoked with {}", msg);
 		String clientID = (String) session
 				.getAttribute(NettyChannel.ATTR_KEY_CLIENTID);
@@ -326,15 +490,31 @@ public class ProtocolProcessor {
 		String user = (String) session
 				.getAttribute(NettyChannel.ATTR_KEY_USERNAME);
 		if (authorizator.canWrite(topic, user, clientID)) {
-			executePublish(clientID, msg);
+			executePublish(clientID, msg, ack);
 			interceptor.notifyTopicPublished(msg, clientID);
 		} else {
 			LOG.debug("topic {} doesn't have write credentials", topic);
+			if (ack != null) {
+				ack.ready(null);
+			}
 		}
 	}
 	
 	// 把这个方法设计成公有的,目的是为了在PUSH时使用这个方法
 	public void executePublish(String clientID, PublishMessage msg) {
+		ConnectionDescriptor descriptor = clientIDs.get(clientID);
+		AckSequence.Ack ack = descriptor == null
+				|| msg.getQos() == AbstractMessage.QOSType.MOST_ONE ? null
+				: nextAck(descriptor.getSession());
+		executePublish(clientID, msg, ack);
+	}
+	
+	/**
+	 * @param ack the place of the ack of the publish, null when it's not
+	 *            acked.
+	 * */
+	private void executePublish(final String clientID, PublishMessage msg,
+			final AckSequence.Ack ack) {
 		final String topic = msg.getTopicName();
 		final AbstractMessage.QOSType qos = msg.getQos();
 		final ByteBuffer message = msg.getPayload();
@@ -344,59 +524,96 @@ public class ProtocolProcessor {
 				clientID, topic, qos);
 		
 		PublishEvent publishEvt = new PublishEvent(clientID, msg);
-		if (qos == AbstractMessage.QOSType.MOST_ONE) { // QoS0
-			forward2Subscribers(publishEvt);
-		} else if (qos == AbstractMessage.QOSType.LEAST_ONE) { // QoS1
-			// TODO implement inFlight!!
-			messagesStore
-					.storeTemporaryPublish(publishEvt, clientID, messageID);
-			forward2Subscribers(publishEvt);
-			messagesStore.cleanTemporaryPublish(clientID, messageID);
-			// NB the PUB_ACK could be sent also after the addInFlight
-			sendPubAck(new PubAckEvent(messageID, clientID));
-			LOG.debug("replying with PubAck to MSG ID {}", messageID);
-		} else if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) { // QoS2
-			String publishKey = String.format("%s%d", clientID, messageID);
-			// store the message in temp store
-			messagesStore.persistQoS2Message(publishKey, publishEvt);
-			sendPubRec(clientID, messageID);
-			// Next the client will send us a pub rel
-			// NB publish to subscribers for QoS 2 happen upon PUBREL from
-			// publisher
-		}
-		
-		if (retain) {
-			if (qos == AbstractMessage.QOSType.MOST_ONE) {
-				// QoS == 0 && retain => clean old retained
-				messagesStore.cleanRetained(topic);
-			} else {
-				messagesStore.storeRetained(topic, message, qos);
+		// the store changes the ack waits for
+		PendingStores stores = new PendingStores();
+		Future<Void> stored = null;
+		try {
+			if (qos == AbstractMessage.QOSType.MOST_ONE) { // QoS0
+				forward2Subscribers(publishEvt);
+			} else if (qos == AbstractMessage.QOSType.LEAST_ONE) { // QoS1
+				// TODO implement inFlight!!
+				messagesStore.storeTemporaryPublish(publishEvt, clientID,
+						messageID);
+				stores.add(forward2Subscribers(publishEvt));
+				messagesStore.cleanTemporaryPublish(clientID, messageID);
+			} else if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) { // QoS2
+				PublishKey publishKey = new PublishKey(clientID, messageID);
+				// store the message in temp store
+				stores.add(asyncMessagesStore.persistQoS2MessageAsync(
+						publishKey, publishEvt));
+				// Next the client will send us a pub rel
+				// NB publish to subscribers for QoS 2 happen upon PUBREL from
+				// publisher
+			}
+			
+			if (retain) {
+				if (qos == AbstractMessage.QOSType.MOST_ONE) {
+					// QoS == 0 && retain => clean old retained
+					stores.add(asyncMessagesStore.cleanRetainedAsync(topic));
+				} else {
+					stores.add(asyncMessagesStore.storeRetainedAsync(topic,
+							message, qos));
+				}
 			}
+			stored = stores.seal();
+		} finally {
+			if (stored == null && ack != null) {
+				// not acked, the acks after it mustn't wait for it
+				ack.ready(null);
+			}
+		}
+		
+		if (ack == null) {
+			return;
 		}
+		stored.addListener(new GenericFutureListener<Future<Void>>() {
+			@Override
+			public void operationComplete(Future<Void> future) {
+				if (!future.isSuccess()) {
+					// not acked, the publisher will send it again
+					LOG.error(
+							"Can't store the PUBLISH of client <{}> with messageID {}",
+							clientID, messageID, future.cause());
+					ack.ready(null);
+				} else if (qos == AbstractMessage.QOSType.LEAST_ONE) {
+					LOG.debug("replying with PubAck to MSG ID {}", messageID);
+					ack.ready(pubAck(messageID));
+				} else {
+					ack.ready(pubRec(clientID, messageID));
+				}
+			}
+		});
 	}
 	
 	/**
 	 * Specialized version to publish will testament message.
 	 */
 	private void forwardPublishWill(WillMessage will, String clientID) {
-		// it has just to publish the message downstream to the subscribers
-		// NB it's a will publish, it needs a PacketIdentifier for this conn,
-		// default to 1
-		Integer messageId = null;
-		if (will.getQos() != AbstractMessage.QOSType.MOST_ONE) {
-			messageId = messagesStore.nextPacketID(clientID);
-		}
-		
+		// it has just to publish the message downstream to the subscribers,
+		// the PacketIdentifiers are the ones of the subscribers connections
 		PublishEvent pub = new PublishEvent(will.getTopic(), will.getQos(),
-				will.getPayload(), will.isRetained(), clientID, messageId);
+				will.getPayload(), will.isRetained(), clientID, null);
 		forward2Subscribers(pub);
 	}
 	
 	/**
 	 * Flood the subscribers with the message to notify. MessageID is optional
 	 * and should only used for QoS 1 and 2
+	 * 
+	 * @return the future of the storing of the message for the offline
+	 *         subscribers.
 	 * */
-	void forward2Subscribers(PublishEvent pubEvt) {
+	Future<Void> forward2Subscribers(PublishEvent pubEvt) {
+		// each subscriber gets its messages with a task on its event loop
+		DeliveryBatch.open();
+		try {
+			return deliver2Subscribers(pubEvt);
+		} finally {
+			DeliveryBatch.close();
+		}
+	}
+	
+	private Future<Void> deliver2Subscribers(PublishEvent pubEvt) {
 		final String topic = pubEvt.getTopic();
 		final AbstractMessage.QOSType publishingQos = pubEvt.getQos();
 		final ByteBuffer origMessage = pubEvt.getMessage();
@@ -409,7 +626,11 @@ public class ProtocolProcessor {
 			LOG.debug("content <{}>", DebugUtils.payload2Str(origMessage));
 			LOG.debug("subscription tree {}", subscriptions.dumpTree());
 		}
-		for (final Subscription sub : subscriptions.matches(topic)) {
+		// topic and payload encoded once for all the subscribers
+		SharedPublish shared = new SharedPublish(topic, origMessage);
+		PendingStores stores = new PendingStores();
+		for (final Subscription sub : sharedSubscriptions.select(topic,
+				subscriptions.matches(topic))) {
 			AbstractMessage.QOSType qos = publishingQos;
 			if (qos.byteValue() > sub.getRequestedQos().byteValue()) {
 				qos = sub.getRequestedQos();
@@ -424,7 +645,7 @@ public class ProtocolProcessor {
 				// QoS 0
 				// forwardPublishQoS0(sub.getClientId(), topic, qos, message,
 				// false);
-				sendPublish(sub.getClientId(), topic, qos, message, false, null);
+				sendPublish(sub.getClientId(), shared, qos, false, null);
 			} else {
 				// QoS 1 or 2
 				// if the target subscription is not clean session and is not
@@ -434,9 +655,9 @@ public class ProtocolProcessor {
 					PublishEvent newPublishEvt = new PublishEvent(topic, qos,
 							message, retain, sub.getClientId(),
 							messageID != null ? messageID : 0);
-					messagesStore.storePublishForFuture(newPublishEvt);
+					stores.add(asyncMessagesStore
+							.storePublishForFutureAsync(newPublishEvt));
 				} else {
-					// TODO also QoS 1 has to be stored in Flight Zone
 					// if QoS 2 then store it in temp memory
 					if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) {
 						PublishEvent newPublishEvt = new PublishEvent(topic,
@@ -448,36 +669,40 @@ public class ProtocolProcessor {
 					}
 					// publish
 					if (sub.isActive()) {
-						int messageId = messagesStore.nextPacketID(sub
-								.getClientId());
-						sendPublish(sub.getClientId(), topic, qos, message,
-								false, messageId);
+						sharedSubscriptions.inflightAdded(sub.getClientId());
+						sendPublishInFlight(sub.getClientId(), shared, qos,
+								false);
 					}
 				}
 			}
 		}
+		return stores.seal();
+	}
+	
+	/**
+	 * Send the publish to the client, its topic and payload are the ones
+	 * encoded in the shared publish.
+	 */
+	protected void sendPublish(String clientId, SharedPublish publish,
+			AbstractMessage.QOSType qos, boolean retained, Integer messageID) {
+		sendPublish(clientId, publish, qos, retained, messageID, false);
 	}
 	
-	protected void sendPublish(String clientId, String topic,
-			AbstractMessage.QOSType qos, ByteBuffer message, boolean retained,
-			Integer messageID) {
+	private void sendPublish(String clientId, SharedPublish publish,
+			AbstractMessage.QOSType qos, boolean retained, Integer messageID,
+			boolean dup) {
+		String topic = publish.getTopicName();
 		LOG.debug(
-				"sendPublish invoked clientId <{}> on topic <{}> QoS {} retained {} messageID {}",
-				clientId, topic, qos, retained, messageID);
-		PublishMessage pubMessage = new PublishMessage();
-		pubMessage.setRetainFlag(retained);
-		pubMessage.setTopicName(topic);
-		pubMessage.setQos(qos);
-		pubMessage.setPayload(message);
+				"sendPublish invoked clientId <{}> on topic <{}> QoS {} retained {} messageID {} dup {}",
+				clientId, topic, qos, retained, messageID, dup);
 		
 		LOG.info("send publish message to <{}> on topic <{}>", clientId, topic);
 		if (LOG.isDebugEnabled()) {
-			LOG.debug("content <{}>", DebugUtils.payload2Str(message));
+			LOG.debug("content <{}>",
+					DebugUtils.payload2Str(publish.getPayload()));
 		}
 		// set the PacketIdentifier only for QoS > 0
-		if (pubMessage.getQos() != AbstractMessage.QOSType.MOST_ONE) {
-			pubMessage.setMessageID(messageID);
-		} else {
+		if (qos == AbstractMessage.QOSType.MOST_ONE) {
 			if (messageID != null) {
 				throw new RuntimeException(
 						"Internal bad error, trying to forwardPublish a QoS 0 message with PacketIdentifier: "
@@ -508,42 +733,184 @@ public class ProtocolProcessor {
 			LOG.debug("topic {} doesn't have read credentials", topic);
 			return;
 		}
-		session.write(pubMessage);
+		DeliveryBatch.write(session,
+				publish.newMessage(qos, messageID, retained, dup));
 	}
 	
-	private void sendPubRec(String clientID, int messageID) {
+	/**
+	 * Send the QoS 1 or 2 publish in the in flight window of the client. If
+	 * the window is full, or all the PacketIdentifiers of the client are in
+	 * flight, the publish waits, in order, for an ack to make room.
+	 * 
+	 * @param publish its payload not modified nor released by the caller
+	 *            while the publish is in flight.
+	 */
+	private void sendPublishInFlight(String clientId, SharedPublish publish,
+			AbstractMessage.QOSType qos, boolean retained) {
+		sendPublishInFlight(clientId, publish, qos, retained, null);
+	}
+	
+	/**
+	 * @param storedID of the stored message replayed, removed from the store
+	 *            once the client acks the publish, null if not stored.
+	 */
+	private void sendPublishInFlight(String clientId, SharedPublish publish,
+			AbstractMessage.QOSType qos, boolean retained, Long storedID) {
+		if (clientIDs.get(clientId) == null) {
+			// sendPublish reports the missing connection
+			sendPublish(clientId, publish, qos, retained,
+					messagesStore.nextPacketID(clientId));
+			return;
+		}
+		InflightWindow window = inflightWindow(clientId);
+		synchronized (window) {
+			window.queue(new InflightWindow.Publish(publish, qos, retained,
+					storedID));
+			sendInflight(clientId, window);
+		}
+	}
+	
+	private InflightWindow inflightWindow(String clientID) {
+		InflightWindow window = inflightWindows.get(clientID);
+		if (window == null) {
+			InflightWindow newWindow = new InflightWindow(clientID, maxInflight);
+			window = inflightWindows.putIfAbsent(clientID, newWindow);
+			if (window == null) {
+				window = newWindow;
+			}
+		}
+		return window;
+	}
+	
+	/**
+	 * Send the queued publishes that fit in the window, called holding its
+	 * lock.
+	 */
+	private void sendInflight(String clientID, InflightWindow window) {
+		InflightWindow.Publish publish;
+		while ((publish = window.next(messagesStore)) != null) {
+			sendPublish(clientID, publish.shared, publish.qos,
+					publish.retained, publish.packetID);
+			scheduleRetry(clientID, publish);
+		}
+	}
+	
+	private void scheduleRetry(final String clientID,
+			final InflightWindow.Publish publish) {
+		if (inflightRetrySeconds <= 0) {
+			return;
+		}
+		publish.retry = TIMER.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) {
+				retry(clientID, publish);
+			}
+		}, inflightRetrySeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Send again the publish not acked in time, if the client is still
+	 * connected, else it's sent on reconnect.
+	 */
+	private void retry(String clientID, InflightWindow.Publish publish) {
+		InflightWindow window = inflightWindows.get(clientID);
+		if (window == null || clientIDs.get(clientID) == null) {
+			return;
+		}
+		synchronized (window) {
+			if (!window.isInflight(publish)) {
+				return;
+			}
+			LOG.debug("Retrying packetID {} for client <{}>",
+					publish.packetID, clientID);
+			resend(clientID, publish);
+			scheduleRetry(clientID, publish);
+		}
+	}
+	
+	/**
+	 * Send again all the publishes in flight of the client, with the DUP flag,
+	 * then the queued ones that fit in the window.
+	 */
+	private void resendInflight(String clientID) {
+		InflightWindow window = inflightWindows.get(clientID);
+		if (window == null) {
+			return;
+		}
+		synchronized (window) {
+			for (InflightWindow.Publish publish : window.inflight()) {
+				if (publish.retry != null) {
+					publish.retry.cancel();
+				}
+				resend(clientID, publish);
+				scheduleRetry(clientID, publish);
+			}
+			sendInflight(clientID, window);
+		}
+	}
+	
+	private void resend(String clientID, InflightWindow.Publish publish) {
+		if (publish.released) {
+			// QoS 2 already received, the PUBREL was lost
+			PubRelMessage pubRelMessage = new PubRelMessage();
+			pubRelMessage.setMessageID(publish.packetID);
+			pubRelMessage.setQos(AbstractMessage.QOSType.LEAST_ONE);
+			clientIDs.get(clientID).getSession().write(pubRelMessage);
+		} else {
+			sendPublish(clientID, publish.shared, publish.qos,
+					publish.retained, publish.packetID, true);
+		}
+	}
+	
+	/**
+	 * Remove the publish acked by the client from its in flight window,
+	 * releasing its PacketIdentifier, and send the publishes that were waiting
+	 * for room. The stored message replayed by the publish leaves the store.
+	 */
+	private void releasePacketID(String clientID, int packetID) {
+		InflightWindow window = inflightWindows.get(clientID);
+		if (window == null) {
+			messagesStore.releasePacketID(clientID, packetID);
+			return;
+		}
+		InflightWindow.Publish acked;
+		synchronized (window) {
+			acked = window.acked(packetID);
+			messagesStore.releasePacketID(clientID, packetID);
+			if (clientIDs.get(clientID) != null) {
+				sendInflight(clientID, window);
+			}
+		}
+		if (acked != null && acked.storedID != null) {
+			// delivered, the removal doesn't wait for the disk
+			asyncMessagesStore.removeMessageInSessionAsync(clientID,
+					acked.storedID);
+		}
+	}
+	
+	private static PubRecMessage pubRec(String clientID, int messageID) {
 		LOG.trace(
 				"PUB <--PUBREC-- SRV sendPubRec invoked for clientID {} with messageID {}",
 				clientID, messageID);
 		PubRecMessage pubRecMessage = new PubRecMessage();
 		pubRecMessage.setMessageID(messageID);
-		clientIDs.get(clientID).getSession().write(pubRecMessage);
+		return pubRecMessage;
 	}
 	
-	private void sendPubAck(PubAckEvent evt) {
-		LOG.trace("sendPubAck invoked");
-		String clientId = evt.getClientID();
+	private static PubAckMessage pubAck(int messageID) {
 		PubAckMessage pubAckMessage = new PubAckMessage();
-		pubAckMessage.setMessageID(evt.getMessageId());
-		
-		try {
-			if (clientIDs == null) {
-				throw new RuntimeException(
-						"Internal bad error, found clientIDs to null while it should be initialized, somewhere it's overwritten!!");
-			}
-			LOG.debug("clientIDs are {}", clientIDs);
-			if (clientIDs.get(clientId) == null) {
-				throw new RuntimeException(
-						String.format(
-								"Can't find a ConnectionDescriptor for client %s in cache %s",
-								clientId, clientIDs));
-			}
-			// LOG.debug("Session for clientId " + clientId + " is " +
-			// m_clientIDs.get(clientId).getSession());
-			clientIDs.get(clientId).getSession().write(pubAckMessage);
-		} catch (Throwable t) {
-			LOG.error(null, t);
-		}
+		pubAckMessage.setMessageID(messageID);
+		return pubAckMessage;
+	}
+	
+	/**
+	 * @return the place of the next ack of the session in the order of the
+	 *         received packets, null when the client didn't connect.
+	 * */
+	private static AckSequence.Ack nextAck(ServerChannel session) {
+		AckSequence acks = (AckSequence) session
+				.getAttribute(NettyChannel.ATTR_KEY_ACKS);
+		return acks == null ? null : acks.next();
 	}
 	
 	/**
@@ -551,34 +918,97 @@ public class ProtocolProcessor {
 	 * Search the stored message and publish to all interested subscribers.
 	 * */
 	public void processPubRel(ServerChannel session, PubRelMessage msg) {
-		String clientID = (String) session
+		// the place of the PUBCOMP is taken on the event loop, like the acks
+		// of the publishes
+		AckSequence.Ack ack = nextAck(session);
+		PublishDispatcher dispatcher = publishDispatcher;
+		if (dispatcher != null) {
+			String clientID = (String) session
+					.getAttribute(NettyChannel.ATTR_KEY_CLIENTID);
+			PublishEvent evt = messagesStore
+					.retrieveQoS2Message(new PublishKey(clientID, msg
+							.getMessageID()));
+			if (evt != null) {
+				// forwarded in the lane of its topic, after the publishes of
+				// the topic already dispatched
+				dispatcher.dispatch(session, msg, evt.getTopic(), ack);
+				return;
+			}
+		}
+		doProcessPubRel(session, msg, ack);
+	}
+	
+	/**
+	 * Forward the released QoS2 message in the calling thread, the event loop
+	 * of the publisher or the lane of its topic.
+	 * 
+	 * @param ack the place of the PUBCOMP, null when it's not sent.
+	 */
+	void doProcessPubRel(ServerChannel session, PubRelMessage msg,
+			final AckSequence.Ack ack) {
+		final String clientID = (String) session
 				.getAttribute(NettyChannel.ATTR_KEY_CLIENTID);
-		int messageID = msg.getMessageID();
+		final int messageID = msg.getMessageID();
 		LOG.debug(
 				"PUB --PUBREL--> SRV processPubRel invoked for clientID {} ad messageID {}",
 				clientID, messageID);
-		String publishKey = String.format("%s%d", clientID, messageID);
+		PublishKey publishKey = new PublishKey(clientID, messageID);
 		PublishEvent evt = messagesStore.retrieveQoS2Message(publishKey);
-		forward2Subscribers(evt);
-		messagesStore.removeQoS2Message(publishKey);
-		
-		if (evt.isRetain()) {
-			final String topic = evt.getTopic();
-			final AbstractMessage.QOSType qos = evt.getQos();
-			messagesStore.storeRetained(topic, evt.getMessage(), qos);
+		if (evt == null) {
+			// a PUBREL sent again, the message is already released
+			LOG.debug("No QoS2 message of client <{}> with messageID {}",
+					clientID, messageID);
+			if (ack != null) {
+				ack.ready(pubComp(clientID, messageID));
+			}
+			return;
+		}
+		// the store changes the PUBCOMP waits for
+		PendingStores stores = new PendingStores();
+		Future<Void> stored = null;
+		try {
+			stores.add(forward2Subscribers(evt));
+			stores.add(asyncMessagesStore.removeQoS2MessageAsync(publishKey));
+			
+			if (evt.isRetain()) {
+				final String topic = evt.getTopic();
+				final AbstractMessage.QOSType qos = evt.getQos();
+				stores.add(asyncMessagesStore.storeRetainedAsync(topic,
+						evt.getMessage(), qos));
+			}
+			stored = stores.seal();
+		} finally {
+			if (stored == null && ack != null) {
+				// not acked, the acks after it mustn't wait for it
+				ack.ready(null);
+			}
 		}
 		
-		sendPubComp(clientID, messageID);
+		if (ack == null) {
+			return;
+		}
+		stored.addListener(new GenericFutureListener<Future<Void>>() {
+			@Override
+			public void operationComplete(Future<Void> future) {
+				if (!future.isSuccess()) {
+					LOG.error(
+							"Can't store the PUBREL of client <{}> with messageID {}",
+							clientID, messageID, future.cause());
+					ack.ready(null);
+				} else {
+					ack.ready(pubComp(clientID, messageID));
+				}
+			}
+		});
 	}
 	
-	private void sendPubComp(String clientID, int messageID) {
+	private static PubCompMessage pubComp(String clientID, int messageID) {
 		LOG.debug(
 				"PUB <--PUBCOMP-- SRV sendPubComp invoked for clientID {} ad messageID {}",
 				clientID, messageID);
 		PubCompMessage pubCompMessage = new PubCompMessage();
 		pubCompMessage.setMessageID(messageID);
-		
-		clientIDs.get(clientID).getSession().write(pubCompMessage);
+		return pubCompMessage;
 	}
 	
 	public void processPubRec(ServerChannel session, PubRecMessage msg) {
@@ -593,6 +1023,13 @@ public class ProtocolProcessor {
 		pubRelMessage.setMessageID(messageID);
 		pubRelMessage.setQos(AbstractMessage.QOSType.LEAST_ONE);
 		
+		InflightWindow window = inflightWindows.get(clientID);
+		if (window != null) {
+			synchronized (window) {
+				window.released(messageID);
+			}
+		}
+		
 		// m_clientIDs.get(clientID).getSession().write(pubRelMessage);
 		// disruptorPublish(new
 		// OutputMessagingEvent(m_clientIDs.get(clientID).getSession(),
@@ -610,6 +1047,8 @@ public class ProtocolProcessor {
 		// once received the PUBCOMP then remove the message from the temp
 		// memory
 		messagesStore.cleanTemporaryPublish(clientID, messageID);
+		releasePacketID(clientID, messageID);
+		sharedSubscriptions.inflightRemoved(clientID);
 	}
 	
 	// disconnect
@@ -629,6 +1068,7 @@ public class ProtocolProcessor {
 		
 		// de-activate the subscriptions for this ClientID
 		subscriptions.deactivate(clientID);
+		sharedSubscriptions.clientDisconnected(clientID);
 		// cleanup the will store
 		willStore.remove(clientID);
 		
@@ -649,6 +1089,7 @@ public class ProtocolProcessor {
 				clientIDs.remove(clientID);
 				// de-activate the subscriptions for this ClientID
 				subscriptions.deactivate(clientID);
+				sharedSubscriptions.clientDisconnected(clientID);
 				LOG.info("Lost connection with client <{}>", clientID);
 			}
 		}
@@ -665,14 +1106,17 @@ public class ProtocolProcessor {
 	 * Remove the clientID from topic subscription, if not previously
 	 * subscribed, doesn't reply any error
 	 */
-	public void processUnsubscribe(ServerChannel session, UnsubscribeMessage msg) {
+	public void processUnsubscribe(final ServerChannel session,
+			UnsubscribeMessage msg) {
 		List<String> topics = msg.topicFilters();
-		int messageID = msg.getMessageID();
-		String clientID = (String) session
+		final int messageID = msg.getMessageID();
+		final String clientID = (String) session
 				.getAttribute(NettyChannel.ATTR_KEY_CLIENTID);
 		LOG.debug("UNSUBSCRIBE subscription on topics {} for clientID <{}>",
 				topics, clientID);
 		
+		// the store changes the UNSUBACK waits for
+		PendingStores stores = new PendingStores();
 		for (String topic : topics) {
 			boolean validTopic = SubscriptionUtils.validate(topic);
 			if (!validTopic) {
@@ -685,21 +1129,33 @@ public class ProtocolProcessor {
 				return;
 			}
 			
-			subscriptions.removeSubscription(topic, clientID);
+			stores.add(subscriptions.removeSubscription(topic, clientID));
 			interceptor.notifyTopicUnsubscribed(topic, clientID);
 		}
 		
-		// ack the client
-		UnsubAckMessage ackMessage = new UnsubAckMessage();
-		ackMessage.setMessageID(messageID);
-		
-		LOG.info("replying with UnsubAck to MSG ID {}", messageID);
-		session.write(ackMessage);
+		stores.seal().addListener(new GenericFutureListener<Future<Void>>() {
+			@Override
+			public void operationComplete(Future<Void> future) {
+				if (!future.isSuccess()) {
+					LOG.error(
+							"Can't store the UNSUBSCRIBE of client <{}> with messageID {}",
+							clientID, messageID, future.cause());
+					return;
+				}
+				// ack the client
+				UnsubAckMessage ackMessage = new UnsubAckMessage();
+				ackMessage.setMessageID(messageID);
+				
+				LOG.info("replying with UnsubAck to MSG ID {}", messageID);
+				session.write(ackMessage);
+			}
+		});
 	}
 	
 	// subscribe
-	public void processSubscribe(ServerChannel session, SubscribeMessage msg) {
-		String clientID = (String) session
+	public void processSubscribe(final ServerChannel session,
+			final SubscribeMessage msg) {
+		final String clientID = (String) session
 				.getAttribute(NettyChannel.ATTR_KEY_CLIENTID);
 		boolean cleanSession = (Boolean) session
 				.getAttribute(NettyChannel.ATTR_KEY_CLEANSESSION);
@@ -707,24 +1163,69 @@ public class ProtocolProcessor {
 				msg.getMessageID());
 		
 		// ack the client
-		SubAckMessage ackMessage = new SubAckMessage();
+		final SubAckMessage ackMessage = new SubAckMessage();
 		ackMessage.setMessageID(msg.getMessageID());
 		
+		// the store changes the SUBACK waits for
+		PendingStores stores = new PendingStores();
+		final List<Subscription> newSubscriptions = new ArrayList<>();
 		for (SubscribeMessage.Couple req : msg.subscriptions()) {
 			AbstractMessage.QOSType qos = AbstractMessage.QOSType.valueOf(req
 					.getQos());
 			Subscription newSub = new Subscription(clientID,
 					req.getTopicFilter(), qos, cleanSession);
-			boolean valid = subscribeSingleTopic(newSub, req.getTopicFilter());
+			boolean valid = subscribeSingleTopic(newSub, req.getTopicFilter(),
+					stores);
 			ackMessage.addType(valid ? qos : AbstractMessage.QOSType.FAILURE);
+			if (valid) {
+				newSubscriptions.add(newSub);
+			}
 		}
 		
-		LOG.debug("SUBACK for packetID {}", msg.getMessageID());
+		stores.seal().addListener(new GenericFutureListener<Future<Void>>() {
+			@Override
+			public void operationComplete(Future<Void> future) {
+				if (!future.isSuccess()) {
+					LOG.error(
+							"Can't store the SUBSCRIBE of client <{}> with messageID {}",
+							clientID, msg.getMessageID(), future.cause());
+					return;
+				}
+				// on the event loop, so the retained messages follow the SUBACK
+				session.execute(new Runnable() {
+					@Override
+					public void run() {
+						subscribed(session, ackMessage, newSubscriptions);
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Send the SUBACK, then the retained messages matched by the new
+	 * subscriptions.
+	 * */
+	private void subscribed(ServerChannel session, SubAckMessage ackMessage,
+			List<Subscription> newSubscriptions) {
+		LOG.debug("SUBACK for packetID {}", ackMessage.getMessageID());
 		session.write(ackMessage);
+		
+		// scans retained messages to be published to the new subscriptions
+		for (Subscription newSub : newSubscriptions) {
+			// retained messages are not sent to the shared subscriptions
+			if (!SubscriptionUtils.isShared(newSub.getTopicFilter())) {
+				new RetainedReplay(session, newSub.getClientId(), messagesStore
+						.retainedCursor(newSub.getTopicFilter())).run();
+			}
+		}
 	}
 	
+	/**
+	 * @param stores collects the future of the store of the subscription.
+	 * */
 	private boolean subscribeSingleTopic(Subscription newSubscription,
-			final String topic) {
+			final String topic, PendingStores stores) {
 		LOG.info("<{}> subscribed to topic <{}> with QoS {}", newSubscription
 				.getClientId(), topic, AbstractMessage.QOSType
 				.formatQoS(newSubscription.getRequestedQos()));
@@ -734,31 +1235,171 @@ public class ProtocolProcessor {
 			// send SUBACK with 0x80 for this topic filter
 			return false;
 		}
-		subscriptions.add(newSubscription);
+		stores.add(subscriptions.add(newSubscription));
 		
 		// notify the Observables
 		interceptor.notifyTopicSubscribed(newSubscription);
+		return true;
+	}
+	
+	/**
+	 * Publishes the retained messages matched by a new subscription one at a
+	 * time, pausing while the channel is not writable and resuming when it
+	 * drains, so that a subscription to many retained topics doesn't pile up
+	 * all of them in the outbound buffer. The messages are looked up lazily
+	 * from the store, a batch at a time, as the replay goes on.
+	 * 
+	 * The payloads are written without copies, the publish sent takes a
+	 * reference of its own that is dropped once encoded, or by the in flight
+	 * window once acked, so they are not freed if the retained messages are
+	 * replaced meanwhile.
+	 */
+	private class RetainedReplay implements Runnable {
 		
-		// scans retained messages to be published to the new subscription
-		Collection<IMessagesStore.StoredMessage> messages = messagesStore
-				.searchMatching(new IMatchingCondition() {
-					@Override
-					public boolean match(String key) {
-						return SubscriptionUtils.matchTopics(key, topic);
+		private final ServerChannel					session;
+		private final String						clientID;
+		private final IMessagesStore.RetainedCursor	messages;
+		
+		RetainedReplay(ServerChannel session, String clientID,
+				IMessagesStore.RetainedCursor messages) {
+			this.session = session;
+			this.clientID = clientID;
+			this.messages = messages;
+		}
+		
+		@Override
+		public void run() {
+			while (messages.hasNext()) {
+				if (!isConnected(clientID, session)) {
+					// disconnected while paused
+					messages.close();
+					return;
+				}
+				if (!session.isWritable()) {
+					session.runWhenWritable(this);
+					return;
+				}
+				IMessagesStore.StoredMessage storedMsg = messages.next();
+				SharedPublish publish = new SharedPublish(storedMsg.getTopic(),
+						storedMsg.retainedPayload());
+				storedMsg.release();
+				try {
+					// fire the as retained the message
+					LOG.debug("send publish message for topic {}",
+							publish.getTopicName());
+					if (storedMsg.getQos() == QOSType.MOST_ONE) {
+						sendPublish(clientID, publish, storedMsg.getQos(), true,
+								null);
+					} else {
+						sendPublishInFlight(clientID, publish,
+								storedMsg.getQos(), true);
 					}
-				});
+				} finally {
+					publish.release();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sends the messages stored for a client while it was offline, a batch at
+	 * a time once the CONNACK is written, so that a fleet of clients
+	 * reconnecting together doesn't stall the event loops. Each batch is
+	 * followed by a pause respecting the replay rate of the client and the
+	 * global one; the replay also waits while the channel is not writable or
+	 * the in flight window of the client has publishes queued.
+	 * 
+	 * A QoS 1 or 2 message leaves the store only once acked, a QoS 0 one once
+	 * sent, so the ones left when the client goes away are replayed on its
+	 * next connection. The in flight window of the session keeps the last
+	 * message replayed, the ones still in flight aren't listed again. The
+	 * batches run on the event loop of the channel, the timer only wakes them.
+	 */
+	private class SessionReplay implements Runnable, TimerTask {
+		
+		// wait when the client can't take more messages
+		private static final long	PAUSE_MILLIS	= 100;
 		
-		for (IMessagesStore.StoredMessage storedMsg : messages) {
-			// fire the as retained the message
-			LOG.debug("send publish message for topic {}", topic);
-			// forwardPublishQoS0(newSubscription.getClientId(),
-			// storedMsg.getTopic(), storedMsg.getQos(), storedMsg.getPayload(),
-			// true);
-			Integer packetID = storedMsg.getQos() == QOSType.MOST_ONE ? null
-					: messagesStore.nextPacketID(newSubscription.getClientId());
-			sendPublish(newSubscription.getClientId(), storedMsg.getTopic(),
-					storedMsg.getQos(), storedMsg.getPayload(), true, packetID);
+		private final ServerChannel	session;
+		private final String		clientID;
+		private final RateLimiter	clientLimiter	= new RateLimiter(
+															replayClientRate);
+		
+		SessionReplay(ServerChannel session, String clientID) {
+			this.session = session;
+			this.clientID = clientID;
 		}
-		return true;
+		
+		@Override
+		public void run(Timeout timeout) {
+			session.execute(this);
+		}
+		
+		@Override
+		public void run() {
+			if (!isConnected(clientID, session)) {
+				LOG.debug("client <{}> disconnected, replay stopped", clientID);
+				return;
+			}
+			if (!session.isWritable() || hasQueuedInflight()) {
+				TIMER.newTimeout(this, PAUSE_MILLIS, TimeUnit.MILLISECONDS);
+				return;
+			}
+			InflightWindow window = inflightWindow(clientID);
+			long lastReplayed;
+			synchronized (window) {
+				lastReplayed = window.lastReplayed();
+			}
+			List<PublishEvent> batch = messagesStore.listMessagesInSession(
+					clientID, lastReplayed, replayBatchSize);
+			if (batch.isEmpty()) {
+				LOG.info("No more stored messages for client <{}>", clientID);
+				return;
+			}
+			
+			LOG.info("republishing {} stored messages to client <{}>",
+					batch.size(), clientID);
+			for (PublishEvent pubEvt : batch) {
+				synchronized (window) {
+					window.replayed(pubEvt.getStoredID());
+				}
+				if (pubEvt.getQos() == QOSType.MOST_ONE) {
+					sendPublish(clientID, new SharedPublish(pubEvt.getTopic(),
+							pubEvt.getMessage()), pubEvt.getQos(), false, null);
+					// never acked, the removal doesn't wait for the disk
+					asyncMessagesStore.removeMessageInSessionAsync(clientID,
+							pubEvt.getStoredID());
+				} else {
+					// stays stored until acked
+					sendPublishInFlight(clientID, new SharedPublish(
+							pubEvt.getTopic(), pubEvt.getMessage()),
+							pubEvt.getQos(), false, pubEvt.getStoredID());
+				}
+			}
+			long delay = Math.max(clientLimiter.reserve(batch.size()),
+					replayLimiter.reserve(batch.size()));
+			TIMER.newTimeout(this, delay, TimeUnit.NANOSECONDS);
+		}
+		
+		private boolean hasQueuedInflight() {
+			InflightWindow window = inflightWindows.get(clientID);
+			if (window == null) {
+				return false;
+			}
+			synchronized (window) {
+				return window.pendingSize() > 0;
+			}
+		}
+	}
+	
+	/**
+	 * @return true iff the client is still connected on the channel.
+	 * */
+	private boolean isConnected(String clientID, ServerChannel session) {
+		// the client could also have reconnected on another channel
+		ConnectionDescriptor descriptor = clientIDs.get(clientID);
+		return descriptor != null
+				&& descriptor.getSession().channelId()
+						.equals(session.channelId());
 	}
 }
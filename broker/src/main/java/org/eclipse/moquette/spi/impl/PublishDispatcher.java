@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage;
+import org.eclipse.moquette.proto.messages.PubRelMessage;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+import org.eclipse.moquette.server.ServerChannel;
+import org.eclipse.moquette.server.netty.NettyChannel;
+import org.eclipse.moquette.spi.impl.events.MessagingEvent;
+import org.eclipse.moquette.spi.impl.events.ProtocolEvent;
+import org.eclipse.moquette.spi.impl.events.StopEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the publishes over from the event loops to lanes of worker threads,
+ * so the topic matching, the storing and the writes to the subscribers of a
+ * hot publisher are spread on the cores instead of pinning its event loop.
+ * The lane of a publish is chosen by its topic, so the publishes of a topic
+ * are processed in arrival order; the PUBREL of a QoS 2 publish goes to the
+ * lane of its topic too, its forward keeps the order with the publishes of
+ * the topic. The publishes of a client on different topics may be processed
+ * out of order, their acks are not: each publish carries the place of its
+ * ack in the AckSequence of the client, taken on the event loop before the
+ * dispatch.
+ * 
+ * Each lane is a ring of preallocated slots in the fashion of the LMAX
+ * Disruptor: a producer claims a sequence with a single atomic operation and
+ * publishes its event marking the slot with the sequence, the lane thread
+ * takes the published events in order, spinning and then parking when there
+ * is none. The event loops never wait for a full ring: the publish is put
+ * aside with the next ones of its channel, which stops reading, and they are
+ * dispatched again on the event loop of the channel once the lane makes
+ * room. The publishes waiting when the lane takes the next one are delivered
+ * as a DeliveryBatch, a busy topic reaches each subscriber with a task per
+ * run, not per message.
+ */
+class PublishDispatcher {
+	
+	private static final Logger	LOG		= LoggerFactory
+												.getLogger(PublishDispatcher.class);
+	
+	// busy spins of an idle lane before parking
+	private static final int	SPINS	= 1000;
+	
+	private final ProtocolProcessor	processor;
+	private final Lane[]			lanes;
+	// no more events are taken by the lanes once stopped, all of them are
+	// processed once drained
+	private volatile boolean		stopped;
+	private volatile boolean		drained;
+	
+	/**
+	 * @param ringSize the slots of each lane, a power of 2 greater than 1.
+	 */
+	PublishDispatcher(ProtocolProcessor processor, int lanes, int ringSize) {
+		if (ringSize < 2 || Integer.bitCount(ringSize) != 1) {
+			throw new IllegalArgumentException(
+					"ringSize must be a power of 2 greater than 1, found "
+							+ ringSize);
+		}
+		this.processor = processor;
+		this.lanes = new Lane[lanes];
+		for (int i = 0; i < lanes; i++) {
+			this.lanes[i] = new Lane(ringSize, "moquette-publish-lane-" + i);
+		}
+	}
+	
+	/**
+	 * The PUBLISH or PUBREL with the lane of its topic and the place of its
+	 * ack.
+	 */
+	private static final class LaneEvent extends ProtocolEvent {
+		
+		private final Lane				lane;
+		private final AckSequence.Ack	ack;
+		
+		LaneEvent(ServerChannel session, AbstractMessage msg, Lane lane,
+				AckSequence.Ack ack) {
+			super(session, msg);
+			this.lane = lane;
+			this.ack = ack;
+		}
+	}
+	
+	/**
+	 * The events of a channel put aside while a lane is full, in the order
+	 * of the channel; only touched on its event loop.
+	 */
+	private final class Waiting implements Runnable {
+		
+		private final ServerChannel		session;
+		private final Queue<LaneEvent>	events	= new ArrayDeque<>();
+		
+		Waiting(ServerChannel session) {
+			this.session = session;
+		}
+		
+		/**
+		 * Dispatch the events waiting, run on the event loop of the channel
+		 * when a lane makes room.
+		 */
+		@Override
+		public void run() {
+			LaneEvent evt;
+			while ((evt = events.peek()) != null) {
+				if (drained) {
+					process(evt);
+				} else if (stopped || !evt.lane.tryPublish(evt)) {
+					evt.lane.await(this);
+					return;
+				}
+				events.poll();
+			}
+			session.setAutoRead(true);
+		}
+	}
+	
+	/**
+	 * Called on the event loop of the channel.
+	 * 
+	 * @param ack the place of the ack of the publish, null when it's not
+	 *            acked.
+	 */
+	void dispatch(ServerChannel session, PublishMessage msg,
+			AckSequence.Ack ack) {
+		dispatch(new LaneEvent(session, msg, lane(msg.getTopicName()), ack));
+	}
+	
+	/**
+	 * Called on the event loop of the channel.
+	 * 
+	 * @param topic the topic of the QoS 2 message released.
+	 */
+	void dispatch(ServerChannel session, PubRelMessage msg, String topic,
+			AckSequence.Ack ack) {
+		dispatch(new LaneEvent(session, msg, lane(topic), ack));
+	}
+	
+	private void dispatch(LaneEvent evt) {
+		ServerChannel session = evt.getSession();
+		Waiting waiting = (Waiting) session
+				.getAttribute(NettyChannel.ATTR_KEY_WAITING);
+		if (waiting != null && !waiting.events.isEmpty()) {
+			// behind the ones of the channel already waiting
+			waiting.events.add(evt);
+			return;
+		}
+		if (evt.lane.tryPublish(evt)) {
+			return;
+		}
+		if (waiting == null) {
+			waiting = new Waiting(session);
+			session.setAttribute(NettyChannel.ATTR_KEY_WAITING, waiting);
+		}
+		// stop reading the channel till the lane makes room
+		session.setAutoRead(false);
+		waiting.events.add(evt);
+		evt.lane.await(waiting);
+	}
+	
+	private Lane lane(String topic) {
+		int hash = topic.hashCode();
+		// spread the high bits, topics often differ only in the last level
+		hash ^= hash >>> 16;
+		return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+	}
+	
+	/**
+	 * Stop the lanes once they have processed the publishes already
+	 * dispatched, the ones still waiting for room are processed on the event
+	 * loops of their channels.
+	 */
+	void stop() {
+		stopped = true;
+		for (Lane lane : lanes) {
+			lane.publish(new StopEvent());
+		}
+		for (Lane lane : lanes) {
+			try {
+				lane.thread.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		drained = true;
+		for (Lane lane : lanes) {
+			lane.wakeWaiting();
+		}
+	}
+	
+	private void process(LaneEvent evt) {
+		try {
+			if (evt.getMessage() instanceof PublishMessage) {
+				processor.doProcessPublish(evt.getSession(),
+						(PublishMessage) evt.getMessage(), evt.ack);
+			} else {
+				processor.doProcessPubRel(evt.getSession(),
+						(PubRelMessage) evt.getMessage(), evt.ack);
+			}
+		} catch (Exception ex) {
+			LOG.error("Bad error in processing the message", ex);
+			if (evt.ack != null) {
+				// not acked, the acks after it mustn't wait for it
+				evt.ack.ready(null);
+			}
+		}
+	}
+	
+	private final class Lane implements Runnable {
+		
+		private final MessagingEvent[]	events;
+		// per slot, sequence + 1 once its event is published and sequence +
+		// events.length once it's taken, free for the next round
+		private final AtomicLongArray	marks;
+		private final int				mask;
+		// the next sequence a producer claims
+		private final AtomicLong		claimed	= new AtomicLong();
+		// the channels with events waiting for room
+		private final Queue<Waiting>	waiting	= new ConcurrentLinkedQueue<>();
+		private final Thread			thread;
+		private volatile boolean		parked;
+		
+		Lane(int size, String name) {
+			this.events = new MessagingEvent[size];
+			this.marks = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				marks.set(i, i);
+			}
+			this.mask = size - 1;
+			this.thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		/**
+		 * Publish the event, waiting while the ring is full. Not to be called
+		 * on an event loop.
+		 */
+		void publish(MessagingEvent evt) {
+			long sequence = claimed.getAndIncrement();
+			int slot = (int) (sequence & mask);
+			while (marks.get(slot) != sequence) {
+				// the ring is full, wait for the lane to take the slot
+				LockSupport.parkNanos(1000);
+			}
+			published(slot, sequence, evt);
+		}
+		
+		/**
+		 * @return false if the ring is full.
+		 */
+		boolean tryPublish(MessagingEvent evt) {
+			while (true) {
+				long sequence = claimed.get();
+				int slot = (int) (sequence & mask);
+				if (marks.get(slot) != sequence) {
+					return false;
+				}
+				if (claimed.compareAndSet(sequence, sequence + 1)) {
+					published(slot, sequence, evt);
+					return true;
+				}
+			}
+		}
+		
+		private void published(int slot, long sequence, MessagingEvent evt) {
+			events[slot] = evt;
+			marks.set(slot, sequence + 1);
+			if (parked) {
+				LockSupport.unpark(thread);
+			}
+		}
+		
+		private boolean hasRoom() {
+			long sequence = claimed.get();
+			return marks.get((int) (sequence & mask)) == sequence;
+		}
+		
+		/**
+		 * Run the waiting events of the channel once the ring has room.
+		 */
+		void await(Waiting channel) {
+			waiting.add(channel);
+			// the lane may have made room, or drained, before seeing it
+			// waiting
+			if (drained || !stopped && hasRoom()) {
+				wakeWaiting();
+			}
+		}
+		
+		void wakeWaiting() {
+			Waiting channel;
+			while ((channel = waiting.poll()) != null) {
+				channel.session.execute(channel);
+			}
+		}
+		
+		@Override
+		public void run() {
+			long next = 0;
+			while (true) {
+				awaitPublished(next);
+				// the publishes already waiting, at most a ring of them, are
+				// delivered to their subscribers as a batch
+				long end = next + events.length;
+				DeliveryBatch.open();
+				try {
+					do {
+						MessagingEvent evt = take(next++);
+						if (evt instanceof StopEvent) {
+							return;
+						}
+						process((LaneEvent) evt);
+					} while (next < end && isPublished(next));
+				} finally {
+					DeliveryBatch.close();
+				}
+				if (!waiting.isEmpty()) {
+					wakeWaiting();
+				}
+			}
+		}
+		private boolean isPublished(long sequence) {
+			return marks.get((int) (sequence & mask)) == sequence + 1;
+		}
+		
+		/**
+		 * @return the published event, freeing its slot for the next round.
+		 */
+		private MessagingEvent take(long sequence) {
+			int slot = (int) (sequence & mask);
+			MessagingEvent evt = events[slot];
+			events[slot] = null;
+			marks.set(slot, sequence + events.length);
+			return evt;
+		}
+		
+		private void awaitPublished(long sequence) {
+			int spins = 0;
+			while (!isPublished(sequence)) {
+				if (spins < SPINS) {
+					spins++;
+					continue;
+				}
+				// a producer publishing after this check sees it parked
+				parked = true;
+				if (!isPublished(sequence)) {
+					LockSupport.park(this);
+				}
+				parked = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces a flow of messages to a rate. The senders account for the messages
+ * just sent and wait the returned delay before sending again, so the flow
+ * never runs ahead of the rate by more than the last batch.
+ * 
+ * Thread safe.
+ */
+class RateLimiter {
+	
+	// 0 for no limit
+	private final long	nanosPerMessage;
+	// when the messages sent so far are paid off
+	private long		nextFree		= System.nanoTime();
+	
+	/**
+	 * @param messagesPerSecond
+	 *            the rate, 0 for no limit.
+	 * */
+	RateLimiter(int messagesPerSecond) {
+		this.nanosPerMessage = messagesPerSecond > 0 ? TimeUnit.SECONDS
+				.toNanos(1) / messagesPerSecond : 0;
+	}
+	
+	/**
+	 * Account for the messages just sent.
+	 * 
+	 * @return the nanoseconds to wait before sending more.
+	 * */
+	synchronized long reserve(int messages) {
+		if (nanosPerMessage == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		if (nextFree - now < 0) {
+			// the time not used is not saved for a burst
+			nextFree = now;
+		}
+		nextFree += messages * nanosPerMessage;
+		return nextFree - now;
+	}
+}
@@ -17,7 +17,24 @@ package org.eclipse.moquette.spi.impl;
 
 import static org.eclipse.moquette.commons.Constants.ACL_FILE_PROPERTY_NAME;
 import static org.eclipse.moquette.commons.Constants.ALLOW_ANONYMOUS_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.INFLIGHT_RETRY_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.MATCH_CACHE_SIZE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.MAX_INFLIGHT_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.OFFLINE_QUEUE_MAX_BYTES_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.OFFLINE_QUEUE_MAX_MESSAGES_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.OFFLINE_QUEUE_POLICY_PROPERTY_NAME;
 import static org.eclipse.moquette.commons.Constants.PASSWORD_FILE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.PERSISTENT_STORE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.PUBLISH_LANES_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.PUBLISH_LANE_RING_SIZE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.REPLAY_BATCH_SIZE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.REPLAY_CLIENT_RATE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.REPLAY_GLOBAL_RATE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.RETAINED_OFF_HEAP_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.SHARED_SUBSCRIPTION_POLICY_NAME;
+import static org.eclipse.moquette.commons.Constants.STORAGE_TYPE_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.SUBSCRIPTIONS_SNAPSHOT_PROPERTY_NAME;
+import static org.eclipse.moquette.commons.Constants.SUBSCRIPTIONS_WRITE_BEHIND_PROPERTY_NAME;
 
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
@@ -40,6 +57,8 @@ import org.eclipse.moquette.spi.impl.security.FileAuthenticator;
 import org.eclipse.moquette.spi.impl.security.IAuthenticator;
 import org.eclipse.moquette.spi.impl.security.IAuthorizator;
 import org.eclipse.moquette.spi.impl.security.PermitAllAuthorizator;
+import org.eclipse.moquette.spi.impl.storage.OfflineQueue;
+import org.eclipse.moquette.spi.impl.subscriptions.SharedSubscriptions;
 import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionsStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -85,7 +104,39 @@ public class SimpleMessaging {
 	}
 	
 	public ProtocolProcessor init(IConfig configProps) {
-		subscriptions = new SubscriptionsStore();
+		File storePath = new File(configProps.getProperty(
+				PERSISTENT_STORE_PROPERTY_NAME, Constants.DEFAULT_JOURNAL_PATH));
+		String storageType = configProps.getProperty(
+				STORAGE_TYPE_PROPERTY_NAME, "memory");
+		MemoryStorageService storage;
+		if ("memory".equals(storageType)) {
+			storage = new MemoryStorageService();
+		} else if ("file".equals(storageType)) {
+			storage = new FileStorageService(storePath);
+		} else if ("mapped".equals(storageType)) {
+			// the payloads are mapped, nothing survives a restart
+			storage = new MappedStorageService(storePath);
+		} else {
+			throw new IllegalArgumentException("Unknown "
+					+ STORAGE_TYPE_PROPERTY_NAME + " " + storageType);
+		}
+		storageService = storage;
+		sessionsStore = storage;
+		long writeBehindMillis = Long.parseLong(configProps.getProperty(
+				SUBSCRIPTIONS_WRITE_BEHIND_PROPERTY_NAME, "0"));
+		if (writeBehindMillis > 0) {
+			sessionsStore = new WriteBehindSessionsStore(storage,
+					writeBehindMillis);
+		}
+		SubscriptionsStore subscriptionsStore = new SubscriptionsStore();
+		subscriptionsStore.setMatchCacheSize(Integer.parseInt(configProps
+				.getProperty(MATCH_CACHE_SIZE_PROPERTY_NAME, "0")));
+		String snapshotPath = configProps.getProperty(
+				SUBSCRIPTIONS_SNAPSHOT_PROPERTY_NAME, "");
+		if (!snapshotPath.isEmpty()) {
+			subscriptionsStore.setSnapshotFile(new File(snapshotPath));
+		}
+		subscriptions = subscriptionsStore;
 		return processInit(configProps, null);
 	}
 	
@@ -102,12 +153,19 @@ public class SimpleMessaging {
 	
 	private ProtocolProcessor processInit(IConfig props,
 			InterceptHandler handler) {
-		// TODO use a property to select the storage path
-		// MapDBPersistentStore mapStorage = new MapDBPersistentStore(
-		// props.getProperty(PERSISTENT_STORE_PROPERTY_NAME, ""));
-		// storageService = mapStorage;
-		// sessionsStore = mapStorage;
-		
+		if (storageService instanceof MemoryStorageService) {
+			((MemoryStorageService) storageService).setOfflineQueueLimits(
+					Integer.parseInt(props.getProperty(
+							OFFLINE_QUEUE_MAX_MESSAGES_PROPERTY_NAME, "10000")),
+					Long.parseLong(props.getProperty(
+							OFFLINE_QUEUE_MAX_BYTES_PROPERTY_NAME, "0")),
+					OfflineQueue.OverflowPolicy.valueOf(props.getProperty(
+							OFFLINE_QUEUE_POLICY_PROPERTY_NAME, "drop_oldest")
+							.toUpperCase()));
+			((MemoryStorageService) storageService).setRetainedOffHeap(Boolean
+					.parseBoolean(props.getProperty(
+							RETAINED_OFF_HEAP_PROPERTY_NAME, "false")));
+		}
 		storageService.initStore();
 		
 		List<InterceptHandler> observers = new ArrayList<InterceptHandler>();
@@ -183,6 +241,21 @@ public class SimpleMessaging {
 				ALLOW_ANONYMOUS_PROPERTY_NAME, "true"));
 		processor.init(subscriptions, storageService, sessionsStore,
 				authenticator, allowAnonymous, authorizator, interceptor);
+		processor.setSharedSubscriptionsPolicy(SharedSubscriptions.Policy
+				.valueOf(props.getProperty(
+						SHARED_SUBSCRIPTION_POLICY_NAME, "round_robin")
+						.toUpperCase()));
+		processor.setInflightWindow(Integer.parseInt(props.getProperty(
+				MAX_INFLIGHT_PROPERTY_NAME, "20")), Integer.parseInt(props
+				.getProperty(INFLIGHT_RETRY_PROPERTY_NAME, "20")));
+		processor.setSessionReplay(Integer.parseInt(props.getProperty(
+				REPLAY_BATCH_SIZE_PROPERTY_NAME, "100")), Integer
+				.parseInt(props.getProperty(REPLAY_CLIENT_RATE_PROPERTY_NAME,
+						"1000")), Integer.parseInt(props.getProperty(
+				REPLAY_GLOBAL_RATE_PROPERTY_NAME, "10000")));
+		processor.setPublishLanes(Integer.parseInt(props.getProperty(
+				PUBLISH_LANES_PROPERTY_NAME, "0")), Integer.parseInt(props
+				.getProperty(PUBLISH_LANE_RING_SIZE_PROPERTY_NAME, "1024")));
 		return processor;
 	}
 	
@@ -225,6 +298,15 @@ public class SimpleMessaging {
 	}
 	
 	public void shutdown() {
+		// the publishes already dispatched to the lanes first
+		processor.stop();
+		if (sessionsStore instanceof WriteBehindSessionsStore) {
+			// the pending subscription changes first
+			((WriteBehindSessionsStore) sessionsStore).close();
+		}
+		if (subscriptions instanceof SubscriptionsStore) {
+			((SubscriptionsStore) subscriptions).saveSnapshot();
+		}
 		this.storageService.close();
 	}
 }
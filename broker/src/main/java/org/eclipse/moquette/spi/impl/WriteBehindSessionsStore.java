@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.moquette.spi.IAsyncSessionsStore;
+import org.eclipse.moquette.spi.ISessionsStore;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write behind view of a sessions store. The subscription changes of a client
+ * are coalesced in memory, so that an add followed by a remove, or the
+ * updates of many reconnections, cost a single write; a background thread
+ * writes the pending changes of all the clients every flush interval, which
+ * bounds how stale the wrapped store can be. The reads see the pending
+ * changes, and close() writes them before returning.
+ * 
+ * Creating a session writes through, after the pending changes of the
+ * client. The futures of the other async changes are completed once the
+ * changes are pending, the acks don't wait for the background writes.
+ */
+public class WriteBehindSessionsStore implements ISessionsStore,
+		IAsyncSessionsStore {
+	
+	/**
+	 * The subscription changes of a client not yet written, either a whole
+	 * set replacing the stored one or the changes relative to it.
+	 */
+	private static final class Pending {
+		boolean							replace;
+		// by topic filter when replace, null if the subscriptions are wiped
+		Map<String, Subscription>		replacement;
+		final Map<String, Subscription>	added		= new LinkedHashMap<>();
+		final Set<String>				removed		= new HashSet<>();
+		// written, a new Pending has to be created for the next changes
+		volatile boolean				flushed;
+	}
+	
+	private static final Logger						LOG		= LoggerFactory
+																	.getLogger(WriteBehindSessionsStore.class);
+	private static final Future<Void>				DONE	= ImmediateEventExecutor.INSTANCE
+																	.newSucceededFuture(null);
+	
+	private final ISessionsStore					store;
+	private final ConcurrentMap<String, Pending>	pending	= new ConcurrentHashMap<>();
+	private final ScheduledExecutorService			writer;
+	
+	/**
+	 * @param flushMillis
+	 *            the interval between the writes of the pending changes.
+	 * */
+	public WriteBehindSessionsStore(ISessionsStore store, long flushMillis) {
+		this.store = store;
+		this.writer = Executors
+				.newSingleThreadScheduledExecutor(new DefaultThreadFactory(
+						"moquette-subscriptions-writer", true));
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException ex) {
+					LOG.error("Can't write the subscription changes", ex);
+				}
+			}
+		}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Write the pending changes of all the clients.
+	 * */
+	public void flush() {
+		for (String clientID : pending.keySet()) {
+			flush(clientID);
+		}
+	}
+	
+	/**
+	 * Stop the background writes and write the pending changes.
+	 * */
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+	
+	/**
+	 * @return the count of the clients with changes not yet written.
+	 * */
+	public int pendingClients() {
+		return pending.size();
+	}
+	
+	private void flush(String clientID) {
+		Pending changes = pending.get(clientID);
+		if (changes == null) {
+			return;
+		}
+		synchronized (changes) {
+			if (changes.flushed) {
+				return;
+			}
+			if (!changes.replace) {
+				for (String topicFilter : changes.removed) {
+					store.removeSubscription(topicFilter, clientID);
+				}
+				for (Subscription subscription : changes.added.values()) {
+					store.addNewSubscription(subscription);
+				}
+			} else if (changes.replacement == null) {
+				store.wipeSubscriptions(clientID);
+			} else {
+				store.updateSubscriptions(clientID, new HashSet<>(
+						changes.replacement.values()));
+			}
+			changes.flushed = true;
+			pending.remove(clientID, changes);
+		}
+	}
+	
+	/**
+	 * @return the pending changes of the client, to be locked and checked not
+	 *         flushed by the caller.
+	 * */
+	private Pending pending(String clientID) {
+		while (true) {
+			Pending changes = pending.get(clientID);
+			if (changes != null && !changes.flushed) {
+				return changes;
+			}
+			Pending created = new Pending();
+			if (changes == null ? pending.putIfAbsent(clientID, created) == null
+					: pending.replace(clientID, changes, created)) {
+				return created;
+			}
+		}
+	}
+	
+	@Override
+	public void addNewSubscription(Subscription newSubscription) {
+		String clientID = newSubscription.getClientId();
+		while (true) {
+			Pending changes = pending(clientID);
+			synchronized (changes) {
+				if (changes.flushed) {
+					continue;
+				}
+				if (changes.replace) {
+					if (changes.replacement == null) {
+						changes.replacement = new HashMap<>();
+					}
+					changes.replacement.put(newSubscription.getTopicFilter(),
+							newSubscription);
+				} else {
+					changes.removed.remove(newSubscription.getTopicFilter());
+					changes.added.put(newSubscription.getTopicFilter(),
+							newSubscription);
+				}
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public void removeSubscription(String topic, String clientID) {
+		while (true) {
+			Pending changes = pending(clientID);
+			synchronized (changes) {
+				if (changes.flushed) {
+					continue;
+				}
+				if (changes.replace) {
+					if (changes.replacement != null) {
+						changes.replacement.remove(topic);
+					}
+				} else {
+					changes.added.remove(topic);
+					changes.removed.add(topic);
+				}
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public void wipeSubscriptions(String sessionID) {
+		replace(sessionID, null);
+	}
+	
+	@Override
+	public void updateSubscriptions(String clientID,
+			Set<Subscription> subscriptions) {
+		replace(clientID, subscriptions);
+	}
+	
+	private void replace(String clientID, Collection<Subscription> subscriptions) {
+		while (true) {
+			Pending changes = pending(clientID);
+			synchronized (changes) {
+				if (changes.flushed) {
+					continue;
+				}
+				changes.replace = true;
+				changes.added.clear();
+				changes.removed.clear();
+				changes.replacement = null;
+				if (subscriptions != null) {
+					changes.replacement = new HashMap<>();
+					for (Subscription subscription : subscriptions) {
+						changes.replacement.put(subscription.getTopicFilter(),
+								subscription);
+					}
+				}
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public List<Subscription> listAllSubscriptions() {
+		flush();
+		return store.listAllSubscriptions();
+	}
+	
+	@Override
+	public Set<Subscription> getSubscriptions(String clientID) {
+		Pending changes = pending.get(clientID);
+		if (changes != null) {
+			synchronized (changes) {
+				if (!changes.flushed) {
+					return merged(clientID, changes);
+				}
+			}
+		}
+		return store.getSubscriptions(clientID);
+	}
+	
+	/**
+	 * @return the subscriptions of the client with the pending changes
+	 *         applied, called holding the lock of the changes.
+	 * */
+	private Set<Subscription> merged(String clientID, Pending changes) {
+		if (changes.replace) {
+			return changes.replacement == null ? null : new HashSet<>(
+					changes.replacement.values());
+		}
+		Set<Subscription> stored = store.getSubscriptions(clientID);
+		if (stored == null && changes.added.isEmpty()) {
+			return null;
+		}
+		Set<Subscription> subscriptions = new HashSet<>();
+		if (stored != null) {
+			for (Subscription subscription : stored) {
+				String topicFilter = subscription.getTopicFilter();
+				if (!changes.removed.contains(topicFilter)
+						&& !changes.added.containsKey(topicFilter)) {
+					subscriptions.add(subscription);
+				}
+			}
+		}
+		subscriptions.addAll(changes.added.values());
+		return subscriptions;
+	}
+	
+	@Override
+	public boolean contains(String clientID) {
+		return getSubscriptions(clientID) != null;
+	}
+	
+	@Override
+	public void createNewSession(String clientID) {
+		flush(clientID);
+		store.createNewSession(clientID);
+	}
+	
+	@Override
+	public Future<Void> addNewSubscriptionAsync(Subscription newSubscription) {
+		addNewSubscription(newSubscription);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> removeSubscriptionAsync(String topic, String clientID) {
+		removeSubscription(topic, clientID);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> wipeSubscriptionsAsync(String clientID) {
+		wipeSubscriptions(clientID);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> updateSubscriptionsAsync(String clientID,
+			Set<Subscription> subscriptions) {
+		updateSubscriptions(clientID, subscriptions);
+		return DONE;
+	}
+	
+	@Override
+	public Future<Void> createNewSessionAsync(String clientID) {
+		flush(clientID);
+		if (store instanceof IAsyncSessionsStore) {
+			return ((IAsyncSessionsStore) store).createNewSessionAsync(clientID);
+		}
+		return new BlockingStoresAdapter(null, store)
+				.createNewSessionAsync(clientID);
+	}
+}
@@ -34,6 +34,8 @@ public class PublishEvent extends MessagingEvent {
 	private String		clientID;
 	// Optional attribute, available only fo QoS 1 and 2
 	private Integer		msgID;
+	// set once queued for an offline client, the key of its removal
+	private Long		storedID;
 	
 	public PublishEvent(String topic, QOSType qos, ByteBuffer message,
 			boolean retain, String clientID, Integer msgID) {
@@ -82,6 +84,14 @@ public class PublishEvent extends MessagingEvent {
 		return msgID;
 	}
 	
+	public Long getStoredID() {
+		return storedID;
+	}
+	
+	public void setStoredID(Long storedID) {
+		this.storedID = storedID;
+	}
+	
 	@Override
 	public String toString() {
 		return "PublishEvent{" + "m_msgID=" + msgID + ", m_clientID='"
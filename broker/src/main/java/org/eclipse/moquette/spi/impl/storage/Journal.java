@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only log of records split in segment files. The records are written
+ * and fsynced by a single writer thread in groups: the ones appended while
+ * the disk syncs a batch make the next batch, so many concurrent appenders
+ * pay for one fsync. A snapshot of the whole state can replace the segments
+ * written before it, serialized by the writer thread from a copy of the state
+ * the caller takes when queueing it; the recovery replays the last snapshot
+ * and the segments following it.
+ * 
+ * Each record is framed by its length and CRC32, so a record torn by a crash
+ * at the end of a segment is detected and dropped on recovery.
+ */
+public class Journal {
+	
+	/**
+	 * Receives the records of the journal on recovery, in the order they were
+	 * appended.
+	 */
+	public interface RecordHandler {
+		void replay(byte[] record) throws IOException;
+	}
+	
+	/**
+	 * A copy of the state, serialized to the records of a snapshot by the
+	 * writer thread.
+	 */
+	public interface SnapshotSource {
+		List<byte[]> records();
+	}
+	
+	private static final Logger	LOG				= LoggerFactory
+														.getLogger(Journal.class);
+	
+	private static final String	SEGMENT_PREFIX	= "journal-";
+	private static final String	SEGMENT_SUFFIX	= ".log";
+	private static final String	SNAPSHOT_PREFIX	= "snapshot-";
+	private static final String	SNAPSHOT_SUFFIX	= ".snap";
+	// length and CRC32
+	private static final int	HEADER_SIZE		= 8;
+	
+	private final File			directory;
+	private final long			segmentSize;
+	// runs the listeners of the sync futures, they can't delay the writer
+	private final EventExecutor	notifier		= new DefaultEventExecutor(
+														new DefaultThreadFactory(
+																"moquette-journal-notifier",
+																true));
+	
+	// guards the fields up to waiters
+	private final Object		lock			= new Object();
+	// records and snapshots not yet written
+	private List<Object>		pending			= new ArrayList<>();
+	private long				appended;
+	private long				synced;
+	private boolean				closed;
+	private IOException			failure;
+	private volatile boolean	snapshotNeeded;
+	
+	// by sequence, completed when the record is synced
+	private final NavigableMap<Long, Promise<Void>>	waiters	= new TreeMap<>();
+	
+	// owned by the writer thread once started
+	private FileChannel			segment;
+	private long				segmentIndex;
+	private long				segmentBytes;
+	private ByteBuffer			buffer			= ByteBuffer
+														.allocate(64 * 1024);
+	private Thread				writer;
+	
+	/**
+	 * A snapshot of the state at the point of the journal it was appended.
+	 */
+	private static final class Snapshot {
+		final SnapshotSource	source;
+		
+		Snapshot(SnapshotSource source) {
+			this.source = source;
+		}
+	}
+	
+	/**
+	 * @param directory
+	 *            where the segments and the snapshots are kept.
+	 * @param segmentSize
+	 *            the bytes written in a segment after that a snapshot is
+	 *            needed.
+	 * */
+	public Journal(File directory, long segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+	
+	/**
+	 * Replay the last snapshot and the following segments to the handler,
+	 * then start appending to the last segment.
+	 * */
+	public void open(RecordHandler handler) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create the journal directory "
+					+ directory);
+		}
+		List<Long> snapshots = indexes(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		long first = 0;
+		if (!snapshots.isEmpty()) {
+			first = snapshots.get(snapshots.size() - 1);
+			replay(file(SNAPSHOT_PREFIX, first, SNAPSHOT_SUFFIX), handler);
+		}
+		segmentIndex = first;
+		for (long index : indexes(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			File file = file(SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+			if (index < first) {
+				// left by a crash before the cleanup of the snapshot
+				delete(file);
+				continue;
+			}
+			replay(file, handler);
+			segmentIndex = index;
+		}
+		segment = openSegment(segmentIndex);
+		segmentBytes = segment.size();
+		snapshotNeeded = segmentBytes >= segmentSize;
+		
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "moquette-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Queue the record for the writer thread.
+	 * 
+	 * @return the sequence of the record, to wait for its sync.
+	 * */
+	public long append(byte[] record) {
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("Journal closed");
+			}
+			pending.add(record);
+			lock.notifyAll();
+			return ++appended;
+		}
+	}
+	
+	/**
+	 * Wait until the record with the given sequence, and all the ones before
+	 * it, are on disk.
+	 * */
+	public void sync(long sequence) {
+		synchronized (lock) {
+			while (synced < sequence && failure == null) {
+				try {
+					lock.wait();
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(
+							"Interrupted waiting for the journal sync", iex);
+				}
+			}
+			if (synced < sequence) {
+				throw new RuntimeException("Journal write failed", failure);
+			}
+		}
+	}
+	
+	/**
+	 * Don't wait for the sync of the record with the given sequence.
+	 * 
+	 * @return the future completed once the record, and all the ones before
+	 *         it, are on disk; its listeners run on a notifier thread, so
+	 *         they are free to append and sync other records.
+	 * */
+	public Future<Void> synced(long sequence) {
+		synchronized (lock) {
+			if (synced >= sequence) {
+				return notifier.newSucceededFuture(null);
+			}
+			if (failure != null) {
+				return notifier.newFailedFuture(failure);
+			}
+			Promise<Void> promise = waiters.get(sequence);
+			if (promise == null) {
+				promise = notifier.newPromise();
+				waiters.put(sequence, promise);
+			}
+			return promise;
+		}
+	}
+	
+	/**
+	 * @return true when the records written since the last snapshot fill a
+	 *         segment.
+	 * */
+	public boolean isSnapshotNeeded() {
+		return snapshotNeeded;
+	}
+	
+	/**
+	 * Queue a snapshot of the state that results from all the records
+	 * appended so far, the source is serialized later by the writer thread.
+	 * The records appended next go to a new segment, and the older segments
+	 * are deleted once the snapshot is on disk.
+	 * */
+	public void snapshot(SnapshotSource source) {
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("Journal closed");
+			}
+			snapshotNeeded = false;
+			pending.add(new Snapshot(source));
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Write the queued records and stop the writer thread.
+	 * */
+	public void close() {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			segment.close();
+		} catch (IOException ex) {
+			LOG.warn("Can't close the journal segment", ex);
+		}
+		// the pending notifications still run
+		notifier.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+	}
+	
+	private void write() {
+		while (true) {
+			List<Object> batch;
+			long batchEnd;
+			synchronized (lock) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						lock.wait();
+					} catch (InterruptedException iex) {
+						return;
+					}
+				}
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				pending = new ArrayList<>();
+				batchEnd = appended;
+			}
+			try {
+				for (Object item : batch) {
+					if (item instanceof Snapshot) {
+						writeSnapshot(((Snapshot) item).source.records());
+					} else {
+						frame((byte[]) item, segment);
+					}
+				}
+				flush(segment);
+				segment.force(false);
+			} catch (IOException ex) {
+				LOG.error("Journal write failed", ex);
+				List<Promise<Void>> failed;
+				synchronized (lock) {
+					failure = ex;
+					lock.notifyAll();
+					failed = takeWaiters(Long.MAX_VALUE);
+				}
+				for (Promise<Void> promise : failed) {
+					promise.setFailure(ex);
+				}
+				return;
+			}
+			List<Promise<Void>> done;
+			synchronized (lock) {
+				synced = batchEnd;
+				lock.notifyAll();
+				done = takeWaiters(batchEnd);
+			}
+			for (Promise<Void> promise : done) {
+				promise.setSuccess(null);
+			}
+		}
+	}
+	
+	/**
+	 * @return the waiters up to the given sequence, removed.
+	 * */
+	private List<Promise<Void>> takeWaiters(long sequence) {
+		Map<Long, Promise<Void>> head = waiters.headMap(sequence, true);
+		List<Promise<Void>> taken = new ArrayList<>(head.values());
+		head.clear();
+		return taken;
+	}
+	
+	private void frame(byte[] record, FileChannel channel) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE + record.length) {
+			flush(channel);
+			if (buffer.capacity() < HEADER_SIZE + record.length) {
+				buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		buffer.putInt(record.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(record);
+		if (channel == segment) {
+			segmentBytes += HEADER_SIZE + record.length;
+			if (segmentBytes >= segmentSize) {
+				snapshotNeeded = true;
+			}
+		}
+	}
+	
+	private void flush(FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	private void writeSnapshot(List<byte[]> records) throws IOException {
+		// the records before the snapshot close the current segment
+		flush(segment);
+		segment.force(false);
+		segment.close();
+		segmentIndex++;
+		segment = openSegment(segmentIndex);
+		segmentBytes = 0;
+		
+		File snapshotFile = file(SNAPSHOT_PREFIX, segmentIndex,
+				SNAPSHOT_SUFFIX);
+		File tmp = new File(directory, snapshotFile.getName() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			for (byte[] record : records) {
+				frame(record, channel);
+			}
+			flush(channel);
+			channel.force(false);
+		} finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), snapshotFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Journal snapshot {} written with {} records", snapshotFile,
+				records.size());
+		
+		for (long index : indexes(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+			if (index < segmentIndex) {
+				delete(file(SNAPSHOT_PREFIX, index, SNAPSHOT_SUFFIX));
+			}
+		}
+		for (long index : indexes(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (index < segmentIndex) {
+				delete(file(SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+			}
+		}
+	}
+	
+	/**
+	 * Pass the well formed records of the file to the handler, cutting the
+	 * file at the first torn one.
+	 * */
+	private void replay(File file, RecordHandler handler) throws IOException {
+		long valid = 0;
+		int count = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException eof) {
+					break;
+				}
+				if (length < 0 || valid + HEADER_SIZE + length > file.length()) {
+					break;
+				}
+				int checksum = in.readInt();
+				byte[] record = new byte[length];
+				in.readFully(record);
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				handler.replay(record);
+				valid += HEADER_SIZE + length;
+				count++;
+			}
+		} catch (EOFException eof) {
+			// torn header or record
+		} finally {
+			in.close();
+		}
+		if (valid < file.length()) {
+			LOG.warn("Dropping the torn tail of {} after {} records", file,
+					count);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+		LOG.info("Replayed {} records of {}", count, file);
+	}
+	
+	private FileChannel openSegment(long index) throws IOException {
+		FileChannel channel = new RandomAccessFile(file(SEGMENT_PREFIX, index,
+				SEGMENT_SUFFIX), "rw").getChannel();
+		channel.position(channel.size());
+		return channel;
+	}
+	
+	private File file(String prefix, long index, String suffix) {
+		return new File(directory, prefix + index + suffix);
+	}
+	
+	/**
+	 * @return the indexes of the files with the given prefix and suffix,
+	 *         ascending.
+	 * */
+	private List<Long> indexes(String prefix, String suffix) {
+		List<Long> indexes = new ArrayList<>();
+		String[] names = directory.list();
+		if (names == null) {
+			return indexes;
+		}
+		for (String name : names) {
+			if (name.startsWith(prefix) && name.endsWith(suffix)) {
+				try {
+					indexes.add(Long.parseLong(name.substring(prefix.length(),
+							name.length() - suffix.length())));
+				} catch (NumberFormatException nfex) {
+					LOG.warn("Skipping the unknown journal file {}", name);
+				}
+			}
+		}
+		Collections.sort(indexes);
+		return indexes;
+	}
+	
+	private static void delete(File file) {
+		if (!file.delete()) {
+			LOG.warn("Can't delete the journal file {}", file);
+		}
+	}
+}
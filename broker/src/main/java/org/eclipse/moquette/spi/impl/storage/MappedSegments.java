@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Payloads kept out of the heap in memory mapped segment files. A payload is
+ * copied once in the active segment and read back from the mapped region, a
+ * new segment is mapped when the active one is full; a segment file is
+ * deleted as soon as all of its payloads are released. The on-heap side is
+ * the slice of each payload and a count of the live payloads per segment, the
+ * page cache holds the bytes.
+ * 
+ * The segments are scratch space, they are not recovered on restart.
+ * 
+ * Thread safe.
+ */
+public class MappedSegments {
+	
+	/**
+	 * A payload written in a segment, valid until released.
+	 */
+	public static final class Payload {
+		private final Segment		segment;
+		private final ByteBuffer	buffer;
+		
+		private Payload(Segment segment, ByteBuffer buffer) {
+			this.segment = segment;
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * @return a read only view of the mapped bytes, no bytes are copied.
+		 * */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+	}
+	
+	private static final class Segment {
+		private final File				file;
+		private final MappedByteBuffer	region;
+		private int						live;
+		
+		private Segment(File file, MappedByteBuffer region) {
+			this.file = file;
+			this.region = region;
+		}
+	}
+	
+	private static final Logger	LOG				= LoggerFactory
+														.getLogger(MappedSegments.class);
+	
+	private static final String	SEGMENT_PREFIX	= "segment-";
+	private static final String	SEGMENT_SUFFIX	= ".dat";
+	
+	private final File			directory;
+	private final int			segmentSize;
+	// segment appended to, it's never deleted while active
+	private Segment				active;
+	private long				nextSegment;
+	private int					segments;
+	private long				mappedBytes;
+	
+	public MappedSegments(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new RuntimeException("Can't create the segments directory "
+					+ directory);
+		}
+		// left by a previous run, nothing refers to them anymore
+		deleteSegmentFiles();
+	}
+	
+	/**
+	 * Copy the remaining bytes of the payload in the active segment, its
+	 * position is left untouched. A payload bigger than the segment size gets
+	 * a segment on its own.
+	 * */
+	public synchronized Payload append(ByteBuffer payload) {
+		int size = payload.remaining();
+		if (active == null || active.region.remaining() < size) {
+			Segment full = active;
+			active = map(Math.max(segmentSize, size));
+			if (full != null && full.live == 0) {
+				delete(full);
+			}
+		}
+		ByteBuffer slice = active.region.slice();
+		slice.limit(size);
+		slice.put(payload.duplicate());
+		slice.flip();
+		active.region.position(active.region.position() + size);
+		active.live++;
+		return new Payload(active, slice.asReadOnlyBuffer());
+	}
+	
+	/**
+	 * Release the payload, deleting its segment if it was the last live one.
+	 * */
+	public synchronized void release(Payload payload) {
+		Segment segment = payload.segment;
+		segment.live--;
+		if (segment.live == 0 && segment != active) {
+			delete(segment);
+		}
+	}
+	
+	/**
+	 * @return the count of the segment files currently mapped.
+	 * */
+	public synchronized int segments() {
+		return segments;
+	}
+	
+	/**
+	 * @return the bytes of the segment files currently mapped.
+	 * */
+	public synchronized long mappedBytes() {
+		return mappedBytes;
+	}
+	
+	/**
+	 * Delete all the segment files, the payloads still referenced stay
+	 * readable until their mapping is collected.
+	 * */
+	public synchronized void close() {
+		active = null;
+		segments = 0;
+		mappedBytes = 0;
+		deleteSegmentFiles();
+	}
+	
+	private Segment map(int size) {
+		File file = new File(directory, SEGMENT_PREFIX + nextSegment++
+				+ SEGMENT_SUFFIX);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(size);
+			// the mapping stays valid after the file is closed
+			MappedByteBuffer region = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			segments++;
+			mappedBytes += size;
+			return new Segment(file, region);
+		} catch (IOException ex) {
+			LOG.error("Can't map the segment " + file, ex);
+			file.delete();
+			throw new RuntimeException("Can't map the segment " + file, ex);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+					LOG.warn("Can't close the segment " + file, ex);
+				}
+			}
+		}
+	}
+	
+	private void delete(Segment segment) {
+		segments--;
+		mappedBytes -= segment.region.capacity();
+		// on most systems the pages are freed when the mapping is collected
+		if (!segment.file.delete()) {
+			LOG.warn("Can't delete the segment {}", segment.file);
+		}
+	}
+	
+	private void deleteSegmentFiles() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)
+					&& !file.delete()) {
+				LOG.warn("Can't delete the segment {}", file);
+			}
+		}
+	}
+}
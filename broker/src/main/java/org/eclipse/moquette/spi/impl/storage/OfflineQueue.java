@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+
+/**
+ * The publishes stored for a disconnected client with a persistent session,
+ * in arrival order and indexed by a stored ID unique in the queue, so the ack
+ * of any of them removes it in constant time. The messageID can't be the key,
+ * the publishers of the forwarded messages reuse the same ones. The queue is bounded by a count of messages and by the
+ * bytes of their payloads, 0 meaning no bound; when a new message doesn't fit
+ * the overflow policy chooses which message is dropped.
+ * 
+ * Not thread safe.
+ */
+public class OfflineQueue {
+	
+	public enum OverflowPolicy {
+		/**
+		 * Drop the oldest messages to make room for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Keep the queued messages and reject the new one.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Drop the oldest QoS 0 messages first, a new QoS 0 message is
+		 * rejected; the oldest QoS 1 and 2 messages are dropped only when no
+		 * QoS 0 one is left.
+		 */
+		REJECT_QOS0_FIRST
+	}
+	
+	// stored ID -> message, iterated in arrival order
+	private final Map<Long, PublishEvent>	messages	= new LinkedHashMap<>();
+	// stored IDs of the QoS 0 messages, oldest first, for REJECT_QOS0_FIRST
+	private final Set<Long>					qos0		= new LinkedHashSet<>();
+	private final int						maxMessages;
+	private final long						maxBytes;
+	private final OverflowPolicy			policy;
+	private final OfflineQueuesMetrics		metrics;
+	private long							nextStoredID;
+	private long							bytes;
+	
+	public OfflineQueue(int maxMessages, long maxBytes, OverflowPolicy policy,
+			OfflineQueuesMetrics metrics) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Append the message, dropping the ones chosen by the overflow policy if
+	 * the queue is full. The message gets the next stored ID, unless it's
+	 * restored with the one it had.
+	 * 
+	 * @return false if the message itself was rejected.
+	 * */
+	public boolean offer(PublishEvent evt) {
+		long size = size(evt);
+		if (maxBytes > 0 && size > maxBytes) {
+			// would never fit, don't drop the queue for it
+			metrics.dropped();
+			discarded(evt);
+			return false;
+		}
+		while (isFull(size)) {
+			if (!dropVictim(evt)) {
+				metrics.dropped();
+				discarded(evt);
+				return false;
+			}
+			metrics.dropped();
+		}
+		Long storedID = evt.getStoredID();
+		if (storedID == null) {
+			storedID = nextStoredID++;
+			evt.setStoredID(storedID);
+		} else {
+			nextStoredID = Math.max(nextStoredID, storedID + 1);
+		}
+		messages.put(storedID, evt);
+		if (policy == OverflowPolicy.REJECT_QOS0_FIRST
+				&& evt.getQos() == QOSType.MOST_ONE) {
+			qos0.add(storedID);
+		}
+		bytes += size;
+		metrics.added(size);
+		return true;
+	}
+	
+	private boolean isFull(long size) {
+		return (maxMessages > 0 && messages.size() >= maxMessages)
+				|| (maxBytes > 0 && bytes + size > maxBytes);
+	}
+	
+	/**
+	 * Remove the queued message to drop in favour of the new one.
+	 * 
+	 * @return false if it's the new one to be rejected.
+	 * */
+	private boolean dropVictim(PublishEvent evt) {
+		if (messages.isEmpty() || policy == OverflowPolicy.DROP_NEWEST) {
+			return false;
+		}
+		if (policy == OverflowPolicy.REJECT_QOS0_FIRST) {
+			if (evt.getQos() == QOSType.MOST_ONE) {
+				return false;
+			}
+			if (removeOldestQoS0()) {
+				return true;
+			}
+		}
+		return remove(messages.keySet().iterator().next());
+	}
+	
+	/**
+	 * Remove the message with the given stored ID.
+	 * 
+	 * @return true if a message was removed.
+	 * */
+	public boolean remove(long storedID) {
+		PublishEvent evt = messages.remove(storedID);
+		if (evt == null) {
+			return false;
+		}
+		if (evt.getQos() == QOSType.MOST_ONE) {
+			qos0.remove(storedID);
+		}
+		removed(evt);
+		return true;
+	}
+	
+	/**
+	 * Remove the oldest QoS 0 message.
+	 * 
+	 * @return true if a message was removed.
+	 * */
+	private boolean removeOldestQoS0() {
+		Iterator<Long> oldest = qos0.iterator();
+		if (!oldest.hasNext()) {
+			return false;
+		}
+		Long storedID = oldest.next();
+		oldest.remove();
+		removed(messages.remove(storedID));
+		return true;
+	}
+	
+	private void removed(PublishEvent evt) {
+		bytes -= size(evt);
+		metrics.removed(size(evt));
+		discarded(evt);
+	}
+	
+	public List<PublishEvent> list() {
+		return new ArrayList<>(messages.values());
+	}
+	
+	/**
+	 * The stored IDs grow in arrival order, the messages up to the given one
+	 * are skipped, usually the few a replay has in flight.
+	 * 
+	 * @return the oldest max messages stored after afterStoredID.
+	 * */
+	public List<PublishEvent> list(long afterStoredID, int max) {
+		List<PublishEvent> oldest = new ArrayList<>(Math.min(max,
+				messages.size()));
+		for (Map.Entry<Long, PublishEvent> entry : messages.entrySet()) {
+			if (oldest.size() == max) {
+				break;
+			}
+			if (entry.getKey() > afterStoredID) {
+				oldest.add(entry.getValue());
+			}
+		}
+		return oldest;
+	}
+	
+	public void clear() {
+		for (PublishEvent evt : messages.values()) {
+			metrics.removed(size(evt));
+			discarded(evt);
+		}
+		messages.clear();
+		qos0.clear();
+		bytes = 0;
+	}
+	
+	public int size() {
+		return messages.size();
+	}
+	
+	/**
+	 * @return the bytes of the queued payloads.
+	 * */
+	public long bytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Called for each message leaving the queue, removed, dropped or rejected,
+	 * for the subclasses owning resources of the stored messages.
+	 * */
+	protected void discarded(PublishEvent evt) {
+	}
+	
+	private static long size(PublishEvent evt) {
+		return evt.getMessage().remaining();
+	}
+}
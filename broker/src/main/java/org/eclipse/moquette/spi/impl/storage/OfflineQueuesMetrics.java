@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Depth of all the offline queues of a store, and the messages dropped
+ * because a queue was full.
+ */
+public class OfflineQueuesMetrics {
+	
+	private final AtomicLong	messages	= new AtomicLong();
+	private final AtomicLong	bytes		= new AtomicLong();
+	private final AtomicLong	dropped		= new AtomicLong();
+	
+	void added(long size) {
+		messages.incrementAndGet();
+		bytes.getAndAdd(size);
+	}
+	
+	void removed(long size) {
+		messages.decrementAndGet();
+		bytes.getAndAdd(-size);
+	}
+	
+	void dropped() {
+		dropped.incrementAndGet();
+	}
+	
+	/**
+	 * @return the messages in all the queues.
+	 * */
+	public long messages() {
+		return messages.get();
+	}
+	
+	/**
+	 * @return the payload bytes in all the queues.
+	 * */
+	public long bytes() {
+		return bytes.get();
+	}
+	
+	/**
+	 * @return the messages dropped or rejected since the start.
+	 * */
+	public long droppedMessages() {
+		return dropped.get();
+	}
+}
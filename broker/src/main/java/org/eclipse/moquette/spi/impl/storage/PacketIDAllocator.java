@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+/**
+ * Allocates the packet identifiers of a client session, from 1 to 65535,
+ * tracking the ones in flight in a bitmap. The search of a free identifier
+ * starts after the last allocated one, so a just freed identifier is not
+ * reused until the others have been, and visits at most the 1024 words of the
+ * bitmap.
+ * 
+ * The bitmap is split in pages of 1024 identifiers, allocated when one of
+ * their identifiers is and dropped once all of them are freed, so a session
+ * with a few packets in flight holds a page or two and an idle one none.
+ * 
+ * Not thread safe.
+ */
+public class PacketIDAllocator {
+	
+	public static final int		MAX_PACKET_ID	= 0xFFFF;
+	
+	private static final int	PAGE_WORDS		= 16;
+	private static final int	WORDS			= (MAX_PACKET_ID + 1) >>> 6;
+	
+	// bit n set <=> packet ID n in flight, a null page has none in flight,
+	// null if no packet ID is in flight
+	private long[][]			pages;
+	private int					next			= 1;
+	private int					count;
+	
+	/**
+	 * @return a packet ID not in flight, that becomes in flight, or 0 if all
+	 *         the packet IDs are in flight.
+	 * */
+	public int allocate() {
+		if (count == MAX_PACKET_ID) {
+			return 0;
+		}
+		if (pages == null) {
+			pages = new long[WORDS / PAGE_WORDS][];
+		}
+		int word = next >>> 6;
+		// the bits before next in its word are visited last
+		long free = ~word(word) & (-1L << next);
+		while (free == 0) {
+			word = (word + 1) % WORDS;
+			free = ~word(word);
+		}
+		int packetID = (word << 6) | Long.numberOfTrailingZeros(free);
+		long[] page = pages[word / PAGE_WORDS];
+		if (page == null) {
+			page = new long[PAGE_WORDS];
+			pages[word / PAGE_WORDS] = page;
+		}
+		page[word % PAGE_WORDS] |= 1L << packetID;
+		count++;
+		next = packetID == MAX_PACKET_ID ? 1 : packetID + 1;
+		return packetID;
+	}
+	
+	/**
+	 * @return the bits of a word, 0 is never a valid ID so is set.
+	 * */
+	private long word(int word) {
+		long[] page = pages[word / PAGE_WORDS];
+		long bits = page == null ? 0 : page[word % PAGE_WORDS];
+		return word == 0 ? bits | 1L : bits;
+	}
+	
+	/**
+	 * Make the packet ID available again.
+	 * 
+	 * @return false if the packet ID wasn't in flight.
+	 * */
+	public boolean free(int packetID) {
+		if (!isInFlight(packetID)) {
+			return false;
+		}
+		int word = packetID >>> 6;
+		long[] page = pages[word / PAGE_WORDS];
+		page[word % PAGE_WORDS] &= ~(1L << packetID);
+		if (--count == 0) {
+			pages = null;
+		} else if (page[word % PAGE_WORDS] == 0 && isEmpty(page)) {
+			pages[word / PAGE_WORDS] = null;
+		}
+		return true;
+	}
+	
+	private static boolean isEmpty(long[] page) {
+		for (long bits : page) {
+			if (bits != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public boolean isInFlight(int packetID) {
+		if (packetID < 1 || packetID > MAX_PACKET_ID || pages == null) {
+			return false;
+		}
+		long[] page = pages[(packetID >>> 6) / PAGE_WORDS];
+		return page != null
+				&& (page[(packetID >>> 6) % PAGE_WORDS] & (1L << packetID)) != 0;
+	}
+	
+	/**
+	 * @return the number of packet IDs in flight.
+	 * */
+	public int inFlight() {
+		return count;
+	}
+	
+	/**
+	 * Free all the packet IDs.
+	 * */
+	public void clear() {
+		pages = null;
+		count = 0;
+		next = 1;
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.eclipse.moquette.spi.IMessagesStore.StoredMessage;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tree of the retained messages indexed by topic level, so that the retained
+ * messages matching a topic filter are found visiting only the matched
+ * subtrees instead of scanning all of them. The children of a level are
+ * sorted, so a search can be resumed after the last topic it found.
+ * 
+ * Not thread safe.
+ */
+public class RetainedMessagesTree {
+	
+	private static final Logger	LOG		= LoggerFactory
+												.getLogger(RetainedMessagesTree.class);
+	
+	private static class Node {
+		NavigableMap<String, Node>	children;
+		StoredMessage				message;
+		
+		Node child(String level) {
+			return children == null ? null : children.get(level);
+		}
+		
+		boolean isEmpty() {
+			return message == null && (children == null || children.isEmpty());
+		}
+	}
+	
+	private final Node			root	= new Node();
+	private int					size;
+	
+	/**
+	 * Store the message for the topic, replacing the one already present.
+	 * 
+	 * @return the replaced message, null if there wasn't.
+	 */
+	public StoredMessage put(String topic, StoredMessage message) {
+		String[] levels = levels(topic);
+		if (levels == null) {
+			return null;
+		}
+		Node current = root;
+		for (String level : levels) {
+			Node child = current.child(level);
+			if (child == null) {
+				if (current.children == null) {
+					current.children = new TreeMap<>();
+				}
+				child = new Node();
+				current.children.put(level, child);
+			}
+			current = child;
+		}
+		StoredMessage replaced = current.message;
+		if (replaced == null) {
+			size++;
+		}
+		current.message = message;
+		return replaced;
+	}
+	
+	/**
+	 * Remove the message of the topic, pruning the nodes left empty.
+	 * 
+	 * @return the removed message, null if there wasn't.
+	 */
+	public StoredMessage remove(String topic) {
+		String[] levels = levels(topic);
+		return levels == null ? null : remove(root, levels, 0);
+	}
+	
+	private StoredMessage remove(Node node, String[] levels, int index) {
+		if (index == levels.length) {
+			StoredMessage removed = node.message;
+			if (removed != null) {
+				node.message = null;
+				size--;
+			}
+			return removed;
+		}
+		Node child = node.child(levels[index]);
+		if (child == null) {
+			return null;
+		}
+		StoredMessage removed = remove(child, levels, index + 1);
+		if (child.isEmpty()) {
+			node.children.remove(levels[index]);
+		}
+		return removed;
+	}
+	
+	/**
+	 * @return the retained messages whose topic matches the topic filter.
+	 */
+	public List<StoredMessage> match(String topicFilter) {
+		List<StoredMessage> results = new ArrayList<>();
+		String[] levels = levels(topicFilter);
+		if (levels != null) {
+			match(root, levels, 0, results);
+		}
+		return results;
+	}
+	
+	/**
+	 * Look up the retained messages matching the topic filter in topic order,
+	 * resuming after the topic of the last one found, so that a long search
+	 * is split in steps and the lock of the tree is released in between.
+	 * 
+	 * @param after
+	 *            the levels of the topic of the last message found, null to
+	 *            start from the first.
+	 * @param max
+	 *            the messages to add to the results.
+	 * @return the levels of the topic of the last message added, to resume
+	 *         the search from, null if there are no more.
+	 */
+	public String[] match(String topicFilter, String[] after, int max,
+			List<StoredMessage> results) {
+		String[] levels = levels(topicFilter);
+		if (levels == null) {
+			return null;
+		}
+		Search search = new Search(levels, after, max, results);
+		search.visit(root, 0, 0, after != null);
+		return search.isFull() ? search.last : null;
+	}
+	
+	/**
+	 * A step of a resumable search, visiting the nodes in pre order with the
+	 * children sorted by level.
+	 */
+	private static final class Search {
+		private final String[]				filter;
+		private final String[]				after;
+		private final int					max;
+		private final List<StoredMessage>	results;
+		// the levels of the node visited
+		private String[]					path	= new String[8];
+		private String[]					last;
+		
+		Search(String[] filter, String[] after, int max,
+				List<StoredMessage> results) {
+			this.filter = filter;
+			this.after = after;
+			this.max = max;
+			this.results = results;
+		}
+		
+		boolean isFull() {
+			return results.size() >= max;
+		}
+		
+		/**
+		 * @param onAfter
+		 *            the node is on the path of the topic to resume after, it
+		 *            and its children up to that topic were already visited.
+		 */
+		void visit(Node node, int depth, int index, boolean onAfter) {
+			if (index == filter.length) {
+				add(node, depth, onAfter);
+				return;
+			}
+			String level = filter[index];
+			if (level.equals("#")) {
+				// matches also the parent level
+				add(node, depth, onAfter);
+				visitChildren(node, depth, index, onAfter);
+			} else if (level.equals("+")) {
+				visitChildren(node, depth, index + 1, onAfter);
+			} else {
+				Node child = node.child(level);
+				if (child != null && isAfter(level, depth, onAfter)) {
+					descend(child, level, depth, index + 1, onAfter);
+				}
+			}
+		}
+		
+		private void visitChildren(Node node, int depth, int index,
+				boolean onAfter) {
+			if (node.children == null) {
+				return;
+			}
+			NavigableMap<String, Node> children = node.children;
+			if (onAfter && depth < after.length) {
+				children = children.tailMap(after[depth], true);
+			}
+			for (Map.Entry<String, Node> child : children.entrySet()) {
+				if (isFull()) {
+					return;
+				}
+				descend(child.getValue(), child.getKey(), depth, index, onAfter);
+			}
+		}
+		
+		private void descend(Node child, String level, int depth, int index,
+				boolean onAfter) {
+			if (depth == path.length) {
+				path = Arrays.copyOf(path, depth * 2);
+			}
+			path[depth] = level;
+			visit(child, depth + 1, index, onAfter && depth < after.length
+					&& level.equals(after[depth]));
+		}
+		
+		/**
+		 * @return true if the child of the level isn't before the topic to
+		 *         resume after.
+		 */
+		private boolean isAfter(String level, int depth, boolean onAfter) {
+			return !onAfter || depth >= after.length
+					|| level.compareTo(after[depth]) >= 0;
+		}
+		
+		private void add(Node node, int depth, boolean onAfter) {
+			// the nodes on the path of the last topic were already visited
+			if (node.message == null || onAfter || isFull()) {
+				return;
+			}
+			results.add(node.message);
+			last = Arrays.copyOf(path, depth);
+		}
+	}
+	
+	private static void match(Node node, String[] levels, int index,
+			List<StoredMessage> results) {
+		if (index == levels.length) {
+			if (node.message != null) {
+				results.add(node.message);
+			}
+			return;
+		}
+		String level = levels[index];
+		if (level.equals("#")) {
+			// matches also the parent level
+			collect(node, results);
+		} else if (level.equals("+")) {
+			if (node.children != null) {
+				for (Node child : node.children.values()) {
+					match(child, levels, index + 1, results);
+				}
+			}
+		} else {
+			Node child = node.child(level);
+			if (child != null) {
+				match(child, levels, index + 1, results);
+			}
+		}
+	}
+	
+	private static void collect(Node node, Collection<StoredMessage> results) {
+		if (node.message != null) {
+			results.add(node.message);
+		}
+		if (node.children != null) {
+			for (Node child : node.children.values()) {
+				collect(child, results);
+			}
+		}
+	}
+	
+	/**
+	 * @return all the retained messages.
+	 */
+	public List<StoredMessage> values() {
+		List<StoredMessage> results = new ArrayList<>(size);
+		collect(root, results);
+		return results;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	private static String[] levels(String topic) {
+		try {
+			return SubscriptionUtils.splitTopic(topic);
+		} catch (ParseException ex) {
+			LOG.info("Bad topic <{}> for retained messages", topic);
+			return null;
+		}
+	}
+}
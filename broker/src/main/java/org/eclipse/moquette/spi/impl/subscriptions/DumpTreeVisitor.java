@@ -20,11 +20,11 @@ public class DumpTreeVisitor implements IVisitor<String> {
 	public void visit(TreeNode node, int deep) {
 		String subScriptionsStr = "";
 		String indentTabs = indentTabs(deep);
-		for (Subscription sub : node.subscriptions) {
+		for (Subscription sub : node.subscriptions()) {
 			subScriptionsStr += indentTabs + sub.toString() + "\n";
 		}
 		s += node.getToken() == null ? "" : node.getToken().toString();
-		s += "\n" + (node.subscriptions.isEmpty() ? indentTabs : "")
+		s += "\n" + (node.subscriptions().isEmpty() ? indentTabs : "")
 				+ subScriptionsStr /* + "\n" */;
 	}
 	
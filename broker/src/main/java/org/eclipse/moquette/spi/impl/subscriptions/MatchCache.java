@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded cache of the subscriptions matching a topic, read and written
+ * without locks by all the publishing threads.
+ * 
+ * Each entry is tagged with the generation of its topic when it was matched,
+ * a mismatch is a miss. A change of the subscriptions to a topic filter bumps
+ * the generation of the topics sharing its first level not empty, hashed on
+ * a fixed number of stripes, or of all the topics when the filter has a
+ * wildcard before it; so a change costs a counter increment whatever the size of the
+ * cache, and the entries it made stale are dropped by the eviction. The
+ * eviction is an approximate LRU, a second chance scan that skips the entries
+ * hit since the previous scan.
+ */
+class MatchCache {
+	
+	// generation stripes of the first topic levels
+	private static final int	STRIPES	= 1024;
+	
+	private static final class Entry {
+		// the generation of the topic the subscriptions were matched on
+		final long					generation;
+		final List<Subscription>	subs;
+		// hit since the last eviction scan
+		volatile boolean			referenced;
+		
+		Entry(long generation, List<Subscription> subs) {
+			this.generation = generation;
+			this.subs = subs;
+		}
+	}
+	
+	private final ConcurrentMap<String, Entry>	entries		= new ConcurrentHashMap<>();
+	private final AtomicInteger					size		= new AtomicInteger();
+	private final int							maxSize;
+	// bumped by the changes of the filters with a wildcard in the first levels
+	private final AtomicLong					generation	= new AtomicLong();
+	private final AtomicLongArray				stripes		= new AtomicLongArray(
+																	STRIPES);
+	private final AtomicLong					hits		= new AtomicLong();
+	private final AtomicLong					misses		= new AtomicLong();
+	
+	MatchCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Read before the root of the tree the topic is matched on, so a change
+	 * swapping the root after it makes the entry stale.
+	 * 
+	 * @return the current generation of the topic.
+	 * */
+	long generation(String topic) {
+		// both only grow, so the sum changes with either of them
+		return generation.get() + stripes.get(stripe(topic));
+	}
+	
+	/**
+	 * The stripe is chosen by the levels up to the first not empty one, so the
+	 * topics starting with a / don't all share a single stripe.
+	 * 
+	 * @return the stripe of the topic or topic filter, -1 if the filter has a
+	 *         wildcard in those levels.
+	 * */
+	private static int stripe(String topic) {
+		int hash = 0;
+		boolean empty = true;
+		for (int i = 0; i < topic.length(); i++) {
+			char c = topic.charAt(i);
+			if (c == '/') {
+				if (!empty) {
+					break;
+				}
+			} else if (c == '+' || c == '#') {
+				return -1;
+			} else {
+				empty = false;
+			}
+			hash = 31 * hash + c;
+		}
+		return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+	}
+	
+	/**
+	 * @return the cached subscriptions matching the topic, null if not
+	 *         present or stale.
+	 * */
+	List<Subscription> get(String topic) {
+		Entry entry = entries.get(topic);
+		if (entry == null || entry.generation != generation(topic)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (!entry.referenced) {
+			// written only when it changes, not on every hit
+			entry.referenced = true;
+		}
+		hits.incrementAndGet();
+		return entry.subs;
+	}
+	
+	/**
+	 * @param generation of the topic, read before the tree was.
+	 * */
+	void put(String topic, long generation, List<Subscription> subs) {
+		if (entries.put(topic, new Entry(generation, subs)) == null
+				&& size.incrementAndGet() > maxSize) {
+			evict();
+		}
+	}
+	
+	/**
+	 * Make stale the entries of the topics that could be matched by the
+	 * changed topic filters, called once the new root is swapped in.
+	 * */
+	void invalidate(Collection<String> changedFilters) {
+		for (String filter : changedFilters) {
+			int stripe = stripe(SubscriptionUtils.unsharedFilter(filter));
+			if (stripe < 0) {
+				generation.incrementAndGet();
+			} else {
+				stripes.incrementAndGet(stripe);
+			}
+		}
+	}
+	
+	/**
+	 * Make stale all the entries, once a new tree is loaded.
+	 * */
+	void invalidateAll() {
+		generation.incrementAndGet();
+	}
+	
+	/**
+	 * Remove the entries in excess, first the stale ones then the ones not
+	 * hit since the previous scan, at most two passes.
+	 * */
+	private void evict() {
+		for (int pass = 0; pass < 2 && size.get() > maxSize; pass++) {
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet()
+					.iterator();
+			while (size.get() > maxSize && it.hasNext()) {
+				Map.Entry<String, Entry> mapping = it.next();
+				Entry entry = mapping.getValue();
+				if (entry.referenced
+						&& entry.generation == generation(mapping.getKey())) {
+					entry.referenced = false;
+				} else {
+					remove(mapping.getKey(), entry);
+				}
+			}
+		}
+	}
+	
+	private void remove(String topic, Entry entry) {
+		if (entries.remove(topic, entry)) {
+			size.decrementAndGet();
+		}
+	}
+	
+	long getHits() {
+		return hits.get();
+	}
+	
+	long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+import java.util.Collection;
+
+/**
+ * Immutable hash array mapped trie with String keys.
+ * 
+ * Every put or remove returns a new map that shares with the original all the
+ * branches that are not on the path of the updated key, so an update costs
+ * O(log32 n) and a copy of the map is free. Used by the subscriptions tree to
+ * copy on write only the nodes on the path of a modified topic.
+ */
+final class PersistentStringMap<V> {
+	
+	private static final int							BITS	= 5;
+	private static final int							MASK	= (1 << BITS) - 1;
+	
+	private static final PersistentStringMap<Object>	EMPTY	= new PersistentStringMap<Object>(
+																		null);
+	
+	private static final class Entry {
+		final int		hash;
+		final String	key;
+		final Object	value;
+		
+		Entry(int hash, String key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+	
+	private static abstract class Node {
+		
+		abstract Object find(int shift, int hash, String key);
+		
+		abstract Node put(int shift, Entry entry);
+		
+		/**
+		 * @return the node without the key, null if it's left empty.
+		 * */
+		abstract Node remove(int shift, int hash, String key);
+		
+		/**
+		 * @return the only entry of the node if it contains just one, so that
+		 *         the parent can inline it.
+		 * */
+		abstract Entry singleEntry();
+		
+		abstract void collect(Collection<Object> values);
+	}
+	
+	private static final class BitmapNode extends Node {
+		
+		final int		bitmap;
+		final Object[]	slots;		// Entry or Node
+		
+		BitmapNode(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+		
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+		
+		@Override
+		Object find(int shift, int hash, String key) {
+			int bit = bitpos(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			Object slot = slots[index(bit)];
+			if (slot instanceof Entry) {
+				Entry e = (Entry) slot;
+				return e.key.equals(key) ? e.value : null;
+			}
+			return ((Node) slot).find(shift + BITS, hash, key);
+		}
+		
+		@Override
+		Node put(int shift, Entry entry) {
+			int bit = bitpos(entry.hash, shift);
+			int idx = index(bit);
+			if ((bitmap & bit) == 0) {
+				Object[] newSlots = new Object[slots.length + 1];
+				System.arraycopy(slots, 0, newSlots, 0, idx);
+				newSlots[idx] = entry;
+				System.arraycopy(slots, idx, newSlots, idx + 1, slots.length
+						- idx);
+				return new BitmapNode(bitmap | bit, newSlots);
+			}
+			
+			Object slot = slots[idx];
+			if (slot instanceof Entry) {
+				Entry existing = (Entry) slot;
+				if (existing.key.equals(entry.key)) {
+					if (existing.value == entry.value) {
+						return this;
+					}
+					return with(idx, entry);
+				}
+				return with(idx, merge(shift + BITS, existing, entry));
+			}
+			Node child = (Node) slot;
+			Node newChild = child.put(shift + BITS, entry);
+			return newChild == child ? this : with(idx, newChild);
+		}
+		
+		@Override
+		Node remove(int shift, int hash, String key) {
+			int bit = bitpos(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int idx = index(bit);
+			Object slot = slots[idx];
+			if (slot instanceof Entry) {
+				return ((Entry) slot).key.equals(key) ? without(bit, idx) : this;
+			}
+			Node child = (Node) slot;
+			Node newChild = child.remove(shift + BITS, hash, key);
+			if (newChild == child) {
+				return this;
+			}
+			if (newChild == null) {
+				return without(bit, idx);
+			}
+			Entry single = newChild.singleEntry();
+			return with(idx, single != null ? single : newChild);
+		}
+		
+		@Override
+		Entry singleEntry() {
+			if (slots.length == 1 && slots[0] instanceof Entry) {
+				return (Entry) slots[0];
+			}
+			return null;
+		}
+		
+		@Override
+		void collect(Collection<Object> values) {
+			for (Object slot : slots) {
+				if (slot instanceof Entry) {
+					values.add(((Entry) slot).value);
+				} else {
+					((Node) slot).collect(values);
+				}
+			}
+		}
+		
+		private BitmapNode with(int idx, Object slot) {
+			Object[] newSlots = slots.clone();
+			newSlots[idx] = slot;
+			return new BitmapNode(bitmap, newSlots);
+		}
+		
+		private BitmapNode without(int bit, int idx) {
+			if (slots.length == 1) {
+				return null;
+			}
+			Object[] newSlots = new Object[slots.length - 1];
+			System.arraycopy(slots, 0, newSlots, 0, idx);
+			System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx
+					- 1);
+			return new BitmapNode(bitmap & ~bit, newSlots);
+		}
+	}
+	
+	/**
+	 * Keeps the entries whose keys have the same hash.
+	 * */
+	private static final class CollisionNode extends Node {
+		
+		final int		hash;
+		final Entry[]	entries;
+		
+		CollisionNode(int hash, Entry[] entries) {
+			this.hash = hash;
+			this.entries = entries;
+		}
+		
+		private int indexOf(String key) {
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].key.equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		@Override
+		Object find(int shift, int hash, String key) {
+			if (hash != this.hash) {
+				return null;
+			}
+			int idx = indexOf(key);
+			return idx < 0 ? null : entries[idx].value;
+		}
+		
+		@Override
+		Node put(int shift, Entry entry) {
+			if (entry.hash != hash) {
+				// nest this node in a bitmap one to make room for the new hash
+				return new BitmapNode(bitpos(hash, shift), new Object[] { this })
+						.put(shift, entry);
+			}
+			int idx = indexOf(entry.key);
+			Entry[] newEntries;
+			if (idx < 0) {
+				newEntries = new Entry[entries.length + 1];
+				System.arraycopy(entries, 0, newEntries, 0, entries.length);
+				newEntries[entries.length] = entry;
+			} else {
+				if (entries[idx].value == entry.value) {
+					return this;
+				}
+				newEntries = entries.clone();
+				newEntries[idx] = entry;
+			}
+			return new CollisionNode(hash, newEntries);
+		}
+		
+		@Override
+		Node remove(int shift, int hash, String key) {
+			if (hash != this.hash) {
+				return this;
+			}
+			int idx = indexOf(key);
+			if (idx < 0) {
+				return this;
+			}
+			if (entries.length == 1) {
+				return null;
+			}
+			Entry[] newEntries = new Entry[entries.length - 1];
+			System.arraycopy(entries, 0, newEntries, 0, idx);
+			System.arraycopy(entries, idx + 1, newEntries, idx, entries.length
+					- idx - 1);
+			return new CollisionNode(hash, newEntries);
+		}
+		
+		@Override
+		Entry singleEntry() {
+			return entries.length == 1 ? entries[0] : null;
+		}
+		
+		@Override
+		void collect(Collection<Object> values) {
+			for (Entry e : entries) {
+				values.add(e.value);
+			}
+		}
+	}
+	
+	private static int bitpos(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+	
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	private static Node merge(int shift, Entry e1, Entry e2) {
+		if (e1.hash == e2.hash) {
+			return new CollisionNode(e1.hash, new Entry[] { e1, e2 });
+		}
+		// the hashes are different so they diverge before the shift overflows
+		int idx1 = (e1.hash >>> shift) & MASK;
+		int idx2 = (e2.hash >>> shift) & MASK;
+		if (idx1 == idx2) {
+			return new BitmapNode(1 << idx1, new Object[] { merge(shift + BITS,
+					e1, e2) });
+		}
+		Object[] slots = idx1 < idx2 ? new Object[] { e1, e2 } : new Object[] {
+				e2, e1 };
+		return new BitmapNode((1 << idx1) | (1 << idx2), slots);
+	}
+	
+	private final Node	root;
+	
+	private PersistentStringMap(Node root) {
+		this.root = root;
+	}
+	
+	@SuppressWarnings("unchecked")
+	static <V> PersistentStringMap<V> empty() {
+		return (PersistentStringMap<V>) EMPTY;
+	}
+	
+	boolean isEmpty() {
+		return root == null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	V get(String key) {
+		if (root == null) {
+			return null;
+		}
+		return (V) root.find(0, hash(key), key);
+	}
+	
+	PersistentStringMap<V> put(String key, V value) {
+		Entry entry = new Entry(hash(key), key, value);
+		if (root == null) {
+			return new PersistentStringMap<V>(new BitmapNode(bitpos(entry.hash,
+					0), new Object[] { entry }));
+		}
+		Node newRoot = root.put(0, entry);
+		return newRoot == root ? this : new PersistentStringMap<V>(newRoot);
+	}
+	
+	PersistentStringMap<V> remove(String key) {
+		if (root == null) {
+			return this;
+		}
+		Node newRoot = root.remove(0, hash(key), key);
+		if (newRoot == root) {
+			return this;
+		}
+		return newRoot == null ? PersistentStringMap.<V> empty()
+				: new PersistentStringMap<V>(newRoot);
+	}
+	
+	/**
+	 * Add all the values to the collection, in no specific order.
+	 * */
+	@SuppressWarnings("unchecked")
+	void collectValues(Collection<? super V> values) {
+		if (root != null) {
+			root.collect((Collection<Object>) values);
+		}
+	}
+}
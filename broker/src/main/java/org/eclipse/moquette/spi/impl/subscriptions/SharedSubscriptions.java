@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the member of a shared subscription group ($share/{group}/{filter})
+ * that receives a publish, so that the load is balanced on the group instead
+ * of being duplicated on every member.
+ * 
+ * The connected members are preferred, the offline ones with a persistent
+ * session are chosen only when all the group is offline.
+ */
+public class SharedSubscriptions {
+	
+	public enum Policy {
+		/**
+		 * Members take the publishes in turn.
+		 */
+		ROUND_ROBIN,
+		/**
+		 * The member with the less unacknowledged QoS 1 and 2 publishes.
+		 */
+		LEAST_INFLIGHT,
+		/**
+		 * The publishes on the same topic go always to the same member while
+		 * the group doesn't change, preserving their order.
+		 */
+		STICKY_HASH
+	}
+	
+	private final Policy								policy;
+	// next member to pick for each shared topic filter
+	private final ConcurrentMap<String, AtomicInteger>	turns		= new ConcurrentHashMap<>();
+	// unacknowledged publishes for each clientID, LEAST_INFLIGHT only
+	private final ConcurrentMap<String, AtomicInteger>	inflight	= new ConcurrentHashMap<>();
+	
+	public SharedSubscriptions(Policy policy) {
+		this.policy = policy;
+	}
+	
+	public Policy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * @param matching the subscriptions matching the topic.
+	 * @return the plain subscriptions plus one member for every shared
+	 *         subscription group.
+	 */
+	public List<Subscription> select(String topic, List<Subscription> matching) {
+		Map<String, List<Subscription>> groups = null;
+		List<Subscription> selected = null;
+		for (Subscription sub : matching) {
+			if (!SubscriptionUtils.isShared(sub.getTopicFilter())) {
+				if (selected == null) {
+					selected = new ArrayList<>(matching.size());
+				}
+				selected.add(sub);
+				continue;
+			}
+			if (groups == null) {
+				groups = new LinkedHashMap<>();
+			}
+			List<Subscription> members = groups.get(sub.getTopicFilter());
+			if (members == null) {
+				members = new ArrayList<>();
+				groups.put(sub.getTopicFilter(), members);
+			}
+			members.add(sub);
+		}
+		if (groups == null) {
+			return matching;
+		}
+		if (selected == null) {
+			selected = new ArrayList<>(groups.size());
+		}
+		for (Map.Entry<String, List<Subscription>> group : groups.entrySet()) {
+			selected.add(choose(topic, group.getKey(), group.getValue()));
+		}
+		return selected;
+	}
+	
+	private Subscription choose(String topic, String topicFilter,
+			List<Subscription> members) {
+		List<Subscription> candidates = new ArrayList<>(members.size());
+		for (Subscription member : members) {
+			if (member.isActive()) {
+				candidates.add(member);
+			}
+		}
+		if (candidates.isEmpty()) {
+			candidates = members;
+		}
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		}
+		
+		switch (policy) {
+			case LEAST_INFLIGHT:
+				Subscription least = null;
+				int leastCount = Integer.MAX_VALUE;
+				for (Subscription candidate : candidates) {
+					AtomicInteger count = inflight.get(candidate.getClientId());
+					int current = count == null ? 0 : count.get();
+					if (current < leastCount) {
+						least = candidate;
+						leastCount = current;
+					}
+				}
+				return least;
+			case STICKY_HASH:
+				return candidates.get((topic.hashCode() & Integer.MAX_VALUE)
+						% candidates.size());
+			default:
+				AtomicInteger turn = turns.get(topicFilter);
+				if (turn == null) {
+					AtomicInteger existing = turns.putIfAbsent(topicFilter,
+							turn = new AtomicInteger());
+					if (existing != null) {
+						turn = existing;
+					}
+				}
+				return candidates.get((turn.getAndIncrement() & Integer.MAX_VALUE)
+						% candidates.size());
+		}
+	}
+	
+	/**
+	 * Notify that a QoS 1 or 2 publish has been sent to the client.
+	 */
+	public void inflightAdded(String clientID) {
+		if (policy != Policy.LEAST_INFLIGHT) {
+			return;
+		}
+		AtomicInteger count = inflight.get(clientID);
+		if (count == null) {
+			AtomicInteger existing = inflight.putIfAbsent(clientID,
+					count = new AtomicInteger());
+			if (existing != null) {
+				count = existing;
+			}
+		}
+		count.incrementAndGet();
+	}
+	
+	/**
+	 * Notify that the client has acknowledged a QoS 1 or 2 publish.
+	 */
+	public void inflightRemoved(String clientID) {
+		AtomicInteger count = inflight.get(clientID);
+		if (count == null) {
+			return;
+		}
+		int current;
+		do {
+			current = count.get();
+		} while (current > 0 && !count.compareAndSet(current, current - 1));
+	}
+	
+	/**
+	 * Forget the inflight publishes of a disconnected client.
+	 */
+	public void clientDisconnected(String clientID) {
+		inflight.remove(clientID);
+	}
+}
@@ -65,58 +65,133 @@ public abstract class SubscriptionUtils {
 	
 	public final static List<Token> parseTopic(String topic)
 			throws ParseException {
-		List<Token> tokens = new ArrayList<Token>();
-		String[] splitted = topic.split("/");
+		String[] levels = splitTopic(topic);
+		List<Token> tokens = new ArrayList<Token>(levels.length);
+		for (String level : levels) {
+			if (level.isEmpty()) {
+				tokens.add(Token.EMPTY);
+			} else if (level.equals("#")) {
+				tokens.add(Token.MULTI);
+			} else if (level.equals("+")) {
+				tokens.add(Token.SINGLE);
+			} else {
+				tokens.add(new Token(level));
+			}
+		}
+		return tokens;
+	}
+	
+	/**
+	 * Split the topic in its levels without creating any Token, following the
+	 * same rules of parseTopic: inner empty levels are kept while the trailing
+	 * separators collapse in a single empty level.
+	 */
+	public final static String[] splitTopic(String topic)
+			throws ParseException {
+		final boolean endsWithSeparator = topic.endsWith("/");
+		int end = topic.length();
+		while (end > 0 && topic.charAt(end - 1) == '/') {
+			end--;
+		}
 		
-		if (splitted.length == 0) {
-			tokens.add(Token.EMPTY);
+		int count = endsWithSeparator ? 2 : 1;
+		for (int i = 0; i < end; i++) {
+			if (topic.charAt(i) == '/') {
+				count++;
+			}
 		}
 		
-		if (topic.endsWith("/")) {
+		String[] levels = new String[count];
+		int idx = 0;
+		int start = 0;
+		for (int i = 0; i <= end; i++) {
+			if (i == end || topic.charAt(i) == '/') {
+				levels[idx++] = topic.substring(start, i);
+				start = i + 1;
+			}
+		}
+		if (endsWithSeparator) {
 			// Add a fictious space
-			String[] newSplitted = new String[splitted.length + 1];
-			System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-			newSplitted[splitted.length] = "";
-			splitted = newSplitted;
+			levels[idx] = "";
 		}
 		
-		for (int i = 0; i < splitted.length; i++) {
-			String s = splitted[i];
-			if (s.isEmpty()) {
-				// if (i != 0) {
-				// throw new
-				// ParseException("Bad format of topic, expetec topic name between separators",
-				// i);
-				// }
-				tokens.add(Token.EMPTY);
-			} else if (s.equals("#")) {
+		for (int i = 0; i < levels.length; i++) {
+			String s = levels[i];
+			if (s.equals("#")) {
 				// check that multi is the last symbol
-				if (i != splitted.length - 1) {
+				if (i != levels.length - 1) {
 					throw new ParseException(
 							"Bad format of topic, the multi symbol (#) has to be the last one after a separator",
 							i);
 				}
-				tokens.add(Token.MULTI);
 			} else if (s.contains("#")) {
 				throw new ParseException(
 						"Bad format of topic, invalid subtopic name: " + s, i);
-			} else if (s.equals("+")) {
-				tokens.add(Token.SINGLE);
-			} else if (s.contains("+")) {
+			} else if (!s.equals("+") && s.contains("+")) {
 				throw new ParseException(
 						"Bad format of topic, invalid subtopic name: " + s, i);
-			} else {
-				tokens.add(new Token(s));
 			}
 		}
-		
-		return tokens;
+		return levels;
+	}
+	
+	/**
+	 * Prefix of the shared subscriptions topic filters,
+	 * $share/{group}/{filter}
+	 */
+	public final static String	SHARE_PREFIX	= "$share/";
+	
+	/**
+	 * @return true iff the topic filter is of a shared subscription.
+	 * */
+	public final static boolean isShared(String topicFilter) {
+		return topicFilter.startsWith(SHARE_PREFIX);
+	}
+	
+	/**
+	 * @return the topic filter without the $share/{group}/ prefix, the one
+	 *         matched against the published topics.
+	 * */
+	public final static String unsharedFilter(String topicFilter) {
+		if (!isShared(topicFilter)) {
+			return topicFilter;
+		}
+		int groupEnd = topicFilter.indexOf('/', SHARE_PREFIX.length());
+		return groupEnd < 0 ? "" : topicFilter.substring(groupEnd + 1);
+	}
+	
+	/**
+	 * @return the key of the subscription in the subscriptions tree node, the
+	 *         clientID for plain subscriptions. NUL can't be part of an MQTT
+	 *         string so shared subscriptions keys never clash with clientIDs.
+	 * */
+	final static String subscriptionKey(String topicFilter, String clientID) {
+		if (!isShared(topicFilter)) {
+			return clientID;
+		}
+		int groupEnd = topicFilter.indexOf('/', SHARE_PREFIX.length());
+		return topicFilter.substring(SHARE_PREFIX.length(), groupEnd) + '\0'
+				+ clientID;
 	}
 	
 	/**
 	 * Check if the topic filter of the subscription is well formed
 	 * */
 	public final static boolean validate(String topicFilter) {
+		if (isShared(topicFilter)) {
+			int groupEnd = topicFilter.indexOf('/', SHARE_PREFIX.length());
+			String group = groupEnd < 0 ? "" : topicFilter.substring(
+					SHARE_PREFIX.length(), groupEnd);
+			if (group.isEmpty() || group.contains("+") || group.contains("#")) {
+				LOG.info("Bad shared subscription group in topic filter <{}>",
+						topicFilter);
+				return false;
+			}
+			topicFilter = topicFilter.substring(groupEnd + 1);
+			if (topicFilter.isEmpty()) {
+				return false;
+			}
+		}
 		try {
 			List<Token> list = parseTopic(topicFilter);
 			if (null == list || list.isEmpty()) {
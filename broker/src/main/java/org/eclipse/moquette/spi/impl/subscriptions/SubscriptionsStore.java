@@ -15,19 +15,27 @@
  */
 package org.eclipse.moquette.spi.impl.subscriptions;
 
+import io.netty.util.concurrent.Future;
+
+import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.eclipse.moquette.spi.IAsyncSessionsStore;
 import org.eclipse.moquette.spi.ISessionsStore;
 import org.eclipse.moquette.spi.ISubscriptionsStore;
+import org.eclipse.moquette.spi.impl.BlockingStoresAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,12 +46,23 @@ import org.slf4j.LoggerFactory;
  */
 public class SubscriptionsStore implements ISubscriptionsStore {
 	
-	private AtomicReference<TreeNode>	subscriptions	= new AtomicReference<TreeNode>(
-																new TreeNode(
-																		null));
-	private ISessionsStore				sessionsStore;
-	private static final Logger			LOG				= LoggerFactory
-																.getLogger(SubscriptionsStore.class);
+	AtomicReference<TreeNode>					subscriptions		= new AtomicReference<TreeNode>(
+																			new TreeNode());
+	// topic filters subscribed by each client, so that the operations on a
+	// client copy only the paths of its subscriptions
+	private ConcurrentMap<String, Set<String>>	clientTopicFilters	= new ConcurrentHashMap<>();
+	// clients with a persistent session that are not connected, the active
+	// flag of the subscriptions in the tree is not used
+	private Set<String>							inactiveClients		= Collections
+																			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// null when the cache of the matching subscriptions is disabled
+	private volatile MatchCache					matchCache;
+	private ISessionsStore						sessionsStore;
+	private IAsyncSessionsStore					asyncSessionsStore;
+	// null when the tree isn't saved on close
+	private File								snapshotFile;
+	private static final Logger					LOG					= LoggerFactory
+																			.getLogger(SubscriptionsStore.class);
 	
 	/**
 	 * Initialize the subscription tree with the list of subscriptions.
@@ -53,6 +72,13 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 	public void init(final ISessionsStore sessionsStore) {
 		LOG.debug("init invoked");
 		this.sessionsStore = sessionsStore;
+		this.asyncSessionsStore = new BlockingStoresAdapter(null, sessionsStore);
+		if (sessionsStore instanceof IAsyncSessionsStore) {
+			this.asyncSessionsStore = (IAsyncSessionsStore) sessionsStore;
+		}
+		if (loadSnapshot()) {
+			return;
+		}
 		final List<Subscription> subs = sessionsStore.listAllSubscriptions();
 		// reload any subscriptions persisted
 		if (LOG.isDebugEnabled()) {
@@ -61,10 +87,14 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 					dumpTree());
 		}
 		
-		for (Subscription sub : subs) {
-			LOG.debug("Re-subscribing {} to topic {}", sub.getClientId(),
-					sub.getTopicFilter());
-			addDirect(sub);
+		if (subscriptions.get().isEmpty()) {
+			bulkLoad(subs);
+		} else {
+			for (Subscription sub : subs) {
+				LOG.debug("Re-subscribing {} to topic {}", sub.getClientId(),
+						sub.getTopicFilter());
+				addDirect(sub);
+			}
 		}
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Finished loading. Subscription tree after {}",
@@ -72,6 +102,138 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 		}
 	}
 	
+	/**
+	 * Build the tree of the subscriptions in one pass. The nodes aren't
+	 * reachable by the readers yet, so they are filled in place instead of
+	 * copying the path and swapping the root for each subscription, and the
+	 * path of a topic filter is walked once for all of its subscribers.
+	 */
+	private void bulkLoad(List<Subscription> subs) {
+		TreeNode root = new TreeNode();
+		Map<String, TreeNode> filterNodes = new HashMap<>();
+		for (Subscription sub : subs) {
+			TreeNode node = filterNodes.get(sub.getTopicFilter());
+			if (node == null) {
+				node = root;
+				for (Token token : tokens(sub.getTopicFilter())) {
+					TreeNode child = node.childWithToken(token);
+					if (child == null) {
+						child = new TreeNode();
+						child.setToken(token);
+						node.addChild(child);
+					}
+					node = child;
+				}
+				filterNodes.put(sub.getTopicFilter(), node);
+			}
+			node.addSubscription(sub);
+			indexClient(sub);
+		}
+		subscriptions.set(root);
+		invalidateAllMatchCache();
+		LOG.info("Loaded {} subscriptions", subs.size());
+	}
+	
+	/**
+	 * Save the tree to the file on close, and load it from there on the next
+	 * init instead of reloading the subscriptions from the sessions store.
+	 * The file is deleted once loaded, so a tree not saved by a clean close
+	 * is never loaded.
+	 */
+	public void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+	
+	/**
+	 * Save the tree to the snapshot file, if set. Called on close, when no
+	 * subscription changes anymore.
+	 */
+	public void saveSnapshot() {
+		if (snapshotFile == null) {
+			return;
+		}
+		try {
+			TreeSnapshot.write(subscriptions.get(), snapshotFile);
+			LOG.info("Saved the subscriptions tree in {}", snapshotFile);
+		} catch (IOException ex) {
+			LOG.error("Can't save the subscriptions tree in " + snapshotFile,
+					ex);
+		}
+	}
+	
+	/**
+	 * @return true if the tree was loaded from the snapshot file.
+	 */
+	private boolean loadSnapshot() {
+		if (snapshotFile == null || !snapshotFile.exists()) {
+			return false;
+		}
+		try {
+			TreeNode root = TreeSnapshot.read(snapshotFile);
+			indexClients(root);
+			subscriptions.set(root);
+			invalidateAllMatchCache();
+			LOG.info("Loaded the subscriptions tree from {}", snapshotFile);
+			return true;
+		} catch (IOException ex) {
+			LOG.warn("Can't load the subscriptions tree from " + snapshotFile
+					+ ", reloading the sessions store", ex);
+			clientTopicFilters.clear();
+			inactiveClients.clear();
+			return false;
+		} finally {
+			if (!snapshotFile.delete()) {
+				LOG.warn("Can't delete the subscriptions snapshot {}",
+						snapshotFile);
+			}
+		}
+	}
+	
+	private void indexClients(TreeNode node) {
+		for (Subscription sub : node.subscriptions()) {
+			indexClient(sub);
+		}
+		for (TreeNode child : node.children()) {
+			indexClients(child);
+		}
+	}
+	
+	/**
+	 * Enable the cache of the subscriptions matching the most recently
+	 * published topics, keeping at most size topics. 0 disables the cache.
+	 */
+	public void setMatchCacheSize(int size) {
+		this.matchCache = size > 0 ? new MatchCache(size) : null;
+	}
+	
+	public long getMatchCacheHits() {
+		MatchCache cache = matchCache;
+		return cache == null ? 0 : cache.getHits();
+	}
+	
+	public long getMatchCacheMisses() {
+		MatchCache cache = matchCache;
+		return cache == null ? 0 : cache.getMisses();
+	}
+	
+	/**
+	 * Make stale the cached matches of the topics affected by the change of
+	 * the subscriptions to the topic filters, once the new root is swapped in.
+	 */
+	private void invalidateMatchCache(Collection<String> changedFilters) {
+		MatchCache cache = matchCache;
+		if (cache != null) {
+			cache.invalidate(changedFilters);
+		}
+	}
+	
+	private void invalidateAllMatchCache() {
+		MatchCache cache = matchCache;
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+	}
+	
 	protected void addDirect(Subscription newSub) {
 		TreeNode oldRoot;
 		NodeCouple couple;
@@ -84,35 +246,71 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 			// spin lock repeating till we can, swap root, if can't swap just
 			// re-do the operation
 		} while (!subscriptions.compareAndSet(oldRoot, couple.root));
+		invalidateMatchCache(Collections.singleton(newSub.getTopicFilter()));
+		indexClient(newSub);
 		LOG.debug("root ref {}, original root was {}", couple.root, oldRoot);
 	}
 	
-	protected NodeCouple recreatePath(String topic, final TreeNode oldRoot) {
-		List<Token> tokens = new ArrayList<Token>();
+	/**
+	 * Track the topic filter of the subscription just added to the tree.
+	 */
+	private void indexClient(Subscription newSub) {
+		topicFiltersOf(newSub.getClientId()).add(newSub.getTopicFilter());
+		if (!newSub.isActive()) {
+			// reloaded from a session persisted while the client was offline
+			inactiveClients.add(newSub.getClientId());
+		}
+	}
+	
+	private Set<String> topicFiltersOf(String clientID) {
+		Set<String> filters = clientTopicFilters.get(clientID);
+		if (filters == null) {
+			filters = Collections
+					.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			Set<String> existing = clientTopicFilters.putIfAbsent(clientID,
+					filters);
+			if (existing != null) {
+				filters = existing;
+			}
+		}
+		return filters;
+	}
+	
+	/**
+	 * @return the tokens of the path of the topic filter in the tree, shared
+	 *         subscriptions are stored without the $share/{group}/ prefix.
+	 */
+	private static List<Token> tokens(String topic) {
 		try {
-			tokens = SubscriptionUtils.parseTopic(topic);
+			return SubscriptionUtils.parseTopic(SubscriptionUtils
+					.unsharedFilter(topic));
 		} catch (ParseException ex) {
 			// TODO handle the parse exception
 			LOG.error(null, ex);
+			return Collections.emptyList();
 		}
-		
+	}
+	
+	/**
+	 * Copy the nodes on the path of the topic, creating the missing ones. All
+	 * the other nodes are shared with the old root.
+	 */
+	protected NodeCouple recreatePath(String topic, final TreeNode oldRoot) {
 		final TreeNode newRoot = oldRoot.copy();
-		TreeNode parent = newRoot;
 		TreeNode current = newRoot;
-		for (Token token : tokens) {
+		for (Token token : tokens(topic)) {
 			TreeNode matchingChildren;
 			
 			// check if a children with the same token already exists
 			if ((matchingChildren = current.childWithToken(token)) != null) {
 				// copy the traversed node
-				current = matchingChildren.copy();
-				current.parent = parent;
-				// update the child just added in the children list
-				parent.updateChild(matchingChildren, current);
-				parent = current;
+				TreeNode copied = matchingChildren.copy();
+				// update the child just copied in the children list
+				current.updateChild(matchingChildren, copied);
+				current = copied;
 			} else {
 				// create a new node for the newly inserted token
-				matchingChildren = new TreeNode(current);
+				matchingChildren = new TreeNode();
 				matchingChildren.setToken(token);
 				current.addChild(matchingChildren);
 				current = matchingChildren;
@@ -121,88 +319,118 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 		return new NodeCouple(newRoot, current);
 	}
 	
+	/**
+	 * Remove the subscription of the client to the topic filter copying only
+	 * the nodes on its path, pruning the ones left empty.
+	 */
+	private static TreeNode removePath(String topic, String clientID,
+			TreeNode oldRoot) {
+		TreeNode newRoot = oldRoot.removeSubscription(tokens(topic), 0,
+				SubscriptionUtils.subscriptionKey(topic, clientID));
+		return newRoot == null ? new TreeNode() : newRoot;
+	}
+	
 	@Override
-	public void add(Subscription newSubscription) {
-		sessionsStore.addNewSubscription(newSubscription);
+	public Future<Void> add(Subscription newSubscription) {
+		Future<Void> stored = asyncSessionsStore
+				.addNewSubscriptionAsync(newSubscription);
 		addDirect(newSubscription);
+		return stored;
 	}
 	
 	@Override
-	public void removeSubscription(String topic, String clientID) {
+	public Future<Void> removeSubscription(String topic, String clientID) {
 		TreeNode oldRoot;
-		NodeCouple couple;
+		TreeNode newRoot;
 		do {
 			oldRoot = subscriptions.get();
-			couple = recreatePath(topic, oldRoot);
-			
-			// do the job
-			// search for the subscription to remove
-			Subscription toBeRemoved = null;
-			for (Subscription sub : couple.createdNode.subscriptions()) {
-				if (sub.getTopicFilter().equals(topic)
-						&& sub.getClientId().equals(clientID)) {
-					toBeRemoved = sub;
-					break;
-				}
-			}
-			
-			if (toBeRemoved != null) {
-				couple.createdNode.subscriptions().remove(toBeRemoved);
-			}
+			newRoot = removePath(topic, clientID, oldRoot);
 			// spin lock repeating till we can, swap root, if can't swap just
 			// re-do the operation
-		} while (!subscriptions.compareAndSet(oldRoot, couple.root));
-		sessionsStore.removeSubscription(topic, clientID);
+		} while (!subscriptions.compareAndSet(oldRoot, newRoot));
+		invalidateMatchCache(Collections.singleton(topic));
+		topicFiltersOf(clientID).remove(topic);
+		return asyncSessionsStore.removeSubscriptionAsync(topic, clientID);
 	}
 	
 	/**
-	 * Visit the topics tree to remove matching subscriptions with clientID.
-	 * It's a mutating structure operation so create a new subscription tree
-	 * (partial or total).
+	 * Remove all the subscriptions of the clientID. It's a mutating structure
+	 * operation that copies only the paths of the client's topic filters.
 	 */
 	@Override
-	public void removeForClient(String clientID) {
-		TreeNode oldRoot;
-		TreeNode newRoot;
-		do {
-			oldRoot = subscriptions.get();
-			newRoot = oldRoot.removeClientSubscriptions(clientID);
-			// spin lock repeating till we can, swap root, if can't swap just
-			// re-do the operation
-		} while (!subscriptions.compareAndSet(oldRoot, newRoot));
+	public Future<Void> removeForClient(String clientID) {
+		Set<String> filters = clientTopicFilters.remove(clientID);
+		inactiveClients.remove(clientID);
+		if (filters != null) {
+			TreeNode oldRoot;
+			TreeNode newRoot;
+			do {
+				oldRoot = subscriptions.get();
+				newRoot = oldRoot;
+				for (String filter : filters) {
+					newRoot = removePath(filter, clientID, newRoot);
+				}
+				// spin lock repeating till we can, swap root, if can't swap
+				// just re-do the operation
+			} while (!subscriptions.compareAndSet(oldRoot, newRoot));
+			invalidateMatchCache(filters);
+		}
 		// persist the update
-		sessionsStore.wipeSubscriptions(clientID);
+		return asyncSessionsStore.wipeSubscriptionsAsync(clientID);
 	}
 	
 	/**
-	 * Visit the topics tree to deactivate matching subscriptions with clientID.
-	 * It's a mutating structure operation so create a new subscription tree
-	 * (partial or total).
+	 * @return copies of the clientID's subscriptions with the active flag set,
+	 *         looked up on the paths of its topic filters.
+	 */
+	private Set<Subscription> subscriptionsOf(String clientID, boolean active) {
+		Set<Subscription> subs = new HashSet<>();
+		Set<String> filters = clientTopicFilters.get(clientID);
+		if (filters == null) {
+			return subs;
+		}
+		TreeNode root = subscriptions.get();
+		for (String filter : filters) {
+			TreeNode node = root.descendant(tokens(filter));
+			Subscription sub = node == null ? null : node
+					.subscription(SubscriptionUtils.subscriptionKey(filter,
+							clientID));
+			if (sub != null) {
+				subs.add(withActivity(sub, active));
+			}
+		}
+		return subs;
+	}
+	
+	private static Subscription withActivity(Subscription sub, boolean active) {
+		if (sub.isActive() == active) {
+			return sub;
+		}
+		Subscription copy = new Subscription(sub);
+		copy.setActive(active);
+		return copy;
+	}
+	
+	/**
+	 * Deactivate the subscriptions of the clientID, the subscriptions tree is
+	 * left untouched.
 	 */
 	@Override
-	public void deactivate(String clientID) {
+	public Future<Void> deactivate(String clientID) {
 		LOG.debug("Disactivating subscriptions for clientID <{}>", clientID);
-		TreeNode oldRoot;
-		TreeNode newRoot;
-		do {
-			oldRoot = subscriptions.get();
-			newRoot = oldRoot.deactivate(clientID);
-			// spin lock repeating till we can, swap root, if can't swap just
-			// re-do the operation
-		} while (!subscriptions.compareAndSet(oldRoot, newRoot));
+		inactiveClients.add(clientID);
 		
 		// persist the update
-		Set<Subscription> subs = newRoot.findAllByClientID(clientID);
-		sessionsStore.updateSubscriptions(clientID, subs);
+		return asyncSessionsStore.updateSubscriptionsAsync(clientID,
+				subscriptionsOf(clientID, false));
 	}
 	
 	/**
-	 * Visit the topics tree to activate matching subscriptions with clientID.
-	 * It's a mutating structure operation so create a new subscription tree
-	 * (partial or total).
+	 * Activate the subscriptions of the clientID, the subscriptions tree is
+	 * left untouched.
 	 */
 	@Override
-	public void activate(String clientID) {
+	public Future<Void> activate(String clientID) {
 		LOG.debug("Activating subscriptions for clientID <{}>", clientID);
 		
 		// sync subscriptions modify by zhaohaolin 20160706
@@ -217,44 +445,71 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 			}
 		}
 		
-		TreeNode oldRoot;
-		TreeNode newRoot;
-		do {
-			oldRoot = subscriptions.get();
-			newRoot = oldRoot.activate(clientID);
-			// spin lock repeating till we can, swap root, if can't swap just
-			// re-do the operation
-		} while (!subscriptions.compareAndSet(oldRoot, newRoot));
+		inactiveClients.remove(clientID);
 		
 		// persist the update
-		Set<Subscription> subs = newRoot.findAllByClientID(clientID);
-		sessionsStore.updateSubscriptions(clientID, subs);
+		return asyncSessionsStore.updateSubscriptionsAsync(clientID,
+				subscriptionsOf(clientID, true));
 	}
 	
 	/**
 	 * Given a topic string return the clients subscriptions that matches it.
 	 * Topic string can't contain character # and + because they are reserved to
-	 * listeners subscriptions, and not topic publishing.
+	 * listeners subscriptions, and not topic publishing. All the members of
+	 * the matching shared subscriptions groups are returned, see
+	 * {@link SharedSubscriptions} to select the one to deliver to.
 	 */
 	@Override
 	public List<Subscription> matches(String topic) {
-		List<Token> tokens;
+		MatchCache cache = matchCache;
+		List<Subscription> subs;
+		if (cache == null) {
+			subs = matches(subscriptions.get(), topic);
+		} else {
+			subs = cache.get(topic);
+			if (subs == null) {
+				// read before the root, a change swapping it later bumps it
+				long generation = cache.generation(topic);
+				subs = matches(subscriptions.get(), topic);
+				cache.put(topic, generation, subs);
+			}
+		}
+		
+		List<Subscription> result = new ArrayList<Subscription>(subs.size());
+		for (Subscription sub : subs) {
+			result.add(withActivity(sub,
+					!inactiveClients.contains(sub.getClientId())));
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the subscriptions of the tree matching the topic, one for each
+	 *         client.
+	 */
+	private List<Subscription> matches(TreeNode root, String topic) {
+		String[] levels;
 		try {
-			tokens = SubscriptionUtils.parseTopic(topic);
+			levels = SubscriptionUtils.splitTopic(topic);
 		} catch (ParseException ex) {
 			// TODO handle the parse exception
 			LOG.error(null, ex);
 			return Collections.emptyList();
 		}
 		
-		Queue<Token> tokenQueue = new LinkedBlockingDeque<>(tokens);
 		List<Subscription> matchingSubs = new ArrayList<>();
-		subscriptions.get().matches(tokenQueue, matchingSubs);
+		root.matches(levels, 0, matchingSubs);
 		
 		// remove the overlapping subscriptions, selecting ones with greatest
-		// qos
+		// qos. Shared subscriptions are kept apart, each one is delivered on
+		// its own to a member of the group
 		Map<String, Subscription> subsForClient = new HashMap<String, Subscription>();
+		List<Subscription> sharedSubs = new ArrayList<>();
 		for (Subscription sub : matchingSubs) {
+			if (SubscriptionUtils.isShared(sub.getTopicFilter())) {
+				sharedSubs.add(sub);
+				continue;
+			}
 			Subscription existingSub = subsForClient.get(sub.getClientId());
 			// update the selected subscriptions if not present or if has a
 			// greater qos
@@ -266,7 +521,10 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 		}
 		
 		/* matchingSubs */
-		return new ArrayList<Subscription>(subsForClient.values());
+		List<Subscription> result = new ArrayList<Subscription>(
+				subsForClient.values());
+		result.addAll(sharedSubs);
+		return Collections.unmodifiableList(result);
 	}
 	
 	public boolean contains(Subscription sub) {
@@ -290,9 +548,9 @@ public class SubscriptionsStore implements ISubscriptionsStore {
 			return;
 		}
 		visitor.visit(node, deep);
-		for (TreeNode child : node.children) {
+		for (TreeNode child : node.children()) {
 			bfsVisit(child, visitor, ++deep);
 		}
 	}
-	
+
 }
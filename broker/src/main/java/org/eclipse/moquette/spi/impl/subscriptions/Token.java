@@ -45,6 +45,22 @@ public class Token {
 		return equals(t);
 	}
 	
+	/**
+	 * Same as match(Token) but against a raw topic level, so that the topic
+	 * to match doesn't need to be converted in tokens.
+	 */
+	protected boolean match(String level) {
+		if (level.equals("#") || level.equals("+")) {
+			return false;
+		}
+		
+		if (this == MULTI || this == SINGLE) {
+			return true;
+		}
+		
+		return name.equals(level);
+	}
+	
 	@Override
 	public int hashCode() {
 		int hash = 7;
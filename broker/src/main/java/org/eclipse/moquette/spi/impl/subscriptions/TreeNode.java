@@ -16,39 +16,33 @@
 package org.eclipse.moquette.spi.impl.subscriptions;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Node of the subscriptions tree. The children and the subscriptions are kept
+ * in persistent maps, so a copy of the node shares them with the original and
+ * modifying the copy doesn't touch any node reachable from the old root.
+ */
 class TreeNode {
 	
-	private class ClientIDComparator implements Comparator<Subscription> {
-		
-		@Override
-		public int compare(Subscription o1, Subscription o2) {
-			return o1.getClientId().compareTo(o2.getClientId());
-		}
-		
-	}
-	
-	// parent treenode
-	TreeNode			parent;
-	
 	// token
-	Token				token;
+	Token								token;
+	
+	// literal children, keyed by the name of their token
+	PersistentStringMap<TreeNode>		children		= PersistentStringMap
+																.empty();
 	
-	// children
-	List<TreeNode>		children		= new ArrayList<TreeNode>();
+	// wildcard children, kept apart to don't look them up on every level
+	TreeNode							singleChild;
+	TreeNode							multiChild;
 	
-	// subscriptions
-	List<Subscription>	subscriptions	= new ArrayList<Subscription>();
+	// subscriptions, keyed by clientID (by group and clientID the shared ones)
+	PersistentStringMap<Subscription>	subscriptions	= PersistentStringMap
+																.empty();
 	
-	TreeNode(TreeNode parent) {
-		this.parent = parent;
+	TreeNode() {
 	}
 	
 	Token getToken() {
@@ -60,39 +54,79 @@ class TreeNode {
 	}
 	
 	void addSubscription(Subscription s) {
+		String key = SubscriptionUtils.subscriptionKey(s.getTopicFilter(),
+				s.getClientId());
 		// avoid double registering for same clientID, topic and QoS
-		if (subscriptions.contains(s)) {
+		if (s.equals(subscriptions.get(key))) {
 			return;
 		}
-		// remove existing subscription for same client and topic but different
-		// QoS
-		Comparator<Subscription> comparator = new ClientIDComparator();
-		Collections.sort(subscriptions, comparator);
-		int existingSubIdx = Collections.binarySearch(subscriptions, s,
-				comparator);
-		if (existingSubIdx >= 0) {
-			subscriptions.remove(existingSubIdx);
-		}
-		
-		subscriptions.add(s);
+		// an existing subscription for same client and topic but different
+		// QoS is replaced
+		subscriptions = subscriptions.put(key, s);
 	}
 	
+	/**
+	 * @param key the clientID, or the subscription key for shared
+	 *            subscriptions.
+	 * @return the subscription of the client on this node, null if not present.
+	 * */
+	Subscription subscription(String key) {
+		return subscriptions.get(key);
+	}
+	
+	void removeSubscription(String key) {
+		subscriptions = subscriptions.remove(key);
+	}
+	
+	/**
+	 * Add the child, replacing the one with the same token if already present.
+	 */
 	void addChild(TreeNode child) {
-		children.add(child);
+		Token childToken = child.getToken();
+		if (childToken == Token.MULTI) {
+			multiChild = child;
+		} else if (childToken == Token.SINGLE) {
+			singleChild = child;
+		} else {
+			children = children.put(childToken.name(), child);
+		}
+	}
+	
+	void removeChild(Token childToken) {
+		if (childToken == Token.MULTI) {
+			multiChild = null;
+		} else if (childToken == Token.SINGLE) {
+			singleChild = null;
+		} else {
+			children = children.remove(childToken.name());
+		}
 	}
 	
 	/**
-	 * Creates a shallow copy of the current node. Copy the token and the
-	 * children.
+	 * @return all the children, wildcard ones included.
 	 * */
-	TreeNode copy() {
-		final TreeNode copy = new TreeNode(this);
-		copy.parent = parent;
-		copy.children = new ArrayList<>(children);
-		copy.subscriptions = new ArrayList<>(subscriptions.size());
-		for (Subscription sub : subscriptions) {
-			copy.subscriptions.add(new Subscription(sub));
+	List<TreeNode> children() {
+		List<TreeNode> all = new ArrayList<>();
+		children.collectValues(all);
+		if (singleChild != null) {
+			all.add(singleChild);
+		}
+		if (multiChild != null) {
+			all.add(multiChild);
 		}
+		return all;
+	}
+	
+	/**
+	 * Creates a shallow copy of the current node. Copy the token and share the
+	 * children and the subscriptions, that are replaced on modification.
+	 * */
+	TreeNode copy() {
+		final TreeNode copy = new TreeNode();
+		copy.children = children;
+		copy.singleChild = singleChild;
+		copy.multiChild = multiChild;
+		copy.subscriptions = subscriptions;
 		copy.token = token;
 		return copy;
 	}
@@ -102,35 +136,50 @@ class TreeNode {
 	 * null;
 	 */
 	TreeNode childWithToken(Token token) {
-		for (TreeNode child : children) {
-			if (child.getToken().equals(token)) {
-				return child;
-			}
+		if (token == Token.MULTI) {
+			return multiChild;
 		}
-		
-		return null;
+		if (token == Token.SINGLE) {
+			return singleChild;
+		}
+		return children.get(token.name());
 	}
 	
 	void updateChild(TreeNode oldChild, TreeNode newChild) {
-		children.remove(oldChild);
-		children.add(newChild);
+		// the new child has the same token of the old, so it takes its slot
+		addChild(newChild);
 	}
 	
 	List<Subscription> subscriptions() {
-		return subscriptions;
+		List<Subscription> subs = new ArrayList<>();
+		subscriptions.collectValues(subs);
+		return subs;
 	}
 	
-	void matches(Queue<Token> tokens, List<Subscription> matchingSubs) {
-		Token t = tokens.poll();
-		
-		// check if t is null <=> tokens finished
-		if (t == null) {
-			matchingSubs.addAll(subscriptions);
+	/**
+	 * @return true if the node has no subscriptions and no children, so it
+	 *         can be pruned from the tree.
+	 * */
+	boolean isEmpty() {
+		return subscriptions.isEmpty() && children.isEmpty()
+				&& singleChild == null && multiChild == null;
+	}
+	
+	/**
+	 * Collect the subscriptions matching the topic levels starting from the
+	 * level at index. The levels array is never modified so the same instance
+	 * is shared by all the visited siblings.
+	 */
+	void matches(String[] levels, int index, List<Subscription> matchingSubs) {
+		// check if index is past the end <=> levels finished
+		if (index == levels.length) {
+			subscriptions.collectValues(matchingSubs);
 			// check if it has got a MULTI child and add its subscriptions
-			for (TreeNode n : children) {
-				if (n.getToken() == Token.MULTI || n.getToken() == Token.SINGLE) {
-					matchingSubs.addAll(n.subscriptions());
-				}
+			if (multiChild != null) {
+				multiChild.subscriptions.collectValues(matchingSubs);
+			}
+			if (singleChild != null) {
+				singleChild.subscriptions.collectValues(matchingSubs);
 			}
 			
 			return;
@@ -138,97 +187,86 @@ class TreeNode {
 		
 		// we are on MULTI, than add subscriptions and return
 		if (token == Token.MULTI) {
-			matchingSubs.addAll(subscriptions);
+			subscriptions.collectValues(matchingSubs);
 			return;
 		}
 		
-		for (TreeNode n : children) {
-			if (n.getToken().match(t)) {
-				// Create a copy of token, else if navigate 2 sibling it
-				// consumes 2 elements on the queue instead of one
-				n.matches(new LinkedBlockingQueue<>(tokens), matchingSubs);
-				// TODO don't create a copy n.matches(tokens, matchingSubs);
-			}
+		final String level = levels[index];
+		if (level.equals("#") || level.equals("+")) {
+			// a wildcard in a topic name doesn't match any child
+			return;
 		}
-	}
-	
-	/**
-	 * Return the number of registered subscriptions
-	 */
-	int size() {
-		int res = subscriptions.size();
-		for (TreeNode child : children) {
-			res += child.size();
+		TreeNode n = children.get(level);
+		if (n != null) {
+			n.matches(levels, index + 1, matchingSubs);
+		}
+		if (singleChild != null) {
+			singleChild.matches(levels, index + 1, matchingSubs);
+		}
+		if (multiChild != null) {
+			multiChild.matches(levels, index + 1, matchingSubs);
 		}
-		return res;
 	}
 	
 	/**
-	 * Create a copied subtree rooted on this node but purged of clientID's
-	 * subscriptions.
+	 * @return the node reached following the tokens from this one, null if the
+	 *         path doesn't exist.
 	 * */
-	TreeNode removeClientSubscriptions(String clientID) {
-		// collect what to delete and then delete to avoid
-		// ConcurrentModification
-		TreeNode newSubRoot = this.copy();
-		List<Subscription> subsToRemove = new ArrayList<>();
-		for (Subscription s : newSubRoot.subscriptions) {
-			if (s.getClientId().equals(clientID)) {
-				subsToRemove.add(s);
+	TreeNode descendant(List<Token> tokens) {
+		TreeNode current = this;
+		for (Token t : tokens) {
+			current = current.childWithToken(t);
+			if (current == null) {
+				return null;
 			}
 		}
-		
-		for (Subscription s : subsToRemove) {
-			newSubRoot.subscriptions.remove(s);
-		}
-		
-		// go deep
-		List<TreeNode> newChildren = new ArrayList<>(newSubRoot.children.size());
-		for (TreeNode child : newSubRoot.children) {
-			newChildren.add(child.removeClientSubscriptions(clientID));
-		}
-		newSubRoot.children = newChildren;
-		return newSubRoot;
+		return current;
 	}
 	
 	/**
-	 * Deactivate all topic subscriptions for the given clientID.
+	 * Create a copy of the path that leads to the tokens node purged of the
+	 * subscription with the key, pruning the nodes that are left empty.
+	 * 
+	 * @return this node if there was nothing to remove, null if the node has
+	 *         to be pruned, else the copy of the node.
 	 * */
-	TreeNode deactivate(String clientID) {
-		TreeNode newSubRoot = this.copy();
-		for (Subscription s : newSubRoot.subscriptions) {
-			if (s.getClientId().equals(clientID)) {
-				s.setActive(false);
+	TreeNode removeSubscription(List<Token> tokens, int index, String key) {
+		TreeNode newNode;
+		if (index == tokens.size()) {
+			if (subscription(key) == null) {
+				return this;
+			}
+			newNode = copy();
+			newNode.removeSubscription(key);
+		} else {
+			Token childToken = tokens.get(index);
+			TreeNode child = childWithToken(childToken);
+			if (child == null) {
+				return this;
+			}
+			TreeNode newChild = child.removeSubscription(tokens, index + 1, key);
+			if (newChild == child) {
+				return this;
+			}
+			newNode = copy();
+			if (newChild == null) {
+				newNode.removeChild(childToken);
+			} else {
+				newNode.addChild(newChild);
 			}
 		}
-		
-		// go deep
-		List<TreeNode> newChildren = new ArrayList<>(newSubRoot.children.size());
-		for (TreeNode child : newSubRoot.children) {
-			newChildren.add(child.deactivate(clientID));
-		}
-		newSubRoot.children = newChildren;
-		return newSubRoot;
+		return newNode.isEmpty() ? null : newNode;
 	}
 	
 	/**
-	 * Activate all topic subscriptions for the given clientID.
-	 * */
-	TreeNode activate(String clientID) {
-		TreeNode newSubRoot = this.copy();
-		for (Subscription s : newSubRoot.subscriptions) {
-			if (s.getClientId().equals(clientID)) {
-				s.setActive(true);
-			}
-		}
-		
-		// go deep
-		List<TreeNode> newChildren = new ArrayList<>(newSubRoot.children.size());
-		for (TreeNode child : newSubRoot.children) {
-			newChildren.add(child.activate(clientID));
+	 * Return the number of registered subscriptions
+	 */
+	int size() {
+		int res = subscriptions().size();
+		for (TreeNode child : children()) {
+			res += child.size();
 		}
-		newSubRoot.children = newChildren;
-		return newSubRoot;
+		return res;
 	}
 	
 	/**
@@ -236,13 +274,12 @@ class TreeNode {
 	 * */
 	Set<Subscription> findAllByClientID(String clientID) {
 		Set<Subscription> subs = new HashSet<>();
-		for (Subscription s : subscriptions) {
-			if (s.getClientId().equals(clientID)) {
-				subs.add(s);
-			}
+		Subscription s = subscription(clientID);
+		if (s != null) {
+			subs.add(s);
 		}
 		// go deep
-		for (TreeNode child : children) {
+		for (TreeNode child : children()) {
 			subs.addAll(child.findAllByClientID(clientID));
 		}
 		return subs;
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+
+/**
+ * Compact binary image of the subscriptions tree, written depth first: each
+ * node has its token, its subscriptions grouped by topic filter and its
+ * children. Loading it rebuilds the nodes in a single pass over the memory
+ * mapped file, with no topic filter to parse.
+ * 
+ * The activity of the clients is not saved, no client is connected when the
+ * snapshot is loaded so all the subscriptions are loaded inactive.
+ */
+final class TreeSnapshot {
+	
+	private static final int		MAGIC			= 0x4d515453;
+	private static final int		VERSION			= 1;
+	
+	private static final Charset	UTF8			= Charset.forName("UTF-8");
+	
+	private static final int		CLEAN_SESSION	= 1;
+	
+	private TreeSnapshot() {
+	}
+	
+	/**
+	 * Write the tree, the file is replaced atomically.
+	 * */
+	static void write(TreeNode root, File file)
+			throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 64 * 1024));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeNode(root, out);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static void writeNode(TreeNode node, DataOutputStream out)
+			throws IOException {
+		if (node.getToken() != null) {
+			writeString(node.getToken().name(), out);
+		}
+		Map<String, List<Subscription>> byFilter = new LinkedHashMap<>();
+		for (Subscription sub : node.subscriptions()) {
+			List<Subscription> group = byFilter.get(sub.getTopicFilter());
+			if (group == null) {
+				group = new ArrayList<>();
+				byFilter.put(sub.getTopicFilter(), group);
+			}
+			group.add(sub);
+		}
+		out.writeInt(byFilter.size());
+		for (Map.Entry<String, List<Subscription>> group : byFilter
+				.entrySet()) {
+			writeString(group.getKey(), out);
+			out.writeInt(group.getValue().size());
+			for (Subscription sub : group.getValue()) {
+				writeString(sub.getClientId(), out);
+				out.writeByte(sub.getRequestedQos().byteValue());
+				out.writeByte(sub.isCleanSession() ? CLEAN_SESSION : 0);
+			}
+		}
+		List<TreeNode> children = node.children();
+		out.writeInt(children.size());
+		for (TreeNode child : children) {
+			writeNode(child, out);
+		}
+	}
+	
+	private static void writeString(String s, DataOutputStream out)
+			throws IOException {
+		byte[] raw = s.getBytes(UTF8);
+		out.writeShort(raw.length);
+		out.write(raw);
+	}
+	
+	/**
+	 * @return the root of the tree read from the file.
+	 * @throws IOException
+	 *             if the file can't be read or it's not a valid snapshot.
+	 * */
+	static TreeNode read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					0, raf.length());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				throw new IOException("Not a subscriptions snapshot " + file);
+			}
+			TreeNode root = readNode(null, in);
+			if (in.hasRemaining()) {
+				throw new IOException("Trailing bytes in the snapshot " + file);
+			}
+			return root;
+		} catch (BufferUnderflowException ex) {
+			throw new IOException("Truncated subscriptions snapshot " + file,
+					ex);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static TreeNode readNode(Token token, ByteBuffer in) {
+		TreeNode node = new TreeNode();
+		node.setToken(token);
+		int groups = in.getInt();
+		for (int i = 0; i < groups; i++) {
+			String topicFilter = readString(in);
+			int subs = in.getInt();
+			for (int j = 0; j < subs; j++) {
+				String clientID = readString(in);
+				QOSType qos = QOSType.valueOf(in.get());
+				int flags = in.get();
+				Subscription sub = new Subscription(clientID, topicFilter,
+						qos, (flags & CLEAN_SESSION) != 0);
+				sub.setActive(false);
+				node.addSubscription(sub);
+			}
+		}
+		int children = in.getInt();
+		for (int i = 0; i < children; i++) {
+			node.addChild(readNode(token(readString(in)), in));
+		}
+		return node;
+	}
+	
+	/**
+	 * @return the token of the level, the wildcards are the shared instances
+	 *         the tree looks for.
+	 * */
+	private static Token token(String level) {
+		if (level.equals("#")) {
+			return Token.MULTI;
+		}
+		if (level.equals("+")) {
+			return Token.SINGLE;
+		}
+		if (level.isEmpty()) {
+			return Token.EMPTY;
+		}
+		return new Token(level);
+	}
+	
+	private static String readString(ByteBuffer in) {
+		byte[] raw = new byte[in.getShort() & 0xffff];
+		in.get(raw);
+		return new String(raw, UTF8);
+	}
+}
@@ -22,7 +22,6 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.Properties;
 
@@ -54,10 +53,7 @@ public class ConfigurationClassLoaderTest implements IAuthenticator, IAuthorizat
     @After
     public void tearDown() throws Exception {
         m_server.stopServer();
-        File dbFile = new File(m_config.getProperty(PERSISTENT_STORE_PROPERTY_NAME));
-        if (dbFile.exists()) {
-            dbFile.delete();
-        }
+        IntegrationUtils.cleanPersistenceFile(m_config.getProperty(PERSISTENT_STORE_PROPERTY_NAME));
     }
     
     @Test
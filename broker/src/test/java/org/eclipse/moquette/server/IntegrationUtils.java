@@ -20,16 +20,37 @@ import java.util.Properties;
 
 import static org.eclipse.moquette.commons.Constants.DEFAULT_MOQUETTE_STORE_MAP_DB_FILENAME;
 import static org.eclipse.moquette.commons.Constants.PERSISTENT_STORE_PROPERTY_NAME;
+import static org.junit.Assert.assertFalse;
 
 /**
  * Used to carry integration configurations.
  *
  * Created by andrea on 4/7/15.
  */
-class IntegrationUtils {
-    static String localMapDBPath() {
-        String currentDir = System.getProperty("user.dir");
-        return currentDir + File.separator + DEFAULT_MOQUETTE_STORE_MAP_DB_FILENAME;
+public class IntegrationUtils {
+    /**
+     * The store goes in the temp folder, not in the working directory.
+     */
+    public static String localMapDBPath() {
+        String tempDir = System.getProperty("java.io.tmpdir");
+        return tempDir + File.separator + DEFAULT_MOQUETTE_STORE_MAP_DB_FILENAME;
+    }
+
+    /**
+     * Delete the store, the directory of the journal segments or a single file.
+     */
+    public static void cleanPersistenceFile(String path) {
+        File dbFile = new File(path);
+        File[] segments = dbFile.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+        if (dbFile.exists()) {
+            dbFile.delete();
+        }
+        assertFalse(dbFile.exists());
     }
 
     public static Properties prepareTestPropeties() {
@@ -83,11 +83,7 @@ public class ServerIntegrationPahoTest {
 
     private void stopServer() {
         m_server.stopServer();
-        File dbFile = new File(m_config.getProperty(PERSISTENT_STORE_PROPERTY_NAME));
-        if (dbFile.exists()) {
-            dbFile.delete();
-        }
-        assertFalse(dbFile.exists());
+        IntegrationUtils.cleanPersistenceFile(m_config.getProperty(PERSISTENT_STORE_PROPERTY_NAME));
     }
 
     @Test
@@ -111,12 +111,7 @@ public class ServerIntegrationSSLTest {
         if (m_server != null) {
             m_server.stopServer();
         }
-        String dbPath = IntegrationUtils.localMapDBPath();
-        File dbFile = new File(dbPath);
-        if (dbFile.exists()) {
-            dbFile.delete();
-        }
-        assertFalse(dbFile.exists());
+        IntegrationUtils.cleanPersistenceFile(IntegrationUtils.localMapDBPath());
     }
     
     @Test
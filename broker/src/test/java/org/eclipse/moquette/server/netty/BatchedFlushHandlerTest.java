@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.server.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+
+public class BatchedFlushHandlerTest {
+	
+	@Test
+	public void testFlushesCoalescedInTheEventLoopTick() {
+		EmbeddedChannel channel = new EmbeddedChannel(new BatchedFlushHandler(
+				256, 0));
+		
+		// Exercise
+		for (int i = 0; i < 3; i++) {
+			channel.writeAndFlush("msg" + i);
+		}
+		
+		// Verify
+		assertTrue(channel.outboundMessages().isEmpty());
+		channel.runPendingTasks();
+		assertEquals(3, channel.outboundMessages().size());
+		assertEquals("msg0", channel.readOutbound());
+	}
+	
+	@Test
+	public void testFlushedAtOnceReachingMaxPending() {
+		EmbeddedChannel channel = new EmbeddedChannel(new BatchedFlushHandler(
+				2, 0));
+		
+		// Exercise
+		channel.writeAndFlush("msg0");
+		channel.writeAndFlush("msg1");
+		
+		// Verify
+		assertEquals(2, channel.outboundMessages().size());
+	}
+	
+	@Test
+	public void testFlushesWhileReadingWaitTheReadComplete() {
+		EmbeddedChannel channel = new EmbeddedChannel(new BatchedFlushHandler(
+				256, 0), new ChannelInboundHandlerAdapter() {
+			@Override
+			public void channelRead(ChannelHandlerContext ctx, Object msg) {
+				ctx.writeAndFlush("ack " + msg);
+			}
+		});
+		
+		// Exercise
+		channel.pipeline().fireChannelRead("msg0");
+		channel.pipeline().fireChannelRead("msg1");
+		channel.runPendingTasks();
+		
+		// Verify
+		assertTrue(channel.outboundMessages().isEmpty());
+		channel.pipeline().fireChannelReadComplete();
+		assertEquals(2, channel.outboundMessages().size());
+	}
+	
+	@Test
+	public void testPendingFlushDoneOnClose() {
+		EmbeddedChannel channel = new EmbeddedChannel(new BatchedFlushHandler(
+				256, 1000000));
+		channel.writeAndFlush("msg0");
+		
+		// Exercise
+		channel.close();
+		
+		// Verify
+		assertEquals("msg0", channel.readOutbound());
+	}
+}
@@ -15,14 +15,9 @@
  */
 package org.eclipse.moquette.spec.v3_1_1.connection;
 
-import static org.eclipse.moquette.commons.Constants.DEFAULT_PERSISTENT_PATH;
-import static org.eclipse.moquette.commons.Constants.PERSISTENT_STORE_PROPERTY_NAME;
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertTrue;
-
-import java.io.File;
 import java.io.IOException;
 
+import org.eclipse.moquette.server.IntegrationUtils;
 import org.eclipse.moquette.server.Server;
 import org.eclipse.moquette.testclient.RawClient;
 import org.junit.After;
@@ -42,7 +37,7 @@ public class ConnectionIT {
 	
     protected void startServer() throws IOException {
         m_server = new Server();
-        m_server.startServer();
+        m_server.startServer(IntegrationUtils.prepareTestPropeties());
     }
 
     @Before
@@ -54,11 +49,7 @@ public class ConnectionIT {
     public void tearDown() throws Exception {
         m_server.stopServer();
 
-        File dbFile = new File(DEFAULT_PERSISTENT_PATH);
-        if (dbFile.exists()) {
-        	assertTrue("Error deleting the moquette db file " + DEFAULT_PERSISTENT_PATH, dbFile.delete());
-        }
-        assertFalse(dbFile.exists());
+        IntegrationUtils.cleanPersistenceFile(IntegrationUtils.localMapDBPath());
     }
 
     @Test(timeout = 3000)
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.moquette.proto.messages.PingRespMessage;
+import org.junit.Test;
+
+public class DeliveryBatchTest {
+	
+	/**
+	 * Records the writes, a list for each writeAll.
+	 */
+	static class BatchRecordingChannel extends DummyChannel {
+		
+		final List<List<?>>	writes	= new ArrayList<>();
+		
+		@Override
+		public void write(Object value) {
+			writes.add(Arrays.asList(value));
+		}
+		
+		@Override
+		public void writeAll(List<?> values) {
+			writes.add(new ArrayList<>(values));
+		}
+	}
+	
+	final BatchRecordingChannel	subscriberA	= new BatchRecordingChannel();
+	final BatchRecordingChannel	subscriberB	= new BatchRecordingChannel();
+	final PingRespMessage		first		= new PingRespMessage();
+	final PingRespMessage		second		= new PingRespMessage();
+	
+	@Test
+	public void testWrittenAtOnceWithoutBatch() {
+		DeliveryBatch.write(subscriberA, first);
+		
+		assertEquals(1, subscriberA.writes.size());
+	}
+	
+	@Test
+	public void testMessagesOfAChannelWrittenTogetherOnClose() {
+		DeliveryBatch.open();
+		DeliveryBatch.write(subscriberA, first);
+		DeliveryBatch.write(subscriberB, first);
+		DeliveryBatch.write(subscriberA, second);
+		assertTrue(subscriberA.writes.isEmpty());
+		
+		// Exercise
+		DeliveryBatch.close();
+		
+		// Verify
+		assertEquals(1, subscriberA.writes.size());
+		assertEquals(Arrays.asList(first, second), subscriberA.writes.get(0));
+		assertEquals(1, subscriberB.writes.size());
+	}
+	
+	@Test
+	public void testNestedBatchWrittenByTheOutermost() {
+		DeliveryBatch.open();
+		DeliveryBatch.open();
+		DeliveryBatch.write(subscriberA, first);
+		DeliveryBatch.close();
+		DeliveryBatch.write(subscriberA, second);
+		assertTrue(subscriberA.writes.isEmpty());
+		
+		// Exercise
+		DeliveryBatch.close();
+		
+		// Verify
+		assertEquals(Arrays.asList(first, second), subscriberA.writes.get(0));
+		DeliveryBatch.write(subscriberA, first);
+		assertEquals(2, subscriberA.writes.size());
+	}
+}
@@ -18,6 +18,7 @@ package org.eclipse.moquette.spi.impl;
 import io.netty.util.AttributeKey;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.moquette.proto.messages.AbstractMessage;
@@ -57,6 +58,30 @@ public class DummyChannel implements ServerChannel {
 		m_channelClosed = true;
 	}
 	
+	@Override
+	public boolean isWritable() {
+		return true;
+	}
+	
+	@Override
+	public void runWhenWritable(Runnable task) {
+		task.run();
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		task.run();
+	}
+	
+	@Override
+	public void setAutoRead(boolean autoRead) {
+	}
+	
+	@Override
+	public boolean isActive() {
+		return !m_channelClosed;
+	}
+	
 	@Override
 	public String channelId() {
 		return "";
@@ -86,4 +111,11 @@ public class DummyChannel implements ServerChannel {
 	public AbstractMessage getReceivedMessage() {
 		return m_receivedMessage;
 	}
+	
+	@Override
+	public void writeAll(List<?> values) {
+		for (Object value : values) {
+			write(value);
+		}
+	}
 }
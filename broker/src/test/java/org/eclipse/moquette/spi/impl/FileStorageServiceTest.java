@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.util.concurrent.Future;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.IMessagesStore.PublishKey;
+import org.eclipse.moquette.spi.IMessagesStore.StoredMessage;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileStorageServiceTest {
+	
+	File				directory;
+	FileStorageService	storageService;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("moquette-store").toFile();
+		storageService = open(FileStorageService.DEFAULT_SEGMENT_SIZE);
+	}
+	
+	@After
+	public void tearDown() {
+		storageService.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+	
+	private FileStorageService open(long segmentSize) {
+		FileStorageService store = new FileStorageService(directory);
+		store.setSegmentSize(segmentSize);
+		store.initStore();
+		return store;
+	}
+	
+	private FileStorageService restart(long segmentSize) {
+		storageService.close();
+		storageService = open(segmentSize);
+		return storageService;
+	}
+	
+	private static PublishEvent publish(String clientID, int messageID,
+			String payload) {
+		return new PublishEvent("/topic", QOSType.LEAST_ONE,
+				ByteBuffer.wrap(payload.getBytes()), false, clientID, messageID);
+	}
+	
+	private static String payload(ByteBuffer buffer) {
+		byte[] raw = new byte[buffer.remaining()];
+		buffer.duplicate().get(raw);
+		return new String(raw);
+	}
+	
+	@Test
+	public void testSubscriptionsAreInactiveAfterRestart() {
+		storageService.createNewSession("client");
+		storageService.addNewSubscription(new Subscription("client", "/topic",
+				QOSType.LEAST_ONE, false));
+		storageService.createNewSession("other");
+		storageService.updateSubscriptions("other", Collections
+				.singleton(new Subscription("other", "/other",
+						QOSType.MOST_ONE, false)));
+		
+		// Exercise
+		restart(FileStorageService.DEFAULT_SEGMENT_SIZE);
+		
+		// Verify, no client is connected after a restart
+		assertFalse(storageService.getSubscriptions("client").iterator()
+				.next().isActive());
+		assertFalse(storageService.getSubscriptions("other").iterator().next()
+				.isActive());
+	}
+	
+	@Test
+	public void testStateSurvivesRestart() {
+		storageService.createNewSession("client");
+		storageService.addNewSubscription(new Subscription("client", "/topic",
+				QOSType.LEAST_ONE, false));
+		storageService.addNewSubscription(new Subscription("client", "/other",
+				QOSType.MOST_ONE, false));
+		storageService.removeSubscription("/other", "client");
+		storageService.storePublishForFuture(publish("client", 1, "first"));
+		PublishEvent second = publish("client", 2, "second");
+		storageService.storePublishForFuture(second);
+		storageService.storePublishForFuture(publish("client", 3, "third"));
+		storageService.removeMessageInSession("client", second.getStoredID());
+		storageService.storeRetained("/retained",
+				ByteBuffer.wrap("kept".getBytes()), QOSType.LEAST_ONE);
+		storageService.storeRetained("/cleaned",
+				ByteBuffer.wrap("gone".getBytes()), QOSType.LEAST_ONE);
+		storageService.cleanRetained("/cleaned");
+		storageService.persistQoS2Message(new PublishKey("client", 1),
+				publish("client", 1, "qos2"));
+		
+		// Exercise
+		restart(FileStorageService.DEFAULT_SEGMENT_SIZE);
+		
+		// Verify
+		assertTrue(storageService.contains("client"));
+		Set<Subscription> subscriptions = storageService
+				.getSubscriptions("client");
+		assertEquals(1, subscriptions.size());
+		assertEquals("/topic", subscriptions.iterator().next()
+				.getTopicFilter());
+		List<PublishEvent> stored = storageService
+				.listMessagesInSession("client");
+		assertEquals(2, stored.size());
+		assertEquals("first", payload(stored.get(0).getMessage()));
+		assertEquals("third", payload(stored.get(1).getMessage()));
+		Collection<StoredMessage> retained = storageService
+				.searchRetained("#");
+		assertEquals(1, retained.size());
+		assertEquals("kept", payload(retained.iterator().next().getPayload()));
+		assertEquals("qos2", payload(storageService.retrieveQoS2Message(
+				new PublishKey("client", 1)).getMessage()));
+	}
+	
+	@Test
+	public void testSnapshotReplacesTheFullSegments() {
+		storageService = restart(256);
+		storageService.createNewSession("client");
+		for (int i = 1; i <= 50; i++) {
+			PublishEvent evt = publish("client", i, "msg " + i);
+			storageService.storePublishForFuture(evt);
+			if (i % 2 == 0) {
+				storageService.removeMessageInSession("client",
+						evt.getStoredID());
+			}
+		}
+		
+		// Exercise
+		restart(256);
+		
+		// Verify
+		int snapshots = 0;
+		for (String name : directory.list()) {
+			if (name.endsWith(".snap")) {
+				snapshots++;
+			}
+		}
+		assertEquals(1, snapshots);
+		assertFalse(new File(directory, "journal-0.log").exists());
+		List<PublishEvent> stored = storageService
+				.listMessagesInSession("client");
+		assertEquals(25, stored.size());
+		for (int i = 0; i < 25; i++) {
+			assertEquals("msg " + (2 * i + 1), payload(stored.get(i)
+					.getMessage()));
+		}
+	}
+	
+	@Test
+	public void testRemovalAfterASnapshotFindsTheMessage() {
+		storageService = restart(256);
+		storageService.createNewSession("client");
+		List<PublishEvent> stored = new ArrayList<>();
+		for (int i = 1; i <= 50; i++) {
+			PublishEvent evt = publish("client", i, "msg " + i);
+			storageService.storePublishForFuture(evt);
+			stored.add(evt);
+			if (i % 2 == 0) {
+				storageService.removeMessageInSession("client",
+						evt.getStoredID());
+			}
+		}
+		
+		// Exercise, the snapshots hold the stored IDs the later removal uses
+		storageService.removeMessageInSession("client", stored.get(48)
+				.getStoredID());
+		restart(256);
+		
+		// Verify
+		List<PublishEvent> restored = storageService
+				.listMessagesInSession("client");
+		assertEquals(24, restored.size());
+		assertEquals("msg 47", payload(restored.get(23).getMessage()));
+		assertEquals(stored.get(46).getStoredID(), restored.get(23)
+				.getStoredID());
+	}
+	
+	@Test
+	public void testAsyncChangeCompletesOnceSynced()
+			throws InterruptedException {
+		storageService.createNewSession("client");
+		
+		// Exercise
+		Future<Void> stored = storageService
+				.storePublishForFutureAsync(publish("client", 1, "async"));
+		
+		// Verify
+		assertTrue(stored.await(5, TimeUnit.SECONDS));
+		assertTrue(stored.isSuccess());
+		restart(FileStorageService.DEFAULT_SEGMENT_SIZE);
+		List<PublishEvent> restored = storageService
+				.listMessagesInSession("client");
+		assertEquals(1, restored.size());
+		assertEquals("async", payload(restored.get(0).getMessage()));
+	}
+	
+	@Test
+	public void testTornRecordIsDropped() throws IOException {
+		storageService.storePublishForFuture(publish("client", 1, "whole"));
+		storageService.close();
+		FileOutputStream out = new FileOutputStream(new File(directory,
+				"journal-0.log"), true);
+		try {
+			// the length of a record whose bytes never made it to disk
+			out.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+		} finally {
+			out.close();
+		}
+		
+		// Exercise
+		storageService = open(FileStorageService.DEFAULT_SEGMENT_SIZE);
+		storageService.storePublishForFuture(publish("client", 2, "after"));
+		restart(FileStorageService.DEFAULT_SEGMENT_SIZE);
+		
+		// Verify
+		List<PublishEvent> stored = storageService
+				.listMessagesInSession("client");
+		assertEquals(2, stored.size());
+		assertEquals("whole", payload(stored.get(0).getMessage()));
+		assertEquals("after", payload(stored.get(1).getMessage()));
+		assertNull(storageService.retrieveQoS2Message(new PublishKey(
+				"client", 1)));
+	}
+}
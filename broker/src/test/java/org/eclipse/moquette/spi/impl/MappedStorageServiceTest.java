@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedStorageServiceTest {
+	
+	File					directory;
+	MappedStorageService	storageService;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("moquette-segments").toFile();
+		storageService = new MappedStorageService(directory, 64);
+		storageService.initStore();
+	}
+	
+	@After
+	public void tearDown() {
+		storageService.close();
+		directory.delete();
+	}
+	
+	private static PublishEvent publish(String clientID, int messageID,
+			String payload) {
+		return new PublishEvent("/topic", QOSType.LEAST_ONE,
+				ByteBuffer.wrap(payload.getBytes()), false, clientID, messageID);
+	}
+	
+	private static String payload(ByteBuffer buffer) {
+		byte[] raw = new byte[buffer.remaining()];
+		buffer.duplicate().get(raw);
+		return new String(raw);
+	}
+	
+	@Test
+	public void testPayloadsAreReadFromTheMappedSegments() {
+		storageService.createNewSession("client");
+		for (int i = 1; i <= 10; i++) {
+			storageService.storePublishForFuture(publish("client", i,
+					"message " + i));
+		}
+		
+		// Exercise
+		List<PublishEvent> stored = storageService
+				.listMessagesInSession("client");
+		
+		// Verify
+		assertEquals(10, stored.size());
+		for (int i = 0; i < 10; i++) {
+			ByteBuffer message = stored.get(i).getMessage();
+			assertTrue(message.isDirect());
+			assertTrue(message.isReadOnly());
+			assertEquals("message " + (i + 1), payload(message));
+			assertEquals(i + 1, stored.get(i).getMessageID().intValue());
+		}
+		// 7 payloads of 9 bytes fit a segment of 64 bytes
+		assertEquals(2, storageService.segments());
+	}
+	
+	@Test
+	public void testSegmentsAreDeletedWhenTheirMessagesAreAcked() {
+		storageService.createNewSession("client");
+		for (int i = 1; i <= 20; i++) {
+			storageService.storePublishForFuture(publish("client", i,
+					"message " + (i % 10)));
+		}
+		assertEquals(3, storageService.segments());
+		
+		// Exercise
+		for (PublishEvent evt : storageService.listMessagesInSession("client")
+				.subList(0, 12)) {
+			storageService.removeMessageInSession("client", evt.getStoredID());
+		}
+		
+		// Verify, only the active segment and the one with message 13 left
+		assertEquals(2, storageService.segments());
+		assertEquals(2, directory.list().length);
+		List<PublishEvent> stored = storageService
+				.listMessagesInSession("client");
+		assertEquals(8, stored.size());
+		assertEquals("message 3", payload(stored.get(0).getMessage()));
+		
+		storageService.dropMessagesInSession("client");
+		assertEquals(1, storageService.segments());
+	}
+	
+	@Test
+	public void testPayloadBiggerThanTheSegment() {
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			big.append(i % 10);
+		}
+		
+		// Exercise
+		storageService.storePublishForFuture(publish("client", 1,
+				big.toString()));
+		
+		// Verify
+		assertEquals(big.toString(), payload(storageService
+				.listMessagesInSession("client").get(0).getMessage()));
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.IMessagesStore;
+import org.eclipse.moquette.spi.IMessagesStore.PublishKey;
+import org.eclipse.moquette.spi.IMessagesStore.StoredMessage;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryStorageServiceTest {
+	
+	MemoryStorageService	storageService;
+	
+	@Before
+	public void setUp() {
+		storageService = new MemoryStorageService();
+		storageService.initStore();
+	}
+	
+	@Test
+	public void testRetainedPayloadIsAReadOnlyCopy() {
+		storageService.setRetainedOffHeap(true);
+		storageService.storeRetained("/topic",
+				ByteBuffer.wrap("Hello".getBytes()), QOSType.LEAST_ONE);
+		StoredMessage stored = retained("/topic");
+		
+		// Exercise
+		ByteBuffer first = stored.getPayload();
+		ByteBuffer second = stored.getPayload();
+		first.get(new byte[first.remaining()]);
+		storageService.cleanRetained("/topic");
+		
+		// Verify, reading a copy doesn't consume the others and outlives the
+		// release of the message
+		assertTrue(first.isReadOnly());
+		assertFalse(stored.retain());
+		assertEquals("Hello", DebugUtils.payload2Str(second));
+	}
+	
+	@Test
+	public void testReplacedRetainedPayloadIsReleased() {
+		storageService.setRetainedOffHeap(true);
+		storageService.storeRetained("/topic",
+				ByteBuffer.wrap("Hello".getBytes()), QOSType.LEAST_ONE);
+		StoredMessage inUse = retained("/topic");
+		StoredMessage replaced = retained("/topic");
+		assertTrue(inUse.retain());
+		
+		// Exercise
+		storageService.storeRetained("/topic",
+				ByteBuffer.wrap("World".getBytes()), QOSType.LEAST_ONE);
+		
+		// Verify, the reference taken keeps the old payload readable
+		assertEquals("Hello", DebugUtils.payload2Str(inUse.getPayload()));
+		assertEquals("World",
+				DebugUtils.payload2Str(retained("/topic").getPayload()));
+		inUse.release();
+		assertFalse(replaced.retain());
+	}
+	
+	@Test
+	public void testCleanRetainedReleasesThePayload() {
+		storageService.storeRetained("/topic",
+				ByteBuffer.wrap("Hello".getBytes()), QOSType.LEAST_ONE);
+		StoredMessage stored = retained("/topic");
+		
+		// Exercise
+		storageService.cleanRetained("/topic");
+		
+		// Verify
+		assertTrue(storageService.searchRetained("#").isEmpty());
+		assertFalse(stored.retain());
+	}
+	
+	@Test
+	public void testRetainedCursorResumesAcrossBatches() {
+		for (int i = 0; i < 100; i++) {
+			storageService.storeRetained(String.format("/sensors/%03d", i),
+					ByteBuffer.wrap("Hello".getBytes()), QOSType.MOST_ONE);
+		}
+		storageService.storeRetained("/other", ByteBuffer.wrap("Hello"
+				.getBytes()), QOSType.MOST_ONE);
+		
+		// Exercise
+		IMessagesStore.RetainedCursor cursor = storageService
+				.retainedCursor("/sensors/+");
+		List<String> topics = new ArrayList<>();
+		while (cursor.hasNext()) {
+			StoredMessage message = cursor.next();
+			topics.add(message.getTopic());
+			message.release();
+		}
+		
+		// Verify, each one once and in order
+		assertEquals(100, topics.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(String.format("/sensors/%03d", i), topics.get(i));
+		}
+	}
+	
+	@Test
+	public void testRetainedCursorSeesTheReplacedMessagesOnlyOnce() {
+		for (int i = 0; i < 40; i++) {
+			storageService.storeRetained("/t/" + (char) ('A' + i),
+					ByteBuffer.wrap("Hello".getBytes()), QOSType.MOST_ONE);
+		}
+		IMessagesStore.RetainedCursor cursor = storageService
+				.retainedCursor("/t/#");
+		StoredMessage first = cursor.next();
+		
+		// Exercise, replace one already returned and one still to return
+		storageService.storeRetained("/t/A", ByteBuffer.wrap("World"
+				.getBytes()), QOSType.MOST_ONE);
+		storageService.storeRetained("/t/" + (char) ('A' + 39), ByteBuffer
+				.wrap("World".getBytes()), QOSType.MOST_ONE);
+		
+		// Verify, the batch taken keeps its payloads
+		assertEquals("Hello", DebugUtils.payload2Str(first.getPayload()));
+		first.release();
+		int count = 1;
+		StoredMessage last = null;
+		while (cursor.hasNext()) {
+			if (last != null) {
+				last.release();
+			}
+			last = cursor.next();
+			count++;
+		}
+		assertEquals(40, count);
+		assertEquals("World", DebugUtils.payload2Str(last.getPayload()));
+		last.release();
+	}
+	
+	@Test
+	public void testQoS2KeysOfDifferentClientsDoNotClash() {
+		// "a1" + 23 and "a12" + 3 were both the key "a123"
+		PublishEvent first = new PublishEvent("/topic", QOSType.EXACTLY_ONCE,
+				ByteBuffer.wrap("first".getBytes()), false, "a1", 23);
+		PublishEvent second = new PublishEvent("/topic", QOSType.EXACTLY_ONCE,
+				ByteBuffer.wrap("second".getBytes()), false, "a12", 3);
+		
+		// Exercise
+		storageService.persistQoS2Message(new PublishKey("a1", 23), first);
+		storageService.persistQoS2Message(new PublishKey("a12", 3), second);
+		storageService.removeQoS2Message(new PublishKey("a1", 23));
+		
+		// Verify
+		assertNull(storageService.retrieveQoS2Message(new PublishKey("a1", 23)));
+		assertEquals(second, storageService.retrieveQoS2Message(new PublishKey(
+				"a12", 3)));
+		assertEquals(65535, new PublishKey("client", 65535).getPacketID());
+	}
+	
+	@Test
+	public void testConcurrentClientsStress() throws Exception {
+		final int threads = 8;
+		final int iterations = 2000;
+		final int clients = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		final ConcurrentMap<String, Set<Integer>> packetIDs = new ConcurrentHashMap<>();
+		for (int c = 0; c < clients; c++) {
+			packetIDs.put("client" + c, Collections
+					.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>()));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> results = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int i = 0; i < iterations; i++) {
+						String clientID = "client" + (i % clients);
+						String topic = "topic/" + thread + "/" + i;
+						storageService.addNewSubscription(new Subscription(
+								clientID, topic, QOSType.LEAST_ONE, false));
+						storageService.storePublishForFuture(new PublishEvent(
+								topic, QOSType.LEAST_ONE, ByteBuffer
+										.wrap("Hello".getBytes()), false,
+								clientID, i));
+						packetIDs.get(clientID).add(
+								storageService.nextPacketID(clientID));
+						storageService.storeRetained("retained/" + (i % 10),
+								ByteBuffer.wrap("Hello".getBytes()),
+								QOSType.LEAST_ONE);
+						storageService.listAllSubscriptions();
+						storageService.searchRetained("retained/+");
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> result : results) {
+			// rethrows the failures of the thread
+			result.get(30, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+		
+		// Verify nothing was lost and the packet IDs were never repeated
+		assertEquals(threads * iterations, storageService
+				.listAllSubscriptions().size());
+		int stored = 0;
+		int ids = 0;
+		for (int c = 0; c < clients; c++) {
+			stored += storageService.listMessagesInSession("client" + c)
+					.size();
+			ids += packetIDs.get("client" + c).size();
+		}
+		assertEquals(threads * iterations, stored);
+		assertEquals(threads * iterations, ids);
+		assertEquals(10, storageService.searchRetained("retained/+").size());
+	}
+	
+	private StoredMessage retained(String topic) {
+		List<StoredMessage> messages = new ArrayList<>(
+				storageService.searchRetained(topic));
+		assertEquals(1, messages.size());
+		return messages.get(0);
+	}
+}
@@ -17,6 +17,7 @@
 import io.netty.util.AttributeKey;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.moquette.proto.messages.AbstractMessage;
@@ -48,6 +49,30 @@ class MockReceiverChannel implements ServerChannel {
 	public void close(boolean immediately) {
 	}
 	
+	@Override
+	public boolean isWritable() {
+		return true;
+	}
+	
+	@Override
+	public void runWhenWritable(Runnable task) {
+		task.run();
+	}
+	
+	@Override
+	public void execute(Runnable task) {
+		task.run();
+	}
+	
+	@Override
+	public void setAutoRead(boolean autoRead) {
+	}
+	
+	@Override
+	public boolean isActive() {
+		return true;
+	}
+	
 	@Override
 	public String channelId() {
 		return "";
@@ -72,4 +97,11 @@ class MockReceiverChannel implements ServerChannel {
 			throw new AssertionError("Wrong return code");
 		}
 	}
+	
+	@Override
+	public void writeAll(List<?> values) {
+		for (Object value : values) {
+			write(value);
+		}
+	}
 }
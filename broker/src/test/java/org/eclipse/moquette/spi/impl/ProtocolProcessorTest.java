@@ -16,13 +16,18 @@
 package org.eclipse.moquette.spi.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -33,13 +38,22 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.moquette.interception.InterceptHandler;
+import org.eclipse.moquette.parser.netty.SharedPublish;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
 import org.eclipse.moquette.proto.messages.ConnAckMessage;
 import org.eclipse.moquette.proto.messages.ConnectMessage;
+import org.eclipse.moquette.proto.messages.DisconnectMessage;
+import org.eclipse.moquette.proto.messages.MessageIDMessage;
+import org.eclipse.moquette.proto.messages.PubAckMessage;
+import org.eclipse.moquette.proto.messages.PubCompMessage;
+import org.eclipse.moquette.proto.messages.PubRecMessage;
+import org.eclipse.moquette.proto.messages.PubRelMessage;
 import org.eclipse.moquette.proto.messages.PublishMessage;
 import org.eclipse.moquette.proto.messages.SubAckMessage;
 import org.eclipse.moquette.proto.messages.SubscribeMessage;
@@ -245,6 +259,34 @@ public class ProtocolProcessorTest {
 		assertTrue(subscriptions.contains(expectedSubscription));
 	}
 	
+	@Test
+	public void testSubAckSentOnceTheSubscriptionIsStored() {
+		final Promise<Void> stored = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		MemoryStorageService slowStorage = new MemoryStorageService() {
+			@Override
+			public Future<Void> addNewSubscriptionAsync(
+					Subscription newSubscription) {
+				addNewSubscription(newSubscription);
+				return stored;
+			}
+		};
+		subscriptions.init(slowStorage);
+		SubscribeMessage msg = new SubscribeMessage();
+		msg.addSubscription(new SubscribeMessage.Couple(
+				AbstractMessage.QOSType.MOST_ONE.byteValue(), FAKE_TOPIC));
+		m_session.setAttribute(NettyChannel.ATTR_KEY_CLIENTID, FAKE_CLIENT_ID);
+		m_session.setAttribute(NettyChannel.ATTR_KEY_CLEANSESSION, false);
+		
+		// Exercise
+		m_processor.processSubscribe(m_session, msg);
+		
+		// Verify, the SUBACK waits for the store
+		assertNull(m_session.getReceivedMessage());
+		stored.setSuccess(null);
+		assertTrue(m_session.getReceivedMessage() instanceof SubAckMessage);
+	}
+	
 	@Test
 	public void testDoubleSubscribe() {
 		SubscribeMessage msg = new SubscribeMessage();
@@ -387,6 +429,442 @@ public class ProtocolProcessorTest {
 		assertEquals(FAKE_TOPIC, pubMessage.getTopicName());
 	}
 	
+	@Test
+	public void testPublishOfRetainedMessages_pausedWhileNotWritable() {
+		final List<AbstractMessage> written = new ArrayList<>();
+		final Runnable[] pending = new Runnable[1];
+		m_session = new DummyChannel() {
+			@Override
+			public boolean isWritable() {
+				// the outbound buffer fills after every publish
+				return pending[0] == null
+						&& !(m_receivedMessage instanceof PublishMessage);
+			}
+			
+			@Override
+			public void runWhenWritable(Runnable task) {
+				pending[0] = task;
+			}
+			
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				written.add((AbstractMessage) value);
+			}
+		};
+		connMsg.setClientID(FAKE_CLIENT_ID);
+		m_processor.processConnect(m_session, connMsg);
+		m_session.setAttribute(NettyChannel.ATTR_KEY_CLIENTID, FAKE_CLIENT_ID);
+		m_session.setAttribute(NettyChannel.ATTR_KEY_CLEANSESSION, true);
+		// QoS 0 retained publishes would clean the retained store
+		for (String topic : Arrays.asList("/a", "/b")) {
+			PublishMessage pubmsg = new PublishMessage();
+			pubmsg.setTopicName(topic);
+			pubmsg.setQos(QOSType.LEAST_ONE);
+			pubmsg.setMessageID(topic.length());
+			pubmsg.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+			pubmsg.setRetainFlag(true);
+			m_processor.processPublish(m_session, pubmsg);
+		}
+		written.clear();
+		
+		// Exercise
+		SubscribeMessage msg = new SubscribeMessage();
+		msg.addSubscription(new SubscribeMessage.Couple(QOSType.MOST_ONE
+				.byteValue(), "#"));
+		m_processor.processSubscribe(m_session, msg);
+		
+		// Verify, the SUBACK first then the replay stops on the full channel
+		assertEquals(2, written.size());
+		assertTrue(written.get(0) instanceof SubAckMessage);
+		assertTrue(written.get(1) instanceof PublishMessage);
+		assertNotNull(pending[0]);
+		
+		// the channel drains
+		Runnable resume = pending[0];
+		pending[0] = null;
+		m_session.m_receivedMessage = null;
+		resume.run();
+		assertEquals(3, written.size());
+		assertTrue(written.get(2) instanceof PublishMessage);
+	}
+	
+	@Test
+	public void testPublishWaitsForAFreePacketID() {
+		final List<PublishMessage> received = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PublishMessage) {
+					received.add((PublishMessage) value);
+				}
+			}
+		};
+		connMsg.setClientID(FAKE_CLIENT_ID);
+		m_processor.processConnect(m_session, connMsg);
+		SubscribeMessage subscribe = new SubscribeMessage();
+		subscribe.addSubscription(new SubscribeMessage.Couple(QOSType.LEAST_ONE
+				.byteValue(), FAKE_TOPIC));
+		m_processor.processSubscribe(m_session, subscribe);
+		// all the PacketIdentifiers of the client are in flight
+		while (m_storageService.nextPacketID(FAKE_CLIENT_ID) != 0) {
+		}
+		
+		// Exercise
+		PublishMessage msg = new PublishMessage();
+		msg.setTopicName(FAKE_TOPIC);
+		msg.setQos(QOSType.LEAST_ONE);
+		msg.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+		msg.setMessageID(1);
+		m_processor.processPublish(m_session, msg);
+		
+		// Verify, the publish is sent once a PacketIdentifier is released
+		assertTrue(received.isEmpty());
+		PubAckMessage pubAck = new PubAckMessage();
+		pubAck.setMessageID(42);
+		m_processor.processPubAck(m_session, pubAck);
+		assertEquals(1, received.size());
+		assertEquals(Integer.valueOf(42), received.get(0).getMessageID());
+	}
+	
+	@Test
+	public void testPublishWaitsForRoomInTheInflightWindow() {
+		final List<PublishMessage> received = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PublishMessage) {
+					received.add((PublishMessage) value);
+				}
+			}
+		};
+		m_processor.setInflightWindow(1, 0);
+		connMsg.setClientID(FAKE_CLIENT_ID);
+		m_processor.processConnect(m_session, connMsg);
+		SubscribeMessage subscribe = new SubscribeMessage();
+		subscribe.addSubscription(new SubscribeMessage.Couple(QOSType.LEAST_ONE
+				.byteValue(), FAKE_TOPIC));
+		m_processor.processSubscribe(m_session, subscribe);
+		
+		// Exercise
+		for (int i = 1; i <= 2; i++) {
+			PublishMessage msg = new PublishMessage();
+			msg.setTopicName(FAKE_TOPIC);
+			msg.setQos(QOSType.LEAST_ONE);
+			msg.setPayload(ByteBuffer.wrap(("Hello " + i).getBytes()));
+			msg.setMessageID(i);
+			m_processor.processPublish(m_session, msg);
+		}
+		
+		// Verify, the second publish is sent once the first is acked
+		assertEquals(1, received.size());
+		PubAckMessage pubAck = new PubAckMessage();
+		pubAck.setMessageID(received.get(0).getMessageID());
+		m_processor.processPubAck(m_session, pubAck);
+		assertEquals(2, received.size());
+		assertEquals("Hello 2", new String(received.get(1).getPayload()
+				.array()));
+	}
+	
+	@Test
+	public void testPubAckDoesNotRemoveTheStoredMessages() {
+		connMsg.setClientID(FAKE_CLIENT_ID);
+		m_processor.processConnect(m_session, connMsg);
+		// stored with the messageID of its publisher, not yet replayed
+		m_storageService.storePublishForFuture(new PublishEvent(FAKE_TOPIC,
+				QOSType.LEAST_ONE, ByteBuffer.wrap("Hello".getBytes()), false,
+				FAKE_CLIENT_ID, 5));
+		
+		// Exercise, the ack of an unrelated publish with the same packet ID
+		PubAckMessage pubAck = new PubAckMessage();
+		pubAck.setMessageID(5);
+		m_processor.processPubAck(m_session, pubAck);
+		
+		// Verify
+		assertEquals(1, m_storageService.listMessagesInSession(FAKE_CLIENT_ID)
+				.size());
+	}
+	
+	@Test
+	public void testPubAckSentOnceThePublishIsStored() {
+		final Promise<Void> stored = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		MemoryStorageService slowStorage = new MemoryStorageService() {
+			@Override
+			public Future<Void> storeRetainedAsync(String topic,
+					ByteBuffer message, AbstractMessage.QOSType qos) {
+				storeRetained(topic, message, qos);
+				return stored;
+			}
+		};
+		m_processor.init(subscriptions, slowStorage, slowStorage,
+				m_mockAuthenticator, true, new PermitAllAuthorizator(),
+				NO_OBSERVERS_INTERCEPTOR);
+		final List<PubAckMessage> acks = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PubAckMessage) {
+					acks.add((PubAckMessage) value);
+				}
+			}
+		};
+		connMsg.setClientID(FAKE_PUBLISHER_ID);
+		m_processor.processConnect(m_session, connMsg);
+		
+		// Exercise
+		PublishMessage msg = new PublishMessage();
+		msg.setTopicName(FAKE_TOPIC);
+		msg.setQos(QOSType.LEAST_ONE);
+		msg.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+		msg.setRetainFlag(true);
+		msg.setMessageID(1);
+		m_session.setAttribute(NettyChannel.ATTR_KEY_CLIENTID,
+				FAKE_PUBLISHER_ID);
+		m_processor.processPublish(m_session, msg);
+		
+		// Verify, the PUBACK waits for the store
+		assertTrue(acks.isEmpty());
+		stored.setSuccess(null);
+		assertEquals(1, acks.size());
+		assertEquals(Integer.valueOf(1), acks.get(0).getMessageID());
+	}
+	
+	@Test
+	public void testPubAcksSentInTheOrderOfThePublishes() {
+		final Promise<Void> stored = ImmediateEventExecutor.INSTANCE
+				.newPromise();
+		MemoryStorageService slowStorage = new MemoryStorageService() {
+			@Override
+			public Future<Void> storeRetainedAsync(String topic,
+					ByteBuffer message, AbstractMessage.QOSType qos) {
+				storeRetained(topic, message, qos);
+				return stored;
+			}
+		};
+		m_processor.init(subscriptions, slowStorage, slowStorage,
+				m_mockAuthenticator, true, new PermitAllAuthorizator(),
+				NO_OBSERVERS_INTERCEPTOR);
+		final List<PubAckMessage> acks = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PubAckMessage) {
+					acks.add((PubAckMessage) value);
+				}
+			}
+		};
+		connMsg.setClientID(FAKE_PUBLISHER_ID);
+		m_processor.processConnect(m_session, connMsg);
+		
+		// Exercise, the store of the first publish completes after the second
+		PublishMessage retained = new PublishMessage();
+		retained.setTopicName(FAKE_TOPIC);
+		retained.setQos(QOSType.LEAST_ONE);
+		retained.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+		retained.setRetainFlag(true);
+		retained.setMessageID(1);
+		m_processor.processPublish(m_session, retained);
+		PublishMessage msg = new PublishMessage();
+		msg.setTopicName(FAKE_TOPIC);
+		msg.setQos(QOSType.LEAST_ONE);
+		msg.setPayload(ByteBuffer.wrap("World".getBytes()));
+		msg.setMessageID(2);
+		m_processor.processPublish(m_session, msg);
+		
+		// Verify, the second PUBACK waits for the first one
+		assertTrue(acks.isEmpty());
+		stored.setSuccess(null);
+		assertEquals(2, acks.size());
+		assertEquals(Integer.valueOf(1), acks.get(0).getMessageID());
+		assertEquals(Integer.valueOf(2), acks.get(1).getMessageID());
+	}
+	
+	@Test
+	public void testAckedAfterADuplicatePubRel() {
+		final List<MessageIDMessage> acks = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PubAckMessage
+						|| value instanceof PubCompMessage) {
+					acks.add((MessageIDMessage) value);
+				}
+			}
+		};
+		connMsg.setClientID(FAKE_PUBLISHER_ID);
+		m_processor.processConnect(m_session, connMsg);
+		
+		// Exercise, a PUBREL of a QoS2 message already released
+		PubRelMessage pubRel = new PubRelMessage();
+		pubRel.setMessageID(7);
+		m_processor.processPubRel(m_session, pubRel);
+		PublishMessage msg = new PublishMessage();
+		msg.setTopicName(FAKE_TOPIC);
+		msg.setQos(QOSType.LEAST_ONE);
+		msg.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+		msg.setMessageID(8);
+		m_processor.processPublish(m_session, msg);
+		
+		// Verify
+		assertEquals(2, acks.size());
+		assertTrue(acks.get(0) instanceof PubCompMessage);
+		assertEquals(Integer.valueOf(7), acks.get(0).getMessageID());
+		assertTrue(acks.get(1) instanceof PubAckMessage);
+		assertEquals(Integer.valueOf(8), acks.get(1).getMessageID());
+	}
+	
+	@Test
+	public void testAckedAfterAPublishFailing() {
+		final List<PubAckMessage> acks = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PubAckMessage) {
+					acks.add((PubAckMessage) value);
+				}
+			}
+		};
+		connMsg.setClientID(FAKE_PUBLISHER_ID);
+		m_processor.processConnect(m_session, connMsg);
+		// active but already gone from the connections, the forward fails
+		subscriptions.add(new Subscription("Gone", FAKE_TOPIC,
+				QOSType.LEAST_ONE, false));
+		PublishMessage failing = new PublishMessage();
+		failing.setTopicName(FAKE_TOPIC);
+		failing.setQos(QOSType.LEAST_ONE);
+		failing.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+		failing.setMessageID(1);
+		try {
+			m_processor.processPublish(m_session, failing);
+			fail("the forward to the gone subscriber must fail");
+		} catch (RuntimeException ex) {
+			// expected
+		}
+		
+		// Exercise
+		PublishMessage msg = new PublishMessage();
+		msg.setTopicName("/other");
+		msg.setQos(QOSType.LEAST_ONE);
+		msg.setPayload(ByteBuffer.wrap("World".getBytes()));
+		msg.setMessageID(2);
+		m_processor.processPublish(m_session, msg);
+		
+		// Verify, the failed publish isn't acked and doesn't hold the next
+		assertEquals(1, acks.size());
+		assertEquals(Integer.valueOf(2), acks.get(0).getMessageID());
+	}
+	
+	@Test
+	public void testPubAcksInTheOrderOfThePublishesProcessedByLanes()
+			throws Exception {
+		// the single thread the acks are written by, as an event loop
+		final ExecutorService eventLoop = Executors.newSingleThreadExecutor();
+		final List<Integer> acked = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PubAckMessage) {
+					acked.add(((PubAckMessage) value).getMessageID());
+				}
+			}
+			
+			@Override
+			public void execute(Runnable task) {
+				eventLoop.execute(task);
+			}
+		};
+		connMsg.setClientID(FAKE_PUBLISHER_ID);
+		m_processor.processConnect(m_session, connMsg);
+		m_processor.setPublishLanes(4, 8);
+		
+		// Exercise, the topics are spread on the lanes
+		eventLoop.submit(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 1; i <= 1000; i++) {
+					PublishMessage msg = new PublishMessage();
+					msg.setTopicName("sensors/" + (i % 10));
+					msg.setQos(QOSType.LEAST_ONE);
+					msg.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+					msg.setMessageID(i);
+					m_processor.processPublish(m_session, msg);
+				}
+			}
+		}).get();
+		m_processor.stop();
+		// the publishes left waiting are processed on the event loop
+		long deadline = System.currentTimeMillis() + 10000;
+		while (acked.size() < 1000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		eventLoop.shutdown();
+		assertTrue(eventLoop.awaitTermination(10, TimeUnit.SECONDS));
+		
+		// Verify
+		assertEquals(1000, acked.size());
+		for (int i = 0; i < acked.size(); i++) {
+			assertEquals(i + 1, acked.get(i).intValue());
+		}
+	}
+	
+	@Test
+	public void testInflightPublishResentWithDupFlag_onReconnect()
+			throws InterruptedException {
+		final List<PublishMessage> received = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PublishMessage) {
+					received.add((PublishMessage) value);
+				}
+			}
+		};
+		connMsg.setClientID(FAKE_CLIENT_ID);
+		connMsg.setCleanSession(false);
+		m_processor.processConnect(m_session, connMsg);
+		SubscribeMessage subscribe = new SubscribeMessage();
+		subscribe.addSubscription(new SubscribeMessage.Couple(QOSType.LEAST_ONE
+				.byteValue(), FAKE_TOPIC));
+		m_processor.processSubscribe(m_session, subscribe);
+		PublishMessage msg = new PublishMessage();
+		msg.setTopicName(FAKE_TOPIC);
+		msg.setQos(QOSType.LEAST_ONE);
+		msg.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+		msg.setMessageID(1);
+		m_processor.processPublish(m_session, msg);
+		assertEquals(1, received.size());
+		assertFalse(received.get(0).isDupFlag());
+		
+		// Exercise, the client goes away without acking the publish
+		m_processor.processDisconnect(m_session, new DisconnectMessage());
+		DummyChannel reconnected = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PublishMessage) {
+					received.add((PublishMessage) value);
+				}
+			}
+		};
+		m_processor.processConnect(reconnected, connMsg);
+		
+		// Verify
+		assertEquals(2, received.size());
+		assertTrue(received.get(1).isDupFlag());
+		assertEquals(received.get(0).getMessageID(), received.get(1)
+				.getMessageID());
+	}
+	
 	@Test
 	public void testRepublishAndConsumePersistedMessages_onReconnect() {
 		SubscriptionsStore subs = mock(SubscriptionsStore.class);
@@ -404,12 +882,117 @@ public class ProtocolProcessorTest {
 		connectMessage.setProtocolVersion((byte) 3);
 		connectMessage.setCleanSession(false);
 		m_processor.processConnect(m_session, connectMessage);
+		int packetID = ((PublishMessage) m_session.getReceivedMessage())
+				.getMessageID();
+		PubRecMessage pubRec = new PubRecMessage();
+		pubRec.setMessageID(packetID);
+		m_processor.processPubRec(m_session, pubRec);
+		PubCompMessage pubComp = new PubCompMessage();
+		pubComp.setMessageID(packetID);
+		m_processor.processPubComp(m_session, pubComp);
 		
-		// Verify no messages are still stored
+		// Verify no messages are still stored once delivered
 		assertTrue(m_storageService.listMessagesInSession(FAKE_PUBLISHER_ID)
 				.isEmpty());
 	}
 	
+	@Test
+	public void testStoredMessagesReplayedInBatches_onReconnect()
+			throws InterruptedException {
+		final List<PublishMessage> received = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PublishMessage) {
+					synchronized (received) {
+						received.add((PublishMessage) value);
+					}
+				}
+			}
+		};
+		for (int i = 0; i < 5; i++) {
+			m_storageService.storePublishForFuture(new PublishEvent(FAKE_TOPIC,
+					QOSType.LEAST_ONE, ByteBuffer.wrap(("Hello " + i)
+							.getBytes()), false, FAKE_CLIENT_ID, i + 1));
+		}
+		m_processor.setSessionReplay(2, 0, 0);
+		connMsg.setClientID(FAKE_CLIENT_ID);
+		connMsg.setCleanSession(false);
+		
+		// Exercise
+		m_processor.processConnect(m_session, connMsg);
+		
+		// Verify, only the first batch is sent on connect
+		synchronized (received) {
+			assertEquals(2, received.size());
+		}
+		long deadline = System.currentTimeMillis() + 2000;
+		while (System.currentTimeMillis() < deadline) {
+			synchronized (received) {
+				if (received.size() == 5) {
+					break;
+				}
+			}
+			Thread.sleep(10);
+		}
+		// kept until acked
+		assertEquals(5, m_storageService.listMessagesInSession(FAKE_CLIENT_ID)
+				.size());
+		synchronized (received) {
+			assertEquals(5, received.size());
+			for (int i = 0; i < 5; i++) {
+				assertEquals("Hello " + i, new String(received.get(i)
+						.getPayload().array()));
+				PubAckMessage pubAck = new PubAckMessage();
+				pubAck.setMessageID(received.get(i).getMessageID());
+				m_processor.processPubAck(m_session, pubAck);
+			}
+		}
+		assertTrue(m_storageService.listMessagesInSession(FAKE_CLIENT_ID)
+				.isEmpty());
+		// the messages in flight weren't replayed twice
+		synchronized (received) {
+			assertEquals(5, received.size());
+		}
+	}
+	
+	@Test
+	public void testReplayedQoS2MessageStoredUntilPubComp() {
+		final List<PublishMessage> received = new ArrayList<>();
+		m_session = new DummyChannel() {
+			@Override
+			public void write(Object value) {
+				super.write(value);
+				if (value instanceof PublishMessage) {
+					received.add((PublishMessage) value);
+				}
+			}
+		};
+		m_storageService.storePublishForFuture(new PublishEvent(FAKE_TOPIC,
+				QOSType.EXACTLY_ONCE, ByteBuffer.wrap("Hello".getBytes()),
+				false, FAKE_CLIENT_ID, 1));
+		connMsg.setClientID(FAKE_CLIENT_ID);
+		connMsg.setCleanSession(false);
+		m_processor.processConnect(m_session, connMsg);
+		assertEquals(1, received.size());
+		int packetID = received.get(0).getMessageID();
+		
+		// Exercise
+		PubRecMessage pubRec = new PubRecMessage();
+		pubRec.setMessageID(packetID);
+		m_processor.processPubRec(m_session, pubRec);
+		
+		// Verify, only the PUBCOMP completes the delivery
+		assertEquals(1, m_storageService.listMessagesInSession(FAKE_CLIENT_ID)
+				.size());
+		PubCompMessage pubComp = new PubCompMessage();
+		pubComp.setMessageID(packetID);
+		m_processor.processPubComp(m_session, pubComp);
+		assertTrue(m_storageService.listMessagesInSession(FAKE_CLIENT_ID)
+				.isEmpty());
+	}
+	
 	@Test
 	public void publishNoPublishToInactiveSubscriptions() {
 		SubscriptionsStore mockedSubscriptions = mock(SubscriptionsStore.class);
@@ -525,11 +1108,12 @@ public class ProtocolProcessorTest {
 		
 		ProtocolProcessor processor = new ProtocolProcessor() {
 			@Override
-			protected void sendPublish(String clientId, String topic,
-					AbstractMessage.QOSType qos, ByteBuffer message,
+			protected void sendPublish(String clientId,
+					SharedPublish publish, AbstractMessage.QOSType qos,
 					boolean retained, Integer messageID) {
-				publishedForwarded.add(new PublishEvent(topic, qos, message,
-						retained, clientId, messageID));
+				publishedForwarded.add(new PublishEvent(publish
+						.getTopicName(), qos, publish.getPayload(), retained,
+						clientId, messageID));
 			}
 		};
 		processor.init(subscriptions, memoryMessageStore, null, null, true,
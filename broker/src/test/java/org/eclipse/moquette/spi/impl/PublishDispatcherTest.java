@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+import org.eclipse.moquette.server.ServerChannel;
+import org.junit.Test;
+
+public class PublishDispatcherTest {
+	
+	/**
+	 * Records the publishes processed, in order by topic, and the threads
+	 * processing them.
+	 */
+	static class RecordingProcessor extends ProtocolProcessor {
+		
+		final Map<String, List<Integer>>	processed	= new HashMap<>();
+		final Set<Thread>					threads		= new HashSet<>();
+		
+		@Override
+		synchronized void doProcessPublish(ServerChannel session,
+				PublishMessage msg, AckSequence.Ack ack) {
+			threads.add(Thread.currentThread());
+			List<Integer> ids = processed.get(msg.getTopicName());
+			if (ids == null) {
+				ids = new ArrayList<>();
+				processed.put(msg.getTopicName(), ids);
+			}
+			ids.add(msg.getMessageID());
+		}
+	}
+	
+	final RecordingProcessor	processor	= new RecordingProcessor();
+	
+	private static PublishMessage publish(String topic, int messageID) {
+		PublishMessage msg = new PublishMessage();
+		msg.setTopicName(topic);
+		msg.setQos(QOSType.LEAST_ONE);
+		msg.setMessageID(messageID);
+		msg.setPayload(ByteBuffer.wrap("Hello".getBytes()));
+		return msg;
+	}
+	
+	@Test
+	public void testPublishesOfATopicProcessedInOrder() throws Exception {
+		// a small ring, the publishes wait for the lanes to make room
+		processor.setPublishLanes(4, 8);
+		final ExecutorService eventLoop = Executors.newSingleThreadExecutor();
+		final DummyChannel session = new DummyChannel() {
+			@Override
+			public void execute(Runnable task) {
+				eventLoop.execute(task);
+			}
+		};
+		
+		// Exercise
+		eventLoop.submit(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 1000; i++) {
+					processor.processPublish(session,
+							publish("sensors/" + (i % 10), i));
+				}
+			}
+		}).get();
+		processor.stop();
+		eventLoop.shutdown();
+		assertTrue(eventLoop.awaitTermination(10, TimeUnit.SECONDS));
+		
+		// Verify
+		assertEquals(10, processor.processed.size());
+		for (int t = 0; t < 10; t++) {
+			List<Integer> ids = processor.processed.get("sensors/" + t);
+			assertEquals(100, ids.size());
+			for (int i = 0; i < ids.size(); i++) {
+				assertEquals(t + i * 10, ids.get(i).intValue());
+			}
+		}
+		assertTrue(processor.threads.size() > 1);
+		assertFalse(processor.threads.contains(Thread.currentThread()));
+	}
+	
+	@Test
+	public void testReadingPausedWhileTheLaneIsFull() throws Exception {
+		final CountDownLatch busy = new CountDownLatch(1);
+		final RecordingProcessor slowProcessor = new RecordingProcessor() {
+			@Override
+			void doProcessPublish(ServerChannel session, PublishMessage msg,
+					AckSequence.Ack ack) {
+				try {
+					busy.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				super.doProcessPublish(session, msg, ack);
+			}
+		};
+		slowProcessor.setPublishLanes(1, 2);
+		final ExecutorService eventLoop = Executors.newSingleThreadExecutor();
+		final List<Boolean> autoReads = Collections
+				.synchronizedList(new ArrayList<Boolean>());
+		final DummyChannel session = new DummyChannel() {
+			@Override
+			public void execute(Runnable task) {
+				eventLoop.execute(task);
+			}
+			
+			@Override
+			public void setAutoRead(boolean autoRead) {
+				autoReads.add(autoRead);
+			}
+		};
+		
+		// Exercise, the event loop doesn't wait for the busy lane
+		eventLoop.submit(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 10; i++) {
+					slowProcessor.processPublish(session,
+							publish("sensors/1", i));
+				}
+			}
+		}).get(10, TimeUnit.SECONDS);
+		
+		// Verify
+		assertEquals(Collections.singletonList(false), autoReads);
+		busy.countDown();
+		slowProcessor.stop();
+		eventLoop.shutdown();
+		assertTrue(eventLoop.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9),
+				slowProcessor.processed.get("sensors/1"));
+		assertEquals(Boolean.TRUE, autoReads.get(autoReads.size() - 1));
+	}
+	
+	@Test
+	public void testProcessedInTheCallerWithoutLanes() {
+		processor.setPublishLanes(0, 8);
+		
+		// Exercise
+		processor.processPublish(new DummyChannel(), publish("sensors/1", 1));
+		
+		// Verify
+		assertEquals(1, processor.processed.get("sensors/1").size());
+		assertEquals(Collections.singleton(Thread.currentThread()),
+				processor.threads);
+	}
+	
+	@Test
+	public void testProcessedInTheCallerOnceStopped() {
+		processor.setPublishLanes(2, 8);
+		processor.processPublish(new DummyChannel(), publish("sensors/1", 1));
+		
+		// Exercise
+		processor.stop();
+		processor.processPublish(new DummyChannel(), publish("sensors/1", 2));
+		
+		// Verify
+		assertEquals(2, processor.processed.get("sensors/1").size());
+		assertTrue(processor.threads.contains(Thread.currentThread()));
+		assertEquals(2, processor.threads.size());
+	}
+}
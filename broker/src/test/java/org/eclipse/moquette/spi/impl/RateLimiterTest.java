@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+	
+	@Test
+	public void testNoLimit() {
+		RateLimiter limiter = new RateLimiter(0);
+		assertEquals(0, limiter.reserve(1000));
+		assertEquals(0, limiter.reserve(1000));
+	}
+	
+	@Test
+	public void testDelayGrowsWithTheMessagesSent() {
+		RateLimiter limiter = new RateLimiter(100);
+		long first = limiter.reserve(10);
+		long second = limiter.reserve(10);
+		
+		// 10 messages at 100 per second take 100 ms
+		assertTrue(first <= TimeUnit.MILLISECONDS.toNanos(100));
+		assertTrue(first > TimeUnit.MILLISECONDS.toNanos(50));
+		assertTrue(second > TimeUnit.MILLISECONDS.toNanos(150));
+		assertTrue(second <= TimeUnit.MILLISECONDS.toNanos(200));
+	}
+}
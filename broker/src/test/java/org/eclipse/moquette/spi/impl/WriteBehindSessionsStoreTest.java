@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.subscriptions.Subscription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindSessionsStoreTest {
+	
+	int							writes;
+	MemoryStorageService		store;
+	WriteBehindSessionsStore	writeBehind;
+	
+	@Before
+	public void setUp() {
+		store = new MemoryStorageService() {
+			@Override
+			public void addNewSubscription(Subscription newSubscription) {
+				writes++;
+				super.addNewSubscription(newSubscription);
+			}
+			
+			@Override
+			public void removeSubscription(String topic, String clientID) {
+				writes++;
+				super.removeSubscription(topic, clientID);
+			}
+			
+			@Override
+			public void updateSubscriptions(String clientID,
+					Set<Subscription> subscriptions) {
+				writes++;
+				super.updateSubscriptions(clientID, subscriptions);
+			}
+			
+			@Override
+			public void wipeSubscriptions(String clientID) {
+				writes++;
+				super.wipeSubscriptions(clientID);
+			}
+		};
+		// flushed by the tests
+		writeBehind = new WriteBehindSessionsStore(store, 3600 * 1000);
+	}
+	
+	@After
+	public void tearDown() {
+		writeBehind.close();
+	}
+	
+	private static Subscription subscription(String topicFilter) {
+		return new Subscription("client", topicFilter, QOSType.LEAST_ONE,
+				false);
+	}
+	
+	@Test
+	public void testChangesAreCoalescedPerClient() {
+		writeBehind.createNewSession("client");
+		writeBehind.addNewSubscription(subscription("/a"));
+		writeBehind.addNewSubscription(subscription("/b"));
+		writeBehind.removeSubscription("/a", "client");
+		for (int i = 0; i < 10; i++) {
+			// reconnections
+			writeBehind.updateSubscriptions("client",
+					Collections.singleton(subscription("/b")));
+		}
+		
+		// Exercise
+		writeBehind.flush();
+		
+		// Verify
+		assertEquals(1, writes);
+		assertEquals(Collections.singleton(subscription("/b")),
+				store.getSubscriptions("client"));
+		assertEquals(0, writeBehind.pendingClients());
+	}
+	
+	@Test
+	public void testReadsSeeThePendingChanges() {
+		writeBehind.createNewSession("client");
+		writeBehind.addNewSubscription(subscription("/a"));
+		writeBehind.flush();
+		
+		// Exercise
+		writeBehind.addNewSubscription(subscription("/b"));
+		writeBehind.removeSubscription("/a", "client");
+		
+		// Verify
+		assertEquals(Collections.singleton(subscription("/b")),
+				writeBehind.getSubscriptions("client"));
+		assertEquals(Collections.singleton(subscription("/a")),
+				store.getSubscriptions("client"));
+		writeBehind.wipeSubscriptions("client");
+		assertNull(writeBehind.getSubscriptions("client"));
+		assertFalse(writeBehind.contains("client"));
+		assertTrue(store.contains("client"));
+	}
+	
+	@Test
+	public void testPendingChangesWrittenOnClose() {
+		writeBehind.createNewSession("client");
+		writeBehind.addNewSubscription(subscription("/a"));
+		
+		// Exercise
+		writeBehind.close();
+		
+		// Verify
+		assertEquals(Collections.singleton(subscription("/a")),
+				store.getSubscriptions("client"));
+	}
+	
+	@Test
+	public void testChangesWrittenInBackground() throws InterruptedException {
+		writeBehind.close();
+		writeBehind = new WriteBehindSessionsStore(store, 10);
+		writeBehind.createNewSession("client");
+		
+		// Exercise
+		writeBehind.addNewSubscription(subscription("/a"));
+		
+		// Verify
+		long deadline = System.currentTimeMillis() + 5000;
+		while (writeBehind.pendingClients() > 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(Collections.singleton(subscription("/a")),
+				store.getSubscriptions("client"));
+	}
+}
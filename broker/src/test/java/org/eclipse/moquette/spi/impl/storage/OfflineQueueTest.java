@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.impl.events.PublishEvent;
+import org.eclipse.moquette.spi.impl.storage.OfflineQueue.OverflowPolicy;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OfflineQueueTest {
+	
+	private OfflineQueuesMetrics	metrics;
+	
+	@Before
+	public void setUp() {
+		metrics = new OfflineQueuesMetrics();
+	}
+	
+	private static PublishEvent publish(QOSType qos, int messageID,
+			String payload) {
+		return new PublishEvent("/topic", qos, ByteBuffer.wrap(payload
+				.getBytes()), false, "client", messageID);
+	}
+	
+	private static String payload(PublishEvent evt) {
+		return new String(evt.getMessage().array());
+	}
+	
+	@Test
+	public void testDropOldest() {
+		OfflineQueue queue = new OfflineQueue(2, 0,
+				OverflowPolicy.DROP_OLDEST, metrics);
+		assertTrue(queue.offer(publish(QOSType.LEAST_ONE, 1, "a")));
+		assertTrue(queue.offer(publish(QOSType.LEAST_ONE, 2, "b")));
+		assertTrue(queue.offer(publish(QOSType.LEAST_ONE, 3, "c")));
+		
+		List<PublishEvent> messages = queue.list();
+		assertEquals(2, messages.size());
+		assertEquals("b", payload(messages.get(0)));
+		assertEquals("c", payload(messages.get(1)));
+		assertEquals(1, metrics.droppedMessages());
+	}
+	
+	@Test
+	public void testDropNewest() {
+		OfflineQueue queue = new OfflineQueue(2, 0,
+				OverflowPolicy.DROP_NEWEST, metrics);
+		assertTrue(queue.offer(publish(QOSType.LEAST_ONE, 1, "a")));
+		assertTrue(queue.offer(publish(QOSType.LEAST_ONE, 2, "b")));
+		assertFalse(queue.offer(publish(QOSType.LEAST_ONE, 3, "c")));
+		
+		List<PublishEvent> messages = queue.list();
+		assertEquals(2, messages.size());
+		assertEquals("a", payload(messages.get(0)));
+		assertEquals("b", payload(messages.get(1)));
+	}
+	
+	@Test
+	public void testRejectQoS0First() {
+		OfflineQueue queue = new OfflineQueue(3, 0,
+				OverflowPolicy.REJECT_QOS0_FIRST, metrics);
+		queue.offer(publish(QOSType.LEAST_ONE, 1, "a"));
+		queue.offer(publish(QOSType.MOST_ONE, 0, "b"));
+		queue.offer(publish(QOSType.LEAST_ONE, 3, "c"));
+		
+		// a QoS 0 message doesn't make room for itself
+		assertFalse(queue.offer(publish(QOSType.MOST_ONE, 0, "d")));
+		// the queued QoS 0 message is dropped before the older QoS 1 one
+		assertTrue(queue.offer(publish(QOSType.EXACTLY_ONCE, 5, "e")));
+		assertTrue(queue.offer(publish(QOSType.LEAST_ONE, 6, "f")));
+		
+		List<PublishEvent> messages = queue.list();
+		assertEquals(3, messages.size());
+		assertEquals("c", payload(messages.get(0)));
+		assertEquals("e", payload(messages.get(1)));
+		assertEquals("f", payload(messages.get(2)));
+		assertEquals(3, metrics.droppedMessages());
+	}
+	
+	/**
+	 * The events stored by deliver2Subscribers, with the messageID of the
+	 * publisher or 0, and the QoS downgraded to the one of the subscription.
+	 * */
+	private static PublishEvent forwarded(QOSType publishQos,
+			Integer publishMessageID, QOSType subscriptionQos, String payload) {
+		QOSType qos = publishQos;
+		if (qos.byteValue() > subscriptionQos.byteValue()) {
+			qos = subscriptionQos;
+		}
+		return new PublishEvent("/topic", qos, ByteBuffer.wrap(payload
+				.getBytes()), false, "subscriber",
+				publishMessageID != null ? publishMessageID : 0);
+	}
+	
+	@Test
+	public void testRejectQoS0FirstWithForwardedEvents() {
+		OfflineQueue queue = new OfflineQueue(4, 0,
+				OverflowPolicy.REJECT_QOS0_FIRST, metrics);
+		PublishEvent acked = forwarded(QOSType.LEAST_ONE, 7, QOSType.LEAST_ONE,
+				"a");
+		queue.offer(acked);
+		queue.offer(forwarded(QOSType.LEAST_ONE, 8, QOSType.MOST_ONE, "b"));
+		queue.offer(forwarded(QOSType.MOST_ONE, null, QOSType.LEAST_ONE, "c"));
+		queue.offer(forwarded(QOSType.EXACTLY_ONCE, 9, QOSType.MOST_ONE, "d"));
+		
+		// Exercise, each one drops the oldest QoS 0 message left
+		assertTrue(queue.offer(forwarded(QOSType.LEAST_ONE, 10,
+				QOSType.LEAST_ONE, "e")));
+		assertTrue(queue.offer(forwarded(QOSType.LEAST_ONE, 11,
+				QOSType.EXACTLY_ONCE, "f")));
+		assertTrue(queue.offer(forwarded(QOSType.LEAST_ONE, 12,
+				QOSType.LEAST_ONE, "g")));
+		
+		// Verify
+		List<PublishEvent> messages = queue.list();
+		assertEquals(4, messages.size());
+		assertEquals("a", payload(messages.get(0)));
+		assertEquals("e", payload(messages.get(1)));
+		assertEquals("f", payload(messages.get(2)));
+		assertEquals("g", payload(messages.get(3)));
+		// the ack of the QoS 1 message still finds it
+		assertTrue(queue.remove(acked.getStoredID()));
+		assertEquals(3, queue.size());
+	}
+	
+	@Test
+	public void testRejectQoS0FirstAfterRemovingAQoS0Message() {
+		OfflineQueue queue = new OfflineQueue(3, 0,
+				OverflowPolicy.REJECT_QOS0_FIRST, metrics);
+		PublishEvent qos0 = forwarded(QOSType.MOST_ONE, null,
+				QOSType.LEAST_ONE, "a");
+		queue.offer(qos0);
+		queue.offer(forwarded(QOSType.LEAST_ONE, 1, QOSType.LEAST_ONE, "b"));
+		queue.offer(forwarded(QOSType.LEAST_ONE, 2, QOSType.MOST_ONE, "c"));
+		
+		// Exercise, the replay removes the first QoS 0 message
+		assertTrue(queue.remove(qos0.getStoredID()));
+		queue.offer(forwarded(QOSType.LEAST_ONE, 3, QOSType.LEAST_ONE, "d"));
+		queue.offer(forwarded(QOSType.LEAST_ONE, 4, QOSType.LEAST_ONE, "e"));
+		
+		// Verify
+		List<PublishEvent> messages = queue.list();
+		assertEquals(3, messages.size());
+		assertEquals("b", payload(messages.get(0)));
+		assertEquals("d", payload(messages.get(1)));
+		assertEquals("e", payload(messages.get(2)));
+	}
+	
+	@Test
+	public void testBytesLimit() {
+		OfflineQueue queue = new OfflineQueue(0, 10,
+				OverflowPolicy.DROP_OLDEST, metrics);
+		queue.offer(publish(QOSType.LEAST_ONE, 1, "12345"));
+		queue.offer(publish(QOSType.LEAST_ONE, 2, "1234"));
+		queue.offer(publish(QOSType.LEAST_ONE, 3, "123"));
+		
+		assertEquals(2, queue.size());
+		assertEquals(7, queue.bytes());
+		// a message bigger than the whole queue is rejected
+		assertFalse(queue.offer(publish(QOSType.LEAST_ONE, 4, "12345678901")));
+		assertEquals(2, queue.size());
+	}
+	
+	@Test
+	public void testRemoveByStoredIDKeepsOrder() {
+		OfflineQueue queue = new OfflineQueue(0, 0,
+				OverflowPolicy.DROP_OLDEST, metrics);
+		PublishEvent first = publish(QOSType.LEAST_ONE, 1, "a");
+		queue.offer(first);
+		queue.offer(publish(QOSType.LEAST_ONE, 2, "b"));
+		// publishers can reuse the same messageID
+		PublishEvent reused = publish(QOSType.LEAST_ONE, 1, "c");
+		queue.offer(reused);
+		PublishEvent last = publish(QOSType.LEAST_ONE, 3, "d");
+		queue.offer(last);
+		assertFalse(first.getStoredID().equals(reused.getStoredID()));
+		
+		assertTrue(queue.remove(first.getStoredID()));
+		assertTrue(queue.remove(last.getStoredID()));
+		assertFalse(queue.remove(first.getStoredID()));
+		
+		List<PublishEvent> messages = queue.list();
+		assertEquals(2, messages.size());
+		assertEquals("b", payload(messages.get(0)));
+		assertEquals("c", payload(messages.get(1)));
+	}
+	
+	@Test
+	public void testMetricsFollowRemoveAndClear() {
+		OfflineQueue queue = new OfflineQueue(0, 0,
+				OverflowPolicy.DROP_OLDEST, metrics);
+		OfflineQueue other = new OfflineQueue(0, 0,
+				OverflowPolicy.DROP_OLDEST, metrics);
+		queue.offer(publish(QOSType.LEAST_ONE, 1, "ab"));
+		queue.offer(publish(QOSType.MOST_ONE, 0, "cd"));
+		other.offer(publish(QOSType.LEAST_ONE, 1, "ef"));
+		assertEquals(3, metrics.messages());
+		assertEquals(6, metrics.bytes());
+		
+		queue.remove(queue.list().get(1).getStoredID());
+		assertEquals(2, metrics.messages());
+		assertEquals("ab", payload(queue.list().get(0)));
+		queue.remove(queue.list().get(0).getStoredID());
+		other.clear();
+		assertEquals(0, metrics.messages());
+		assertEquals(0, metrics.bytes());
+		assertEquals(0, queue.bytes());
+	}
+	
+	@Test
+	public void testRestoredMessagesKeepTheirStoredID() {
+		OfflineQueue queue = new OfflineQueue(0, 0,
+				OverflowPolicy.DROP_OLDEST, metrics);
+		PublishEvent restored = publish(QOSType.LEAST_ONE, 1, "a");
+		restored.setStoredID(5L);
+		queue.offer(restored);
+		
+		// Exercise
+		PublishEvent added = publish(QOSType.LEAST_ONE, 2, "b");
+		queue.offer(added);
+		
+		// Verify
+		assertEquals(Long.valueOf(5), restored.getStoredID());
+		assertEquals(Long.valueOf(6), added.getStoredID());
+		assertTrue(queue.remove(5));
+		assertEquals("b", payload(queue.list().get(0)));
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import static org.eclipse.moquette.spi.impl.storage.PacketIDAllocator.MAX_PACKET_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PacketIDAllocatorTest {
+	
+	private PacketIDAllocator	allocator;
+	
+	@Before
+	public void setUp() {
+		allocator = new PacketIDAllocator();
+	}
+	
+	@Test
+	public void testAllocatesInSequence() {
+		assertEquals(1, allocator.allocate());
+		assertEquals(2, allocator.allocate());
+		assertEquals(3, allocator.allocate());
+		
+		// a freed ID is not reused before the following ones
+		assertTrue(allocator.free(2));
+		assertEquals(4, allocator.allocate());
+		assertEquals(3, allocator.inFlight());
+	}
+	
+	@Test
+	public void testExhaustion() {
+		for (int i = 1; i <= MAX_PACKET_ID; i++) {
+			assertEquals(i, allocator.allocate());
+		}
+		
+		// Verify, no more IDs and never 0
+		assertEquals(0, allocator.allocate());
+		assertTrue(allocator.free(1000));
+		assertEquals(1000, allocator.allocate());
+		assertEquals(0, allocator.allocate());
+	}
+	
+	@Test
+	public void testWrapsAroundSkippingTheInFlight() {
+		for (int i = 1; i < MAX_PACKET_ID; i++) {
+			allocator.allocate();
+		}
+		allocator.free(64);
+		allocator.free(3);
+		
+		// Exercise
+		int first = allocator.allocate();
+		int second = allocator.allocate();
+		int third = allocator.allocate();
+		
+		// Verify
+		assertEquals(MAX_PACKET_ID, first);
+		assertEquals(3, second);
+		assertEquals(64, third);
+		assertEquals(0, allocator.allocate());
+	}
+	
+	@Test
+	public void testFreeOnlyTheInFlight() {
+		allocator.allocate();
+		
+		assertFalse(allocator.free(0));
+		assertFalse(allocator.free(2));
+		assertFalse(allocator.free(MAX_PACKET_ID + 1));
+		assertTrue(allocator.free(1));
+		assertFalse(allocator.free(1));
+		assertEquals(0, allocator.inFlight());
+	}
+	
+	@Test
+	public void testFreeingAPageKeepsTheOthers() {
+		for (int i = 1; i <= 3000; i++) {
+			allocator.allocate();
+		}
+		
+		// Exercise, empty the first page
+		for (int i = 1; i < 1024; i++) {
+			assertTrue(allocator.free(i));
+		}
+		
+		// Verify
+		assertFalse(allocator.isInFlight(1));
+		assertTrue(allocator.isInFlight(1024));
+		assertTrue(allocator.isInFlight(3000));
+		assertEquals(3000 - 1023, allocator.inFlight());
+		assertEquals(3001, allocator.allocate());
+	}
+	
+	@Test
+	public void testClear() {
+		allocator.allocate();
+		allocator.allocate();
+		
+		allocator.clear();
+		
+		assertFalse(allocator.isInFlight(1));
+		assertEquals(0, allocator.inFlight());
+		assertEquals(1, allocator.allocate());
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.spi.IMessagesStore.StoredMessage;
+import org.eclipse.moquette.spi.impl.subscriptions.SubscriptionUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetainedMessagesTreeTest {
+	
+	private static final List<String>	TOPICS	= Arrays.asList("finance",
+														"finance/stock",
+														"finance/stock/ibm",
+														"/finance", "/",
+														"sport/",
+														"foo//bar",
+														"devices/1/status",
+														"devices/2/status",
+														"devices/2/config");
+	
+	private RetainedMessagesTree		tree;
+	
+	@Before
+	public void setUp() {
+		tree = new RetainedMessagesTree();
+		for (String topic : TOPICS) {
+			tree.put(topic, new StoredMessage(topic.getBytes(),
+					QOSType.MOST_ONE, topic));
+		}
+	}
+	
+	@Test
+	public void testMatchSameAsMatchTopics() {
+		for (String filter : Arrays.asList("#", "finance", "finance/#",
+				"finance/+", "/+", "+/+", "+", "sport/+", "foo//bar",
+				"foo/+/bar", "devices/+/status", "devices/2/#", "/#",
+				"missing/#")) {
+			Set<String> expected = new HashSet<>();
+			for (String topic : TOPICS) {
+				if (SubscriptionUtils.matchTopics(topic, filter)) {
+					expected.add(topic);
+				}
+			}
+			assertEquals(filter, expected, topics(tree.match(filter)));
+		}
+	}
+	
+	@Test
+	public void testRemovePrunesTheTopic() {
+		tree.remove("finance/stock");
+		tree.remove("devices/1/status");
+		tree.remove("not/retained");
+		
+		// Verify
+		assertEquals(TOPICS.size() - 2, tree.size());
+		assertEquals(new HashSet<>(Arrays.asList("finance/stock/ibm")),
+				topics(tree.match("finance/+/#")));
+		assertTrue(tree.match("devices/1/#").isEmpty());
+	}
+	
+	@Test
+	public void testPutReplacesTheMessage() {
+		StoredMessage replacing = new StoredMessage("new".getBytes(),
+				QOSType.LEAST_ONE, "finance");
+		tree.put("finance", replacing);
+		
+		// Verify
+		assertEquals(TOPICS.size(), tree.size());
+		assertEquals(Arrays.asList(replacing), tree.match("finance"));
+	}
+	
+	private static Set<String> topics(List<StoredMessage> messages) {
+		Set<String> topics = new HashSet<>();
+		for (StoredMessage msg : messages) {
+			topics.add(msg.getTopic());
+		}
+		return topics;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.spi.impl.subscriptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.junit.Test;
+
+public class SharedSubscriptionsTest {
+	
+	private static final String	SHARED_FILTER	= "$share/workers/jobs/#";
+	
+	private final Subscription	plainSub		= new Subscription("plain",
+														"jobs/#",
+														QOSType.MOST_ONE,
+														false);
+	private final Subscription	worker1			= new Subscription(
+														"worker1",
+														SHARED_FILTER,
+														QOSType.LEAST_ONE,
+														false);
+	private final Subscription	worker2			= new Subscription(
+														"worker2",
+														SHARED_FILTER,
+														QOSType.LEAST_ONE,
+														false);
+	
+	@Test
+	public void testWithoutSharedSubscriptionsReturnsTheMatching() {
+		SharedSubscriptions shared = new SharedSubscriptions(
+				SharedSubscriptions.Policy.ROUND_ROBIN);
+		List<Subscription> matching = Arrays.asList(plainSub);
+		
+		assertSame(matching, shared.select("jobs/build", matching));
+	}
+	
+	@Test
+	public void testRoundRobinDeliversToOneMemberInTurn() {
+		SharedSubscriptions shared = new SharedSubscriptions(
+				SharedSubscriptions.Policy.ROUND_ROBIN);
+		List<Subscription> matching = Arrays.asList(plainSub, worker1,
+				worker2);
+		
+		List<Subscription> first = shared.select("jobs/build", matching);
+		List<Subscription> second = shared.select("jobs/build", matching);
+		
+		// Verify
+		assertEquals(2, first.size());
+		assertTrue(first.contains(plainSub));
+		assertEquals(2, second.size());
+		assertFalse(first.get(1).equals(second.get(1)));
+	}
+	
+	@Test
+	public void testLeastInflightPicksTheLessLoadedMember() {
+		SharedSubscriptions shared = new SharedSubscriptions(
+				SharedSubscriptions.Policy.LEAST_INFLIGHT);
+		List<Subscription> matching = Arrays.asList(worker1, worker2);
+		shared.inflightAdded("worker1");
+		
+		assertEquals(worker2, shared.select("jobs/build", matching).get(0));
+		
+		// Exercise
+		shared.inflightAdded("worker2");
+		shared.inflightAdded("worker2");
+		shared.inflightRemoved("worker1");
+		
+		// Verify
+		assertEquals(worker1, shared.select("jobs/build", matching).get(0));
+	}
+	
+	@Test
+	public void testStickyHashKeepsTheTopicOnTheSameMember() {
+		SharedSubscriptions shared = new SharedSubscriptions(
+				SharedSubscriptions.Policy.STICKY_HASH);
+		List<Subscription> matching = Arrays.asList(worker1, worker2);
+		
+		Subscription chosen = shared.select("jobs/build", matching).get(0);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(chosen, shared.select("jobs/build", matching).get(0));
+		}
+	}
+	
+	@Test
+	public void testConnectedMembersArePreferred() {
+		SharedSubscriptions shared = new SharedSubscriptions(
+				SharedSubscriptions.Policy.ROUND_ROBIN);
+		Subscription offline = new Subscription(worker1);
+		offline.setActive(false);
+		List<Subscription> matching = Arrays.asList(offline, worker2);
+		
+		for (int i = 0; i < 3; i++) {
+			assertEquals(worker2, shared.select("jobs/build", matching).get(0));
+		}
+	}
+}
@@ -19,8 +19,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.Arrays;
@@ -60,6 +62,24 @@ public class SubscriptionsStoreTest {
 		assertEqualsSeq(asArray(Token.EMPTY, Token.EMPTY), tokens);
 	}
 	
+	@Test
+	public void testSplitTopic_sameLevelsOfParseTopic() throws ParseException {
+		for (String topic : Arrays.asList("finance/stock/ibm", "/finance",
+				"/", "", "foo//bar", "foo/bar/", "foo//", "//", "+/+", "a/#")) {
+			List<Token> tokens = SubscriptionUtils.parseTopic(topic);
+			String[] levels = SubscriptionUtils.splitTopic(topic);
+			assertEquals(tokens.size(), levels.length);
+			for (int i = 0; i < levels.length; i++) {
+				assertEquals(tokens.get(i).name(), levels[i]);
+			}
+		}
+	}
+	
+	@Test(expected = ParseException.class)
+	public void testSplitTopicMultiInTheMiddleNotValid() throws ParseException {
+		SubscriptionUtils.splitTopic("finance/#/closingprice");
+	}
+	
 	// @Test(expected = ParseException.class)
 	// public void testSplitTopicTwinsSlashAvoided() throws ParseException {
 	// store.parseTopic("/finance//stock/ibm");
@@ -301,6 +321,171 @@ public class SubscriptionsStoreTest {
 		assertEquals(1, store.size());
 	}
 	
+	@Test
+	public void testRemoveClientSubscriptions_prunesEmptyNodes() {
+		store.add(new Subscription("FAKE_CLID_1", "finance/stock/ibm",
+				AbstractMessage.QOSType.MOST_ONE, false));
+		store.add(new Subscription("FAKE_CLID_2", "finance/+",
+				AbstractMessage.QOSType.MOST_ONE, false));
+		
+		// Exercise
+		store.removeForClient("FAKE_CLID_1");
+		
+		// Verify
+		assertEquals(1, store.size());
+		assertTrue(store.matches("finance/stock/ibm").isEmpty());
+		assertNull(store.recreatePath("finance", store.subscriptions.get()).createdNode
+				.childWithToken(new Token("stock")));
+	}
+	
+	@Test
+	public void testRecreatePath_sharesTheOtherSubtrees() {
+		TreeNode oldRoot = new TreeNode();
+		final NodeCouple respFinance = store.recreatePath("finance/ibm",
+				oldRoot);
+		final NodeCouple respSport = store.recreatePath("sport",
+				respFinance.root);
+		
+		// Verify
+		assertSame(respFinance.root.childWithToken(new Token("finance")),
+				respSport.root.childWithToken(new Token("finance")));
+	}
+	
+	@Test
+	public void testDeactivateLeavesTheTreeUntouched() {
+		store.add(new Subscription("FAKE_CLID_1", "finance/+",
+				AbstractMessage.QOSType.MOST_ONE, false));
+		TreeNode root = store.subscriptions.get();
+		
+		// Exercise
+		store.deactivate("FAKE_CLID_1");
+		
+		// Verify
+		assertSame(root, store.subscriptions.get());
+		assertFalse(store.matches("finance/ibm").get(0).isActive());
+		store.activate("FAKE_CLID_1");
+		assertTrue(store.matches("finance/ibm").get(0).isActive());
+	}
+	
+	@Test
+	public void testMatchCacheDroppedOnSubscribe() {
+		store.setMatchCacheSize(10);
+		Subscription financeSub = new Subscription("FAKE_CLID_1", "finance/+",
+				AbstractMessage.QOSType.MOST_ONE, false);
+		store.add(financeSub);
+		assertTrue(store.matches("finance/ibm").contains(financeSub));
+		assertTrue(store.matches("finance/ibm").contains(financeSub));
+		assertEquals(1, store.getMatchCacheHits());
+		assertEquals(1, store.getMatchCacheMisses());
+		
+		// Exercise
+		Subscription anySub = new Subscription("FAKE_CLID_2", "#",
+				AbstractMessage.QOSType.MOST_ONE, false);
+		store.add(anySub);
+		
+		// Verify
+		assertEquals(2, store.matches("finance/ibm").size());
+		assertEquals(2, store.getMatchCacheMisses());
+	}
+	
+	@Test
+	public void testMatchCacheKeptOnUnrelatedSubscribe() {
+		store.setMatchCacheSize(10);
+		Subscription financeSub = new Subscription("FAKE_CLID_1", "finance/+",
+				AbstractMessage.QOSType.MOST_ONE, false);
+		store.add(financeSub);
+		store.matches("finance/ibm");
+		
+		// Exercise
+		store.add(new Subscription("FAKE_CLID_2", "sport/#",
+				AbstractMessage.QOSType.MOST_ONE, false));
+		store.removeSubscription("sport/#", "FAKE_CLID_2");
+		
+		// Verify
+		assertTrue(store.matches("finance/ibm").contains(financeSub));
+		assertEquals(1, store.getMatchCacheHits());
+		assertEquals(1, store.getMatchCacheMisses());
+	}
+	
+	@Test
+	public void testMatchCacheKeptOnSubscribeUnderAnotherLeadingSlashLevel() {
+		store.setMatchCacheSize(10);
+		Subscription financeSub = new Subscription("FAKE_CLID_1", "/finance/+",
+				AbstractMessage.QOSType.MOST_ONE, false);
+		store.add(financeSub);
+		store.matches("/finance/ibm");
+		
+		// Exercise
+		store.add(new Subscription("FAKE_CLID_2", "/sport/#",
+				AbstractMessage.QOSType.MOST_ONE, false));
+		
+		// Verify
+		assertTrue(store.matches("/finance/ibm").contains(financeSub));
+		assertEquals(1, store.getMatchCacheHits());
+		
+		// a wildcard before the first level not empty matches any topic
+		store.add(new Subscription("FAKE_CLID_3", "/+/ibm",
+				AbstractMessage.QOSType.MOST_ONE, false));
+		assertEquals(2, store.matches("/finance/ibm").size());
+		assertEquals(2, store.getMatchCacheMisses());
+	}
+	
+	@Test
+	public void testMatchCacheIsBounded() {
+		store.setMatchCacheSize(2);
+		store.add(new Subscription("FAKE_CLID_1", "finance/+",
+				AbstractMessage.QOSType.MOST_ONE, false));
+		
+		// Exercise
+		for (int i = 0; i < 10; i++) {
+			store.matches("finance/" + i);
+		}
+		
+		// Verify, at most the topics kept in the cache are hit
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1, store.matches("finance/" + i).size());
+		}
+		assertTrue(store.getMatchCacheHits() <= 2);
+	}
+	
+	@Test
+	public void testSharedSubscriptionsMatchTheUnsharedFilter() {
+		Subscription plainSub = new Subscription("FAKE_CLID_1", "jobs/#",
+				AbstractMessage.QOSType.MOST_ONE, false);
+		Subscription sharedSub = new Subscription("FAKE_CLID_1",
+				"$share/workers/jobs/#", AbstractMessage.QOSType.LEAST_ONE,
+				false);
+		Subscription otherSharedSub = new Subscription("FAKE_CLID_2",
+				"$share/workers/jobs/#", AbstractMessage.QOSType.LEAST_ONE,
+				false);
+		store.add(plainSub);
+		store.add(sharedSub);
+		store.add(otherSharedSub);
+		
+		// Verify
+		List<Subscription> subs = store.matches("jobs/build");
+		assertEquals(3, subs.size());
+		assertTrue(subs.containsAll(Arrays.asList(plainSub, sharedSub,
+				otherSharedSub)));
+		assertTrue(store.matches("$share/workers/jobs/build").isEmpty());
+		
+		// Exercise
+		store.removeSubscription("$share/workers/jobs/#", "FAKE_CLID_1");
+		
+		// Verify
+		subs = store.matches("jobs/build");
+		assertEquals(2, subs.size());
+		assertTrue(subs.containsAll(Arrays.asList(plainSub, otherSharedSub)));
+	}
+	
+	@Test
+	public void testValidateSharedSubscription() {
+		assertTrue(SubscriptionUtils.validate("$share/workers/jobs/#"));
+		assertFalse(SubscriptionUtils.validate("$share/workers"));
+		assertFalse(SubscriptionUtils.validate("$share//jobs"));
+		assertFalse(SubscriptionUtils.validate("$share/+/jobs"));
+	}
+	
 	@Test
 	public void testOverlappingSubscriptions() {
 		Subscription genericSub = new Subscription("FAKE_CLI_ID_1", "a/+",
@@ -440,33 +625,96 @@ public class SubscriptionsStoreTest {
 	
 	@Test
 	public void testRecreatePath_emptyRoot() {
-		TreeNode oldRoot = new TreeNode(null);
+		TreeNode oldRoot = new TreeNode();
 		final NodeCouple resp = store.recreatePath("/finance", oldRoot);
 		
 		// Verify
 		assertNotNull(resp.root);
 		assertNull(resp.root.token);
-		assertEquals(1, resp.root.children.size());
+		assertEquals(1, resp.root.children().size());
 		assertEquals(resp.createdNode,
-				resp.root.children.get(0).children.get(0));
+				resp.root.children().get(0).children().get(0));
 	}
 	
 	@Test
 	public void testRecreatePath_1layer_tree() {
-		TreeNode oldRoot = new TreeNode(null);
+		TreeNode oldRoot = new TreeNode();
 		final NodeCouple respFinance = store.recreatePath("/finance", oldRoot);
 		final NodeCouple respPlus = store.recreatePath("/+", respFinance.root);
 		
 		// Verify
 		assertNotNull(respPlus.root);
 		assertNull(respPlus.root.token);
-		assertEquals(1, respPlus.root.children.size());
-		assertTrue(respPlus.root.children.get(0).children
+		assertEquals(1, respPlus.root.children().size());
+		assertTrue(respPlus.root.children().get(0).children()
 				.contains(respPlus.createdNode));
-		assertTrue(respPlus.root.children.get(0).children
+		assertTrue(respPlus.root.children().get(0).children()
 				.contains(respFinance.createdNode));
 	}
 	
+	@Test
+	public void testBulkLoadOnInit() {
+		MemoryStorageService sessions = new MemoryStorageService();
+		sessions.addNewSubscription(new Subscription("a", "/finance/+",
+				AbstractMessage.QOSType.LEAST_ONE, false));
+		sessions.addNewSubscription(new Subscription("b", "/finance/+",
+				AbstractMessage.QOSType.MOST_ONE, true));
+		Subscription offline = new Subscription("c", "/finance/#",
+				AbstractMessage.QOSType.EXACTLY_ONCE, false);
+		offline.setActive(false);
+		sessions.addNewSubscription(offline);
+		
+		// Exercise
+		store = new SubscriptionsStore();
+		store.init(sessions);
+		
+		// Verify
+		assertEquals(3, store.size());
+		List<Subscription> matching = store.matches("/finance/ibm");
+		assertEquals(3, matching.size());
+		for (Subscription sub : matching) {
+			assertEquals(!sub.getClientId().equals("c"), sub.isActive());
+		}
+		store.removeForClient("a");
+		assertEquals(2, store.matches("/finance/ibm").size());
+	}
+	
+	@Test
+	public void testTreeSavedAndLoadedFromSnapshot() throws IOException {
+		File snapshot = File.createTempFile("subscriptions", ".snap");
+		snapshot.delete();
+		store.setSnapshotFile(snapshot);
+		store.add(new Subscription("a", "/finance/+",
+				AbstractMessage.QOSType.LEAST_ONE, false));
+		store.add(new Subscription("b", "$share/group//finance/#",
+				AbstractMessage.QOSType.MOST_ONE, true));
+		store.add(new Subscription("c", "/finance/ibm",
+				AbstractMessage.QOSType.EXACTLY_ONCE, false));
+		store.deactivate("c");
+		store.saveSnapshot();
+		
+		// Exercise, the snapshot is loaded instead of the empty store
+		SubscriptionsStore loaded = new SubscriptionsStore();
+		loaded.setSnapshotFile(snapshot);
+		loaded.init(new MemoryStorageService());
+		
+		// Verify
+		assertFalse(snapshot.exists());
+		assertEquals(store.size(), loaded.size());
+		List<Subscription> matching = loaded.matches("/finance/ibm");
+		assertEquals(3, matching.size());
+		// no client is connected after a restart
+		for (Subscription sub : matching) {
+			assertFalse(sub.isActive());
+		}
+		loaded.activate("a");
+		for (Subscription sub : loaded.matches("/finance/ibm")) {
+			assertEquals(sub.getClientId().equals("a"), sub.isActive());
+		}
+		loaded.removeSubscription("/finance/+", "a");
+		assertEquals(2, loaded.matches("/finance/ibm").size());
+	}
+	
 	private static Token[] asArray(Object... l) {
 		Token[] tokens = new Token[l.length];
 		for (int i = 0; i < l.length; i++) {
@@ -2,6 +2,8 @@ package org.eclipse.moquette.spi.impl.subscriptions;
 
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static org.eclipse.moquette.proto.messages.AbstractMessage.QOSType.*;
 import org.junit.Test;
 
@@ -13,7 +15,7 @@ public class TreeNodeTest {
 
     @Test
     public void testAddSubscriptionOverwriteAnExistingWithDifferentCleanSessionFlag() throws Exception {
-        TreeNode root = new TreeNode(null);
+        TreeNode root = new TreeNode();
         Subscription existingSub = new Subscription(CLIENT_ID, "/topic", LEAST_ONE, false);
         root.addSubscription(existingSub);
         Set<Subscription> subs = root.findAllByClientID(CLIENT_ID);
@@ -30,4 +32,25 @@ public class TreeNodeTest {
         Subscription storedSub = subs.iterator().next();
         assertEquals(overwritingSub.isCleanSession(), storedSub.isCleanSession());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testChildWithTokenLooksUpWildcardsInTheirSlots() throws Exception {
+        TreeNode root = new TreeNode();
+        TreeNode literal = childOf(root, new Token("+a"));
+        TreeNode single = childOf(root, Token.SINGLE);
+        TreeNode multi = childOf(root, Token.MULTI);
+
+        assertSame(literal, root.childWithToken(new Token("+a")));
+        assertSame(single, root.childWithToken(Token.SINGLE));
+        assertSame(multi, root.childWithToken(Token.MULTI));
+        assertNull(root.childWithToken(new Token("b")));
+        assertEquals(3, root.children().size());
+    }
+
+    private static TreeNode childOf(TreeNode parent, Token token) {
+        TreeNode child = new TreeNode();
+        child.setToken(token);
+        parent.addChild(child);
+        return child;
+    }
+}
@@ -17,6 +17,7 @@ package org.eclipse.moquette.parser.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.MessageToByteEncoder;
 import java.util.HashMap;
@@ -48,6 +49,27 @@ public class MQTTEncoder extends MessageToByteEncoder<AbstractMessage> {
 		m_encoderMap.put(AbstractMessage.PUBREL, new PubRelEncoder());
 	}
 	
+	/**
+	 * The publishes of a SharedPublish are written as composites of the shared
+	 * buffers instead of being copied in a buffer of their own, the composite
+	 * takes over the reference of the message.
+	 * */
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg,
+			ChannelPromise promise) throws Exception {
+		if (msg instanceof SharedPublishMessage) {
+			SharedPublishMessage message = (SharedPublishMessage) msg;
+			try {
+				ctx.write(PublishEncoder.encodeShared(ctx.alloc(), message),
+						promise);
+			} finally {
+				message.release();
+			}
+			return;
+		}
+		super.write(ctx, msg, promise);
+	}
+	
 	@Override
 	protected void encode(ChannelHandlerContext chc, AbstractMessage msg,
 			ByteBuf bb) throws Exception {
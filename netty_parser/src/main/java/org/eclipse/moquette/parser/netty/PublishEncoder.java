@@ -16,6 +16,8 @@
 package org.eclipse.moquette.parser.netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import org.eclipse.moquette.proto.messages.AbstractMessage;
 import org.eclipse.moquette.proto.messages.PublishMessage;
@@ -29,6 +31,58 @@ class PublishEncoder extends DemuxEncoder<PublishMessage> {
 	@Override
 	protected void encode(ChannelHandlerContext ctx, PublishMessage message,
 			ByteBuf out) {
+		validate(message);
+		ByteBuf topic = Utils.encodeString(message.getTopicName());
+		boolean withMessageID = hasMessageID(message);
+		int variableHeaderSize = topic.readableBytes()
+				+ (withMessageID ? 2 : 0) + message.getPayload().remaining();
+		
+		// straight in the out buffer, the payload is copied once
+		out.writeByte(AbstractMessage.PUBLISH << 4
+				| Utils.encodeFlags(message));
+		out.writeBytes(Utils.encodeRemainingLength(variableHeaderSize));
+		out.writeBytes(topic);
+		if (withMessageID) {
+			out.writeShort(message.getMessageID());
+		}
+		out.writeBytes(message.getPayload());
+	}
+	
+	/**
+	 * Encode the publish to a subscriber of a SharedPublish: only the fixed
+	 * header and the PacketIdentifier are written, the topic and the payload
+	 * are retained duplicates of the shared buffers.
+	 * 
+	 * @return the composite owning its components, released once written.
+	 * */
+	static ByteBuf encodeShared(ByteBufAllocator alloc,
+			SharedPublishMessage message) {
+		validate(message);
+		SharedPublish shared = message.getShared();
+		boolean withMessageID = hasMessageID(message);
+		int variableHeaderSize = shared.encodedLength()
+				+ (withMessageID ? 2 : 0);
+		
+		ByteBuf remainingLength = Utils
+				.encodeRemainingLength(variableHeaderSize);
+		
+		ByteBuf header = alloc.buffer(1 + remainingLength.readableBytes());
+		header.writeByte(AbstractMessage.PUBLISH << 4
+				| Utils.encodeFlags(message));
+		header.writeBytes(remainingLength);
+		
+		CompositeByteBuf composite = alloc.compositeBuffer(4);
+		composite.addComponent(true, header);
+		composite.addComponent(true, shared.encodedTopic());
+		if (withMessageID) {
+			composite.addComponent(true,
+					alloc.buffer(2).writeShort(message.getMessageID()));
+		}
+		composite.addComponent(true, shared.encodedPayload());
+		return composite;
+	}
+	
+	private static void validate(PublishMessage message) {
 		if (message.getQos() == AbstractMessage.QOSType.RESERVED) {
 			throw new IllegalArgumentException(
 					"Found a message with RESERVED Qos");
@@ -37,36 +91,22 @@ class PublishEncoder extends DemuxEncoder<PublishMessage> {
 			throw new IllegalArgumentException(
 					"Found a message with empty or null topic name");
 		}
-		
-		ByteBuf variableHeaderBuff = ctx.alloc().buffer(2);
-		ByteBuf buff = null;
-		try {
-			variableHeaderBuff.writeBytes(Utils.encodeString(message
-					.getTopicName()));
-			if (message.getQos() == AbstractMessage.QOSType.LEAST_ONE
-					|| message.getQos() == AbstractMessage.QOSType.EXACTLY_ONCE) {
-				if (message.getMessageID() == null) {
-					throw new IllegalArgumentException(
-							"Found a message with QOS 1 or 2 and not MessageID setted");
-				}
-				variableHeaderBuff.writeShort(message.getMessageID());
-			}
-			variableHeaderBuff.writeBytes(message.getPayload());
-			int variableHeaderSize = variableHeaderBuff.readableBytes();
-			
-			byte flags = Utils.encodeFlags(message);
-			
-			buff = ctx.alloc().buffer(2 + variableHeaderSize);
-			buff.writeByte(AbstractMessage.PUBLISH << 4 | flags);
-			buff.writeBytes(Utils.encodeRemainingLength(variableHeaderSize));
-			buff.writeBytes(variableHeaderBuff);
-			out.writeBytes(buff);
-		} finally {
-			variableHeaderBuff.release();
-			if (buff != null) {
-				buff.release();
-			}
+	}
+	
+	/**
+	 * @return true if the message carries a PacketIdentifier, the QoS 1 and 2
+	 *         ones.
+	 * */
+	private static boolean hasMessageID(PublishMessage message) {
+		if (message.getQos() != AbstractMessage.QOSType.LEAST_ONE
+				&& message.getQos() != AbstractMessage.QOSType.EXACTLY_ONCE) {
+			return false;
+		}
+		if (message.getMessageID() == null) {
+			throw new IllegalArgumentException(
+					"Found a message with QOS 1 or 2 and not MessageID setted");
 		}
+		return true;
 	}
 	
 }
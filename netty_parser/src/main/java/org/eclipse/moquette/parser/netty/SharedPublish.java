@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.parser.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.ByteBuffer;
+import org.eclipse.moquette.proto.messages.AbstractMessage.QOSType;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+
+/**
+ * The topic and payload of a publish encoded once and shared by the messages
+ * sent to all its subscribers, each of them encoded as its own fixed header
+ * and PacketIdentifier composed with retained duplicates of the shared
+ * buffers, so the payload is never copied whatever the fan-out.
+ * 
+ * The publish owns a reference to its payload, and each message created by
+ * it another one, dropped once the message is encoded, so the payload stays
+ * valid until the last composite is written even if the owner releases it
+ * before. A wrapped ByteBuffer is an unpooled view left to the GC, a ByteBuf
+ * of the caller is released with the last reference.
+ */
+public class SharedPublish {
+	
+	private final String		topicName;
+	private final ByteBuffer	payload;
+	private final ByteBuf		encodedTopic;
+	private final ByteBuf		encodedPayload;
+	
+	/**
+	 * @param payload not modified while the publish is in use, it's wrapped,
+	 *            not copied.
+	 * */
+	public SharedPublish(String topicName, ByteBuffer payload) {
+		this.topicName = topicName;
+		this.payload = payload.duplicate();
+		this.encodedTopic = Utils.encodeString(topicName);
+		this.encodedPayload = Unpooled.wrappedBuffer(payload.duplicate());
+	}
+	
+	/**
+	 * @param payload the reference to the payload the publish takes over,
+	 *            released with the last reference to the publish.
+	 * */
+	public SharedPublish(String topicName, ByteBuf payload) {
+		this.topicName = topicName;
+		this.payload = payload.nioBuffer();
+		this.encodedTopic = Utils.encodeString(topicName);
+		this.encodedPayload = payload;
+	}
+	
+	/**
+	 * Take a reference to the payload, for a holder of the publish that
+	 * outlives its owner.
+	 * */
+	public SharedPublish retain() {
+		encodedPayload.retain();
+		return this;
+	}
+	
+	/**
+	 * Drop a reference to the payload, the messages not yet encoded keep their
+	 * own.
+	 * */
+	public void release() {
+		encodedPayload.release();
+	}
+	
+	public String getTopicName() {
+		return topicName;
+	}
+	
+	/**
+	 * @return a duplicate of the payload, the caller is free to read it.
+	 * */
+	public ByteBuffer getPayload() {
+		return payload.duplicate();
+	}
+	
+	/**
+	 * @return the message sending the publish to a subscriber.
+	 * */
+	public PublishMessage newMessage(QOSType qos, Integer messageID,
+			boolean retained, boolean dup) {
+		PublishMessage message = new SharedPublishMessage(this);
+		message.setRetainFlag(retained);
+		message.setDupFlag(dup);
+		message.setTopicName(topicName);
+		message.setQos(qos);
+		message.setMessageID(messageID);
+		message.setPayload(getPayload());
+		return message;
+	}
+	
+	ByteBuf encodedTopic() {
+		return encodedTopic.retainedDuplicate();
+	}
+	
+	ByteBuf encodedPayload() {
+		return encodedPayload.retainedDuplicate();
+	}
+	
+	int encodedLength() {
+		return encodedTopic.readableBytes() + encodedPayload.readableBytes();
+	}
+}
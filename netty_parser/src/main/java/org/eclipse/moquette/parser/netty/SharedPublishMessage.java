@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------ All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Apache License v2.0 which
+ * accompanies this distribution.
+ * 
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ * 
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package org.eclipse.moquette.parser.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
+import org.eclipse.moquette.proto.messages.PublishMessage;
+
+/**
+ * A publish to a single subscriber of a SharedPublish, encoded by the
+ * MQTTEncoder as a composite of the shared buffers. It holds a reference to
+ * the shared payload until it's encoded, or dropped by the pipeline if the
+ * channel is closed.
+ */
+class SharedPublishMessage extends PublishMessage implements ReferenceCounted {
+	
+	private final SharedPublish	shared;
+	private final ByteBuf		payloadReference;
+	
+	SharedPublishMessage(SharedPublish shared) {
+		this.shared = shared;
+		this.payloadReference = shared.encodedPayload();
+	}
+	
+	SharedPublish getShared() {
+		return shared;
+	}
+	
+	@Override
+	public int refCnt() {
+		return payloadReference.refCnt();
+	}
+	
+	@Override
+	public SharedPublishMessage retain() {
+		payloadReference.retain();
+		return this;
+	}
+	
+	@Override
+	public SharedPublishMessage retain(int increment) {
+		payloadReference.retain(increment);
+		return this;
+	}
+	
+	@Override
+	public SharedPublishMessage touch() {
+		payloadReference.touch();
+		return this;
+	}
+	
+	@Override
+	public SharedPublishMessage touch(Object hint) {
+		payloadReference.touch(hint);
+		return this;
+	}
+	
+	@Override
+	public boolean release() {
+		return payloadReference.release();
+	}
+	
+	@Override
+	public boolean release(int decrement) {
+		return payloadReference.release(decrement);
+	}
+}
@@ -17,6 +17,7 @@ package org.eclipse.moquette.parser.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import java.nio.ByteBuffer;
 import org.junit.Before;
@@ -195,4 +196,76 @@ public class PublishEncoderTest {
         assertEquals(0x30, m_out.readByte()); //1 byte
     }
     
+    @Test
+    public void testSharedPublishEncodedAsTheSingleOne() throws Exception {
+        byte[] bpayload = new byte[]{0x0A, 0x0B, 0x0C};
+        ByteBuffer payload = ByteBuffer.wrap(bpayload);
+        SharedPublish shared = new SharedPublish("/photos", payload);
+        PublishMessage msg = shared.newMessage(QOSType.LEAST_ONE, 1, true, true);
+        PublishMessage single = new PublishMessage();
+        single.setQos(QOSType.LEAST_ONE);
+        single.setMessageID(1);
+        single.setRetainFlag(true);
+        single.setDupFlag(true);
+        single.setTopicName("/photos");
+        single.setPayload(ByteBuffer.wrap(bpayload));
+
+        //Exercise
+        ByteBuf composite = PublishEncoder.encodeShared(
+                UnpooledByteBufAllocator.DEFAULT, (SharedPublishMessage) msg);
+        m_encoder.encode(m_mockedContext, single, m_out);
+
+        //Verify
+        assertEquals(m_out, composite);
+        assertEquals(0x3B, composite.getByte(0));
+        composite.release();
+    }
+
+    @Test
+    public void testSharedPublishPayloadNotCopied() throws Exception {
+        ByteBuffer payload = ByteBuffer.wrap("Test my payload".getBytes());
+        SharedPublish shared = new SharedPublish("/topic", payload);
+        SharedPublishMessage msgA = (SharedPublishMessage) shared.newMessage(
+                QOSType.MOST_ONE, null, false, false);
+        SharedPublishMessage msgB = (SharedPublishMessage) shared.newMessage(
+                QOSType.EXACTLY_ONCE, 2, false, false);
+
+        //Exercise
+        ByteBuf first = PublishEncoder.encodeShared(
+                UnpooledByteBufAllocator.DEFAULT, msgA);
+        ByteBuf second = PublishEncoder.encodeShared(
+                UnpooledByteBufAllocator.DEFAULT, msgB);
+
+        //Verify
+        assertEquals(10 + payload.remaining(), first.readableBytes());
+        assertEquals(12 + payload.remaining(), second.readableBytes());
+        //the payload of both is the shared buffer, written over by the publisher
+        payload.put(0, (byte) 'B');
+        assertEquals('B', first.getByte(10));
+        assertEquals('B', second.getByte(12));
+        first.release();
+        second.release();
+        //the shared buffers outlive the composites
+        assertEquals(payload, msgB.getShared().getPayload());
+    }
+    
+    @Test
+    public void testSharedPayloadReleasedOnceTheLastMessageIsEncoded() throws Exception {
+        ByteBuf payload = Unpooled.directBuffer().writeBytes("retained".getBytes());
+        SharedPublish shared = new SharedPublish("/topic", payload);
+        SharedPublishMessage msg = (SharedPublishMessage) shared.newMessage(
+                QOSType.MOST_ONE, null, true, false);
+
+        //Exercise, the owner releases before the message is written
+        shared.release();
+        ByteBuf composite = PublishEncoder.encodeShared(
+                UnpooledByteBufAllocator.DEFAULT, msg);
+        msg.release();
+
+        //Verify
+        assertEquals('r', composite.getByte(10));
+        composite.release();
+        assertEquals(0, payload.refCnt());
+    }
+
 }
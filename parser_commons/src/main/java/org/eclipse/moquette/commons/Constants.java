@@ -30,7 +30,12 @@ public class Constants {
 	public static final String	DEFAULT_PERSISTENT_PATH					= System.getProperty("user.dir")
 																				+ File.separator
 																				+ DEFAULT_MOQUETTE_STORE_MAP_DB_FILENAME;
+	public static final String	DEFAULT_JOURNAL_DIRNAME					= "moquette_journal";
+	public static final String	DEFAULT_JOURNAL_PATH					= System.getProperty("user.dir")
+																				+ File.separator
+																				+ DEFAULT_JOURNAL_DIRNAME;
 	public static final String	PERSISTENT_STORE_PROPERTY_NAME			= "persistent_store";
+	public static final String	STORAGE_TYPE_PROPERTY_NAME				= "storage_type";
 	public static final String	PASSWORD_FILE_PROPERTY_NAME				= "password_file";
 	public static final String	PORT_PROPERTY_NAME						= "port";
 	public static final String	HOST_PROPERTY_NAME						= "host";
@@ -45,5 +50,22 @@ public class Constants {
 	public static final String	ACL_FILE_PROPERTY_NAME					= "acl_file";
 	public static final String	AUTHORIZATOR_CLASS_NAME					= "authorizator_class";
 	public static final String	AUTHENTICATOR_CLASS_NAME				= "authenticator_class";
+	public static final String	MATCH_CACHE_SIZE_PROPERTY_NAME			= "match_cache_size";
+	public static final String	SHARED_SUBSCRIPTION_POLICY_NAME			= "shared_subscription_policy";
+	public static final String	MAX_INFLIGHT_PROPERTY_NAME				= "max_inflight_messages";
+	public static final String	INFLIGHT_RETRY_PROPERTY_NAME			= "inflight_retry_interval";
+	public static final String	OFFLINE_QUEUE_MAX_MESSAGES_PROPERTY_NAME	= "offline_queue_max_messages";
+	public static final String	OFFLINE_QUEUE_MAX_BYTES_PROPERTY_NAME	= "offline_queue_max_bytes";
+	public static final String	OFFLINE_QUEUE_POLICY_PROPERTY_NAME		= "offline_queue_overflow_policy";
+	public static final String	REPLAY_BATCH_SIZE_PROPERTY_NAME			= "replay_batch_size";
+	public static final String	REPLAY_CLIENT_RATE_PROPERTY_NAME		= "replay_client_rate";
+	public static final String	REPLAY_GLOBAL_RATE_PROPERTY_NAME		= "replay_global_rate";
+	public static final String	SUBSCRIPTIONS_WRITE_BEHIND_PROPERTY_NAME	= "subscriptions_write_behind_ms";
+	public static final String	SUBSCRIPTIONS_SNAPSHOT_PROPERTY_NAME		= "subscriptions_snapshot";
+	public static final String	FLUSH_MAX_PENDING_PROPERTY_NAME			= "flush_max_pending";
+	public static final String	FLUSH_MAX_DELAY_PROPERTY_NAME			= "flush_max_delay_us";
+	public static final String	PUBLISH_LANES_PROPERTY_NAME				= "publish_lanes";
+	public static final String	PUBLISH_LANE_RING_SIZE_PROPERTY_NAME	= "publish_lane_ring_size";
+	public static final String	RETAINED_OFF_HEAP_PROPERTY_NAME			= "retained_off_heap";
 	
 }